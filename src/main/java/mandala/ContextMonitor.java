@@ -0,0 +1,272 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Context tier monitor.
+// Estimates the number of distinct contexts per tier, and of distinct combined
+// tier states, with fixed-memory HyperLogLog counters.
+// Detects never-before-seen tier contexts with a Bloom filter, flagging them as novel.
+// Each thread counts into its own counters, merged when the phase ends, so
+// dataset workers never contend for a lock. Novelty detection is serialized.
+
+package mandala;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.clearspring.analytics.stream.membership.BloomFilter;
+
+public class ContextMonitor
+{
+   // Enabled?
+   public static boolean ENABLED = false;
+
+   // HyperLogLog register index bits (standard error ~ 1.04/sqrt(2^bits)).
+   public static int CARDINALITY_LOG2M = 14;
+
+   // Novel context detection enabled?
+   public static boolean NOVELTY_ENABLED = false;
+
+   // Novelty filter expected number of contexts and false positive rate.
+   public static int    NOVELTY_CAPACITY            = 100000;
+   public static double NOVELTY_FALSE_POSITIVE_RATE = 0.01;
+
+   // Phase, and its number.
+   private static volatile String phase       = null;
+   private static volatile int    phaseNumber = 0;
+
+   // Cardinality counters of a thread in a phase: per tier, and for the combined tier state.
+   private static class Counters
+   {
+      int                    phaseNumber;
+      ArrayList<HyperLogLog> tierCardinalities;
+      HyperLogLog            stateCardinality;
+      long events;
+
+      Counters(int phaseNumber)
+      {
+         this.phaseNumber  = phaseNumber;
+         tierCardinalities = new ArrayList<HyperLogLog>();
+         stateCardinality  = new HyperLogLog(CARDINALITY_LOG2M);
+         events            = 0;
+      }
+   };
+
+   // Thread counters, and counters of the phase.
+   private static ThreadLocal<Counters> counters      = new ThreadLocal<Counters>();
+   private static ArrayList<Counters>   phaseCounters = new ArrayList<Counters>();
+
+   // Novelty filter, and phase counts per tier.
+   private static BloomFilter     noveltyFilter = null;
+   private static ArrayList<Long> novelCounts;
+
+   // Begin phase.
+   public static synchronized void begin(String phaseName)
+   {
+      if (!ENABLED && !NOVELTY_ENABLED)
+      {
+         return;
+      }
+      phaseCounters = new ArrayList<Counters>();
+      novelCounts   = new ArrayList<Long>();
+      phaseNumber++;
+      phase = phaseName;
+   }
+
+
+   // Update with current context tiers.
+   public static void update(ArrayList<Mandala.ContextFeatures> contextTiers)
+   {
+      if (NOVELTY_ENABLED)
+      {
+         synchronized (ContextMonitor.class)
+         {
+            detectNovelty(contextTiers);
+         }
+      }
+      if (!ENABLED || (phase == null))
+      {
+         return;
+      }
+      Counters threadCounters = counters.get();
+      if ((threadCounters == null) || (threadCounters.phaseNumber != phaseNumber))
+      {
+         threadCounters = new Counters(phaseNumber);
+         counters.set(threadCounters);
+         register(threadCounters);
+      }
+      threadCounters.events++;
+      long stateHash = 0x9e3779b97f4a7c15L;
+      for (int i = 0, j = contextTiers.size(); i < j; i++)
+      {
+         while (threadCounters.tierCardinalities.size() <= i)
+         {
+            threadCounters.tierCardinalities.add(new HyperLogLog(CARDINALITY_LOG2M));
+         }
+         Mandala.ContextFeatures contextFeatures = contextTiers.get(i);
+         long hash = 0;
+         if (contextFeatures != null)
+         {
+            hash = hashFeatures(contextFeatures.features);
+            threadCounters.tierCardinalities.get(i).offerHashed(hash);
+         }
+         stateHash = mix((stateHash ^ hash) + i);
+      }
+      threadCounters.stateCardinality.offerHashed(stateHash);
+   }
+
+
+   // Register thread counters with phase.
+   private static synchronized void register(Counters threadCounters)
+   {
+      phaseCounters.add(threadCounters);
+   }
+
+
+   // End phase and report.
+   public static synchronized void end()
+   {
+      if (phase == null)
+      {
+         return;
+      }
+      if (ENABLED)
+      {
+         Counters totals = merge();
+         System.out.println("context monitor: phase=" + phase + ", events=" + totals.events +
+                            ", distinct tier states~" + totals.stateCardinality.cardinality());
+         for (int i = 0, j = totals.tierCardinalities.size(); i < j; i++)
+         {
+            System.out.println("  tier=" + i + ", distinct contexts~" + totals.tierCardinalities.get(i).cardinality());
+         }
+      }
+      if (NOVELTY_ENABLED)
+      {
+         System.out.println("novel contexts: phase=" + phase);
+         for (int i = 0, j = novelCounts.size(); i < j; i++)
+         {
+            System.out.println("  tier=" + i + ", novel contexts=" + novelCounts.get(i));
+         }
+      }
+      phase = null;
+   }
+
+
+   // Merge thread counters of phase.
+   // Merged HyperLogLog registers are the maxima of the thread registers, so
+   // estimates do not depend on how updates were divided among threads.
+   private static Counters merge()
+   {
+      Counters totals = new Counters(phaseNumber);
+
+      try
+      {
+         for (Counters threadCounters : phaseCounters)
+         {
+            totals.events += threadCounters.events;
+            totals.stateCardinality.addAll(threadCounters.stateCardinality);
+            for (int i = 0, j = threadCounters.tierCardinalities.size(); i < j; i++)
+            {
+               while (totals.tierCardinalities.size() <= i)
+               {
+                  totals.tierCardinalities.add(new HyperLogLog(CARDINALITY_LOG2M));
+               }
+               totals.tierCardinalities.get(i).addAll(threadCounters.tierCardinalities.get(i));
+            }
+         }
+      }
+      catch (CardinalityMergeException e)
+      {
+         throw new IllegalStateException("Cannot merge context counters: " + e.getMessage());
+      }
+      return(totals);
+   }
+
+
+   // Reset novelty filter.
+   public static synchronized void resetNovelty()
+   {
+      noveltyFilter = null;
+   }
+
+
+   // Detect novel contexts, flagging them.
+   // A context placed by the last update has age 0; surviving contexts have aged
+   // and keep their flags.
+   private static void detectNovelty(ArrayList<Mandala.ContextFeatures> contextTiers)
+   {
+      if (noveltyFilter == null)
+      {
+         noveltyFilter = new BloomFilter(NOVELTY_CAPACITY, NOVELTY_FALSE_POSITIVE_RATE);
+      }
+      for (int i = 0, j = contextTiers.size(); i < j; i++)
+      {
+         Mandala.ContextFeatures contextFeatures = contextTiers.get(i);
+         if ((contextFeatures == null) || (contextFeatures.age != 0))
+         {
+            continue;
+         }
+         byte[] key = featuresKey(i, contextFeatures.features);
+         if (noveltyFilter.isPresent(key))
+         {
+            contextFeatures.novel = false;
+            continue;
+         }
+         noveltyFilter.add(key);
+         contextFeatures.novel = true;
+         if (phase != null)
+         {
+            while (novelCounts.size() <= i)
+            {
+               novelCounts.add(0L);
+            }
+            novelCounts.set(i, novelCounts.get(i) + 1);
+         }
+         if (Mandala.VERBOSE)
+         {
+            System.out.print("novel context: tier=" + i + ", ");
+            contextFeatures.print();
+         }
+      }
+   }
+
+
+   // Tier and features key.
+   private static byte[] featuresKey(int tier, List<Integer> features)
+   {
+      byte[] key = new byte[(features.size() + 1) * 4];
+      int    n   = 0;
+
+      for (int i = -1, j = features.size(); i < j; i++)
+      {
+         int v = (i < 0 ? tier : features.get(i));
+         key[n++] = (byte)(v >>> 24);
+         key[n++] = (byte)(v >>> 16);
+         key[n++] = (byte)(v >>> 8);
+         key[n++] = (byte)v;
+      }
+      return(key);
+   }
+
+
+   // Hash features.
+   public static long hashFeatures(List<Integer> features)
+   {
+      long hash = features.size();
+
+      for (int i = 0, j = features.size(); i < j; i++)
+      {
+         hash = mix(hash + features.get(i));
+      }
+      return(hash);
+   }
+
+
+   // 64-bit mixer (SplitMix64 finalizer).
+   private static long mix(long z)
+   {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return(z ^ (z >>> 31));
+   }
+}
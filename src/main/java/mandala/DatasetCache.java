@@ -0,0 +1,181 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset cache.
+// Exported dataset files are stored in a cache directory under a SHA-256 digest
+// of every parameter that affects them, including the contents of a loaded
+// mandala file. A run with a cached digest restores the files instead of
+// generating and exporting them. Entries are completed by renaming a staging
+// directory, so concurrent runs never see a partial entry.
+
+package mandala;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+public class DatasetCache
+{
+   // Cache directory (null=disabled).
+   public static String DIRECTORY = null;
+
+   // Dataset encoding version: change when generation or dataset formats change.
+   public static final int VERSION = 1;
+
+   // Get cache key of current parameters.
+   // Mandala file name is null when causations are generated.
+   public static String getKey(String mandalaFilename) throws IOException
+   {
+      StringBuilder parameters = new StringBuilder();
+
+      parameters.append("VERSION=" + VERSION + "\n");
+      parameters.append("NUM_CAUSATION_HIERARCHIES=" + Mandala.NUM_CAUSATION_HIERARCHIES + "\n");
+      parameters.append("NUM_NONTERMINALS=" + Mandala.NUM_NONTERMINALS + "\n");
+      parameters.append("NUM_TERMINALS=" + Mandala.NUM_TERMINALS + "\n");
+      parameters.append("NUM_INTERSTITIAL_TERMINALS=" + Mandala.NUM_INTERSTITIAL_TERMINALS + "\n");
+      parameters.append("MAX_INTERSTITIAL_TERMINAL_SEQUENCE=" + Mandala.MAX_INTERSTITIAL_TERMINAL_SEQUENCE + "\n");
+      parameters.append("TERMINAL_PRODUCTION_PROBABILITY=" + Mandala.TERMINAL_PRODUCTION_PROBABILITY + "\n");
+      parameters.append("NUM_DIMENSIONS=" + Mandala.NUM_DIMENSIONS + "\n");
+      parameters.append("NUM_FEATURES=" + Mandala.NUM_FEATURES + "\n");
+      parameters.append("NUM_CAUSATION_PATHS=" + Mandala.NUM_CAUSATION_PATHS + "\n");
+      parameters.append("MAX_CONTEXT_TIER=" + Mandala.MAX_CONTEXT_TIER + "\n");
+      parameters.append("TIER_VALUE_DURATION_TYPE=" + Mandala.TIER_VALUE_DURATION_TYPE + "\n");
+      parameters.append("PREDICTION_SIGNATURE_LENGTH=" + Mandala.PredictionSignatureLength + "\n");
+      parameters.append("NN_DATASET_FILENAME=" + new File(Mandala.NN_DATASET_FILENAME).getName() + "\n");
+      parameters.append("NN_DATASET_TRAIN_FRACTION=" + Mandala.NN_DATASET_TRAIN_FRACTION + "\n");
+      parameters.append("NN_DATASET_DEDUPLICATE=" + Mandala.NN_DATASET_DEDUPLICATE + "\n");
+      parameters.append("RNN_DATASET_FILENAME=" + new File(Mandala.RNN_DATASET_FILENAME).getName() + "\n");
+      parameters.append("RNN_DATASET_TRAIN_FRACTION=" + Mandala.RNN_DATASET_TRAIN_FRACTION + "\n");
+      parameters.append("RNN_SEQUENCE_LAYOUT=" + DatasetWriter.SEQUENCE_LAYOUT + "\n");
+      parameters.append("RNN_SEQUENCE_BUCKETS=" + DatasetWriter.SEQUENCE_BUCKETS + "\n");
+      parameters.append("RNN_SEQUENCE_WINDOW=" + DatasetWriter.SEQUENCE_WINDOW + "\n");
+      parameters.append("RNN_SEQUENCE_STRIDE=" + DatasetWriter.SEQUENCE_STRIDE + "\n");
+      parameters.append("DATASET_FORMAT=" + Mandala.DATASET_FORMAT + "\n");
+      parameters.append("DATASET_COMPRESSION=" + DatasetWriter.COMPRESSION_LEVEL + "\n");
+      parameters.append("DATASET_SHARDS=" + DatasetWriter.SHARDS + "\n");
+      parameters.append("DATASET_SHARD_ROWS=" + DatasetWriter.SHARD_ROWS + "\n");
+      parameters.append("RANDOM_SEED=" + Mandala.RANDOM_SEED + "\n");
+      try
+      {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         digest.update(parameters.toString().getBytes(StandardCharsets.UTF_8));
+         if (mandalaFilename != null)
+         {
+            digest.update(Files.readAllBytes(new File(mandalaFilename).toPath()));
+         }
+         StringBuilder key = new StringBuilder();
+         for (byte b : digest.digest())
+         {
+            key.append(String.format("%02x", b & 0xff));
+         }
+         return(key.toString());
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IOException("Cannot digest dataset parameters: " + e.getMessage());
+      }
+   }
+
+
+   // Restore cached datasets to their file names.
+   // Returns false if not cached.
+   public static boolean restore(String key, String... datasetFilenames) throws IOException
+   {
+      File entry = new File(DIRECTORY, key);
+
+      if (!entry.isDirectory())
+      {
+         return(false);
+      }
+      for (String filename : datasetFilenames)
+      {
+         File dir = new File(filename).getAbsoluteFile().getParentFile();
+         for (File file : getDatasetFiles(entry, filename))
+         {
+            Files.copy(file.toPath(), new File(dir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      return(true);
+   }
+
+
+   // Store datasets written since given time in cache.
+   public static void store(String key, long since, String... datasetFilenames) throws IOException
+   {
+      File cache = new File(DIRECTORY);
+      File entry = new File(cache, key);
+
+      if (entry.isDirectory())
+      {
+         return;
+      }
+      if (!cache.isDirectory() && !cache.mkdirs())
+      {
+         throw new IOException("Cannot create dataset cache directory " + DIRECTORY);
+      }
+      File staging = Files.createTempDirectory(cache.toPath(), key + "_").toFile();
+      try
+      {
+         for (String filename : datasetFilenames)
+         {
+            File dir = new File(filename).getAbsoluteFile().getParentFile();
+            for (File file : getDatasetFiles(dir, filename))
+            {
+               // Skip stale files of earlier runs, allowing for coarse modification times.
+               if (file.lastModified() >= (since / 1000) * 1000)
+               {
+                  Files.copy(file.toPath(), new File(staging, file.getName()).toPath());
+               }
+            }
+         }
+
+         // Another run may have completed the entry.
+         if (!staging.renameTo(entry) && !entry.isDirectory())
+         {
+            throw new IOException("Cannot create dataset cache entry " + entry.getPath());
+         }
+      }
+      finally
+      {
+         if (staging.isDirectory())
+         {
+            for (File file : staging.listFiles())
+            {
+               file.delete();
+            }
+            staging.delete();
+         }
+      }
+   }
+
+
+   // Get files of dataset in directory: dataset file, its numpy or compressed data, and shards.
+   private static ArrayList<File> getDatasetFiles(File dir, String filename)
+   {
+      String name = new File(filename).getName();
+
+      if (name.endsWith(".py"))
+      {
+         name = name.substring(0, name.length() - 3);
+      }
+      Pattern         pattern = Pattern.compile(Pattern.quote(name) + "(_[0-9]+)?(\\.py|\\.npz|\\.py\\.gz)");
+      ArrayList<File> files   = new ArrayList<File>();
+      File[]          list    = dir.listFiles();
+      if (list != null)
+      {
+         for (File file : list)
+         {
+            if (file.isFile() && pattern.matcher(file.getName()).matches())
+            {
+               files.add(file);
+            }
+         }
+      }
+      return(files);
+   }
+}
@@ -0,0 +1,219 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset feature codebook.
+// Row blocks are interned as token ids of distinct feature sets: the column
+// indices and values of the nonzero block features. Token 0 is the empty block.
+// Blocks are found by hash in an open addressing table and compared exactly.
+// The codebook is written as CSR arrays: codebook_values, codebook_indices
+// and codebook_indptr, with one row per token.
+
+package mandala;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class DatasetCodebook
+{
+   // Tokens, and their features: values and column indices, starting at offsets.
+   public int      count;
+   private float[] values;
+   private int[]   indices;
+   private int[]   offsets;
+   private int     numFeatures;
+
+   // Hash table of token ids plus one.
+   private int[] slots;
+
+   // Constructor.
+   public DatasetCodebook()
+   {
+      values      = new float[256];
+      indices     = new int[256];
+      offsets     = new int[64];
+      numFeatures = 0;
+      slots       = new int[128];
+      count       = 1;
+   }
+
+
+   // Intern row block, returning its token id.
+   public int intern(float[] row, int offset, int width)
+   {
+      int hash     = 0x9e3779b9;
+      int nonzeros = 0;
+
+      for (int i = 0; i < width; i++)
+      {
+         float value = row[offset + i];
+         if (value != 0.0f)
+         {
+            hash = (hash ^ i) * 0x01000193;
+            hash = (hash ^ Float.floatToIntBits(value)) * 0x01000193;
+            nonzeros++;
+         }
+      }
+      if (nonzeros == 0)
+      {
+         return(0);
+      }
+      hash ^= hash >>> 16;
+      int mask = slots.length - 1;
+      int slot = hash & mask;
+      while (slots[slot] != 0)
+      {
+         if (matches(slots[slot] - 1, row, offset, width, nonzeros))
+         {
+            return(slots[slot] - 1);
+         }
+         slot = (slot + 1) & mask;
+      }
+
+      // Add token.
+      if (count == offsets.length)
+      {
+         offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      if (numFeatures + nonzeros > values.length)
+      {
+         int capacity = Math.max(values.length * 2, numFeatures + nonzeros);
+         values  = Arrays.copyOf(values, capacity);
+         indices = Arrays.copyOf(indices, capacity);
+      }
+      offsets[count] = numFeatures;
+      for (int i = 0; i < width; i++)
+      {
+         if (row[offset + i] != 0.0f)
+         {
+            values[numFeatures]  = row[offset + i];
+            indices[numFeatures] = i;
+            numFeatures++;
+         }
+      }
+      slots[slot] = count + 1;
+      count++;
+      if (count * 2 > slots.length)
+      {
+         rehash();
+      }
+      return(count - 1);
+   }
+
+
+   // Number of token features.
+   private int features(int token)
+   {
+      return((token + 1 < count ? offsets[token + 1] : numFeatures) - offsets[token]);
+   }
+
+
+   // Does token match row block?
+   private boolean matches(int token, float[] row, int offset, int width, int nonzeros)
+   {
+      if (features(token) != nonzeros)
+      {
+         return(false);
+      }
+      for (int i = offsets[token], j = i + nonzeros; i < j; i++)
+      {
+         if ((indices[i] >= width) || (row[offset + indices[i]] != values[i]))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Double hash table.
+   private void rehash()
+   {
+      slots = new int[slots.length * 2];
+      int mask = slots.length - 1;
+      for (int token = 1; token < count; token++)
+      {
+         int hash = 0x9e3779b9;
+         for (int i = offsets[token], j = i + features(token); i < j; i++)
+         {
+            hash = (hash ^ indices[i]) * 0x01000193;
+            hash = (hash ^ Float.floatToIntBits(values[i])) * 0x01000193;
+         }
+         hash ^= hash >>> 16;
+         int slot = hash & mask;
+         while (slots[slot] != 0)
+         {
+            slot = (slot + 1) & mask;
+         }
+         slots[slot] = token + 1;
+      }
+   }
+
+
+   // Save.
+   public void save(DataOutputStream writer) throws IOException
+   {
+      Utility.saveInt(writer, count);
+      Utility.saveInt(writer, numFeatures);
+      for (int i = 1; i < count; i++)
+      {
+         Utility.saveInt(writer, offsets[i]);
+      }
+      for (int i = 0; i < numFeatures; i++)
+      {
+         Utility.saveFloat(writer, values[i]);
+         Utility.saveInt(writer, indices[i]);
+      }
+   }
+
+
+   // Load, replacing tokens.
+   public void load(DataInputStream reader) throws IOException
+   {
+      count       = Utility.loadInt(reader);
+      numFeatures = Utility.loadInt(reader);
+      offsets     = new int[Math.max(64, count)];
+      for (int i = 1; i < count; i++)
+      {
+         offsets[i] = Utility.loadInt(reader);
+      }
+      values  = new float[Math.max(256, numFeatures)];
+      indices = new int[Math.max(256, numFeatures)];
+      for (int i = 0; i < numFeatures; i++)
+      {
+         values[i]  = Utility.loadFloat(reader);
+         indices[i] = Utility.loadInt(reader);
+      }
+      slots = new int[Integer.highestOneBit(Math.max(count, 32)) * 2];
+      rehash();
+   }
+
+
+   // Write codebook CSR arrays, returning their Python text.
+   public String write(NpzWriter npz) throws IOException
+   {
+      long valuesOffset = npz.beginArray("codebook_values", NpzWriter.FLOAT32, new long[] { numFeatures });
+      for (int i = 0; i < numFeatures; i++)
+      {
+         npz.putFloat(values[i]);
+      }
+      npz.endArray();
+      long indicesOffset = npz.beginArray("codebook_indices", NpzWriter.INT32, new long[] { numFeatures });
+      for (int i = 0; i < numFeatures; i++)
+      {
+         npz.putInt(indices[i]);
+      }
+      npz.endArray();
+      long indptrOffset = npz.beginArray("codebook_indptr", NpzWriter.INT32, new long[] { count + 1 });
+      npz.putInt(0);
+      for (int i = 1; i < count; i++)
+      {
+         npz.putInt(offsets[i]);
+      }
+      npz.putInt(numFeatures);
+      npz.endArray();
+      return("codebook_values = _array('" + NpzWriter.FLOAT32 + "', " + valuesOffset + ", (" + numFeatures + ",))\n" +
+             "codebook_indices = _array('" + NpzWriter.INT32 + "', " + indicesOffset + ", (" + numFeatures + ",))\n" +
+             "codebook_indptr = _array('" + NpzWriter.INT32 + "', " + indptrOffset + ", (" + (count + 1) + ",))\n");
+   }
+}
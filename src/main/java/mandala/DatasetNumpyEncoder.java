@@ -0,0 +1,391 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Numpy dataset encoder.
+// Sections are written as arrays of an uncompressed .npz file, and the dataset
+// file becomes a Python module that memory-maps them, with loaders for the
+// encoded formats: sparse arrays are densified from CSR arrays, token arrays
+// expanded by the feature codebook, and packed ternary arrays unpacked.
+
+package mandala;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class DatasetNumpyEncoder
+{
+   // Dataset writer.
+   private DatasetWriter writer;
+
+   // Constructor.
+   public DatasetNumpyEncoder(DatasetWriter writer)
+   {
+      this.writer = writer;
+   }
+
+
+   // Write numpy arrays and the Python module that maps them.
+   // The arrays are memory-mapped, so they cannot be compressed.
+   public void write() throws IOException
+   {
+      if (DatasetWriter.COMPRESSION_LEVEL > 0)
+      {
+         throw new IOException("Dataset compression requires the python format: " + writer.filename);
+      }
+      String    npzFilename = DatasetWriter.getNumpyFilename(writer.filename);
+      NpzWriter npz         = new NpzWriter(npzFilename);
+
+      System.setProperty("line.separator", "\n");
+      PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(writer.filename)));
+      printWriter.println("# Dataset arrays are memory-mapped from " + new File(npzFilename).getName());
+      printWriter.println("import os");
+      printWriter.println("import numpy as np");
+      printWriter.println("_npz = os.path.join(os.path.dirname(os.path.abspath(__file__)), '" + new File(npzFilename).getName() + "')");
+      writeLoaders(npz, printWriter);
+      for (DatasetWriter.Section section : writer.sections)
+      {
+         section.rewind();
+         long offset;
+         switch (section.kind)
+         {
+         case DatasetWriter.FLOAT_ROWS:
+            DatasetWriter.DeduplicationPlan deduplication = writer.deduplication(section);
+            int rows = (deduplication != null ? deduplication.count : section.rows);
+            printWriter.println(section.name + "_shape = [ " + rows + ", " + section.width + " ]");
+            if (section.indices != null)
+            {
+               writeSparse(npz, printWriter, section, new long[] { rows, section.width },
+                           deduplication != null ? DatasetWriter.rowPlan(deduplication) : null);
+            }
+            else
+            {
+               int    columns    = section.spoolWidth();
+               String type       = arrayType(section);
+               String array      = arrayName(section);
+               long[] arrayShape = new long[] { rows, section.packedWidth > 0 ? columns * 4 : columns };
+               offset = npz.beginArray(array, type, arrayShape);
+               if (deduplication != null)
+               {
+                  for (int i = 0; i < rows; i++)
+                  {
+                     if ((i == 0) || (deduplication.rows[i] != deduplication.rows[i - 1] + 1))
+                     {
+                        section.spool.seek((long)deduplication.rows[i] * columns);
+                     }
+                     section.spool.transferTo(npz, columns);
+                  }
+               }
+               else
+               {
+                  section.spool.transferTo(npz, (long)rows * columns);
+               }
+               npz.endArray();
+               printWriter.println(array + " = _array('" + type + "', " + offset + ", (" + dimensions(arrayShape) + "))");
+               printWriter.print(decodeText(section, array, new long[] { rows, section.width }));
+            }
+            if (section.weighted)
+            {
+               offset = npz.beginArray(section.name + "_weights", NpzWriter.INT32, new long[] { rows });
+               for (int i = 0; i < rows; i++)
+               {
+                  npz.putInt(deduplication.weights[i]);
+               }
+               npz.endArray();
+               printWriter.println(section.name + "_weights = _array('" + NpzWriter.INT32 + "', " + offset + ", (" + rows + ",))");
+            }
+            break;
+
+         case DatasetWriter.FLOAT_SEQUENCES:
+            DatasetWriter.SequencePlan plan = writer.plan(section);
+            long[] shape;
+            if (DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.PADDED_SEQUENCES))
+            {
+               shape = new long[] { plan.count, plan.maxLength, section.width };
+            }
+            else
+            {
+               shape = new long[] { plan.rows, section.width };
+            }
+            printWriter.println(section.name + "_shape = [ " + plan.count + ", " + plan.maxLength + ", " + section.width + " ]");
+            printWriter.print(DatasetPythonEncoder.layoutText(section, plan));
+            if (section.indices != null)
+            {
+               writeSparse(npz, printWriter, section, shape, plan);
+               break;
+            }
+            int    columns    = section.spoolWidth();
+            String type       = arrayType(section);
+            String array      = arrayName(section);
+            long[] arrayShape = shape.clone();
+            arrayShape[shape.length - 1] = (section.packedWidth > 0 ? columns * 4 : columns);
+            offset = npz.beginArray(array, type, arrayShape);
+            for (int i = 0; i < plan.count; i++)
+            {
+               int s = plan.order[i];
+               if (plan.reordered)
+               {
+                  section.spool.seek(plan.starts[s] * columns);
+               }
+               section.spool.transferTo(npz, (long)plan.lengths[s] * columns);
+               npz.putZeros((long)(plan.padded[i] - plan.lengths[s]) * columns * 4);
+            }
+            npz.endArray();
+            printWriter.println(array + " = _array('" + type + "', " + offset + ", (" + dimensions(arrayShape) + "))");
+            printWriter.print(decodeText(section, array, shape));
+            break;
+
+         case DatasetWriter.INT_LIST:
+            offset = npz.beginArray(section.name, NpzWriter.INT32, new long[] { section.rows });
+            int[] positions = writer.basePositions(section);
+            if (positions != null)
+            {
+               for (int i = 0; i < section.rows; i++)
+               {
+                  npz.putInt(positions[section.spool.getInt()]);
+               }
+            }
+            else
+            {
+               section.spool.transferTo(npz, section.rows);
+            }
+            npz.endArray();
+            printWriter.println(section.name + " = _array('" + NpzWriter.INT32 + "', " + offset + ", (" + section.rows + ",))");
+            break;
+
+         case DatasetWriter.INT_LISTS:
+            offset = npz.beginArray(section.name, NpzWriter.INT32, new long[] { section.rows });
+            section.spool.transferTo(npz, section.rows);
+            npz.endArray();
+            long lengthsOffset = npz.beginArray(section.name + "_lengths", NpzWriter.INT32, new long[] { section.numLengths });
+            for (int i = 0; i < section.numLengths; i++)
+            {
+               npz.putInt(section.lengths[i]);
+            }
+            npz.endArray();
+            printWriter.println(section.name + " = _lists(_array('" + NpzWriter.INT32 + "', " + offset + ", (" + section.rows + ",)), " +
+                                "_array('" + NpzWriter.INT32 + "', " + lengthsOffset + ", (" + section.numLengths + ",)))");
+            break;
+
+         case DatasetWriter.TEXT:
+            printWriter.print(section.text);
+            break;
+         }
+      }
+      npz.close();
+      printWriter.close();
+      if (printWriter.checkError())
+      {
+         throw new IOException("Error writing " + writer.filename);
+      }
+   }
+
+
+   // Write loaders: memory-mapped arrays and lists, and the decoders of the format's
+   // sparse, token or packed arrays. The token format codebook arrays are written
+   // before the sections, for expanding token arrays on load.
+   private void writeLoaders(NpzWriter npz, PrintWriter printWriter) throws IOException
+   {
+      printWriter.println("def _array(dtype, offset, shape):");
+      printWriter.println("    if 0 in shape:");
+      printWriter.println("        return np.zeros(shape, dtype=dtype)");
+      printWriter.println("    return np.memmap(_npz, dtype=dtype, mode='r', offset=offset, shape=shape)");
+      printWriter.println("def _lists(values, lengths):");
+      printWriter.println("    offsets = np.concatenate(([0], np.cumsum(lengths)))");
+      printWriter.println("    return [values[offsets[i]:offsets[i + 1]] for i in range(len(lengths))]");
+      if (writer.format.equals(DatasetWriter.SPARSE_FORMAT))
+      {
+         printWriter.println("def _dense(data, indices, indptr, shape):");
+         printWriter.println("    dense = np.zeros((len(indptr) - 1, shape[-1]), dtype=np.float32)");
+         printWriter.println("    dense[np.repeat(np.arange(len(indptr) - 1), np.diff(indptr)), indices] = data");
+         printWriter.println("    return dense.reshape(shape)");
+      }
+      if (writer.format.equals(DatasetWriter.TOKEN_FORMAT))
+      {
+         printWriter.println("def _expand(tokens, width, shape):");
+         printWriter.println("    ids = np.asarray(tokens, dtype=np.int64).reshape(-1)");
+         printWriter.println("    counts = np.diff(codebook_indptr)[ids]");
+         printWriter.println("    blocks = np.repeat(np.arange(len(ids)), counts)");
+         printWriter.println("    features = np.repeat(codebook_indptr[ids] - np.cumsum(counts) + counts, counts) + np.arange(len(blocks))");
+         printWriter.println("    dense = np.zeros((len(ids), width), dtype=np.float32)");
+         printWriter.println("    dense[blocks, codebook_indices[features]] = codebook_values[features]");
+         printWriter.println("    return dense.reshape(shape)");
+         printWriter.print(writer.codebook.write(npz));
+      }
+      if (writer.format.equals(DatasetWriter.TERNARY_FORMAT))
+      {
+         printWriter.println("_ternary = np.array([0.0, 1.0, -1.0, 0.0], dtype=np.float32)");
+         printWriter.println("def _unpack(packed, shape):");
+         printWriter.println("    codes = (np.asarray(packed)[..., np.newaxis] >> np.array([0, 2, 4, 6], dtype=np.uint8)) & 3");
+         printWriter.println("    codes = codes.reshape(codes.shape[:-2] + (-1,))[..., :shape[-1]]");
+         printWriter.println("    return _ternary[codes].reshape(shape)");
+      }
+   }
+
+
+   // Write sparse float section as CSR arrays: <name>_data, <name>_indices and <name>_indptr.
+   // Sequences are rows of the planned sequence layout, with padding rows empty.
+   private void writeSparse(NpzWriter npz, PrintWriter printWriter, DatasetWriter.Section section, long[] shape, DatasetWriter.SequencePlan plan) throws IOException
+   {
+      long rows     = 1;
+      long nonzeros = section.nonzeros;
+
+      for (int i = 0; i < shape.length - 1; i++)
+      {
+         rows *= shape[i];
+      }
+
+      // Reordered sequences and windows need row counts and nonzero offsets up front.
+      int[]  rowCounts = null;
+      long[] rowStarts = null;
+      if ((plan != null) && plan.reordered)
+      {
+         int sequenceRows = (section.kind == DatasetWriter.FLOAT_ROWS ? section.rows : (int)section.sequenceOffsets()[section.numLengths]);
+         rowCounts = new int[sequenceRows];
+         rowStarts = new long[sequenceRows + 1];
+         for (int r = 0; r < sequenceRows; r++)
+         {
+            rowCounts[r]     = section.counts.getInt();
+            rowStarts[r + 1] = rowStarts[r] + rowCounts[r];
+         }
+         nonzeros = 0;
+         for (int i = 0; i < plan.count; i++)
+         {
+            nonzeros += rowStarts[(int)plan.starts[i] + plan.lengths[i]] - rowStarts[(int)plan.starts[i]];
+         }
+      }
+      if (nonzeros > Integer.MAX_VALUE)
+      {
+         throw new IOException("Too many nonzero values in " + section.name);
+      }
+      long dataOffset = npz.beginArray(section.name + "_data", NpzWriter.FLOAT32, new long[] { nonzeros });
+      transferSparse(npz, section, section.spool, plan, rowStarts);
+      npz.endArray();
+      long indicesOffset = npz.beginArray(section.name + "_indices", NpzWriter.INT32, new long[] { nonzeros });
+      transferSparse(npz, section, section.indices, plan, rowStarts);
+      npz.endArray();
+      long indptrOffset = npz.beginArray(section.name + "_indptr", NpzWriter.INT32, new long[] { rows + 1 });
+      int  indptr       = 0;
+      npz.putInt(indptr);
+      if (plan != null)
+      {
+         for (int i = 0; i < plan.count; i++)
+         {
+            int s = plan.order[i];
+            for (int j = 0; j < plan.padded[i]; j++)
+            {
+               if (j < plan.lengths[s])
+               {
+                  if (rowCounts != null)
+                  {
+                     indptr += rowCounts[(int)plan.starts[s] + j];
+                  }
+                  else
+                  {
+                     indptr += section.counts.getInt();
+                  }
+               }
+               npz.putInt(indptr);
+            }
+         }
+      }
+      else
+      {
+         for (int i = 0; i < section.rows; i++)
+         {
+            indptr += section.counts.getInt();
+            npz.putInt(indptr);
+         }
+      }
+      npz.endArray();
+
+      String dims = dimensions(shape);
+      printWriter.println(section.name + "_csr = (_array('" + NpzWriter.FLOAT32 + "', " + dataOffset + ", (" + nonzeros + ",)), " +
+                          "_array('" + NpzWriter.INT32 + "', " + indicesOffset + ", (" + nonzeros + ",)), " +
+                          "_array('" + NpzWriter.INT32 + "', " + indptrOffset + ", (" + (rows + 1) + ",)), (" + dims + "))");
+      printWriter.println(section.name + " = _dense(*" + section.name + "_csr)");
+   }
+
+
+   // Transfer sparse values in planned sequence order.
+   // Contiguous sequences are read without seeking.
+   private void transferSparse(NpzWriter npz, DatasetWriter.Section section, DatasetSpool spool, DatasetWriter.SequencePlan plan, long[] rowStarts) throws IOException
+   {
+      if (rowStarts == null)
+      {
+         spool.transferTo(npz, section.nonzeros);
+         return;
+      }
+      long position = -1;
+      for (int i = 0; i < plan.count; i++)
+      {
+         int  s     = plan.order[i];
+         long start = rowStarts[(int)plan.starts[s]];
+         long end   = rowStarts[(int)plan.starts[s] + plan.lengths[s]];
+         if (start != position)
+         {
+            spool.seek(start);
+         }
+         spool.transferTo(npz, end - start);
+         position = end;
+      }
+   }
+
+
+   // Numpy array type and name of float section spool values.
+   private static String arrayType(DatasetWriter.Section section)
+   {
+      if (section.tokens > 0)
+      {
+         return(NpzWriter.INT32);
+      }
+      if (section.packedWidth > 0)
+      {
+         return(NpzWriter.UINT8);
+      }
+      return(NpzWriter.FLOAT32);
+   }
+
+
+   private static String arrayName(DatasetWriter.Section section)
+   {
+      if (section.tokens > 0)
+      {
+         return(section.name + "_tokens");
+      }
+      if (section.packedWidth > 0)
+      {
+         return(section.name + "_packed");
+      }
+      return(section.name);
+   }
+
+
+   // Python text decoding float section of given shape from its token or packed array.
+   private static String decodeText(DatasetWriter.Section section, String array, long[] shape)
+   {
+      if (section.tokens > 0)
+      {
+         return(section.name + " = _expand(" + array + ", " + section.tokenWidth + ", (" + dimensions(shape) + "))\n");
+      }
+      if (section.packedWidth > 0)
+      {
+         return(section.name + " = _unpack(" + array + ", (" + dimensions(shape) + "))\n");
+      }
+      return("");
+   }
+
+
+   // Dimensions text.
+   private static String dimensions(long[] shape)
+   {
+      String dims = "";
+
+      for (int i = 0; i < shape.length; i++)
+      {
+         dims += shape[i] + (i < shape.length - 1 ? ", " : "");
+      }
+      return(dims);
+   }
+}
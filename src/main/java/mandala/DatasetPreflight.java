@@ -0,0 +1,149 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset size preflight.
+// Row counts and path lengths are computed from the causation paths and the
+// test interleaving draws, without generating rows. Spool and dataset file sizes
+// are estimated from them. Sparse sizes count active features only. Token sizes
+// count one token per terminal block, excluding the codebook. Ternary sizes count
+// 2 bits per value. Automatic spooling is in memory when the spools fit in the
+// available heap.
+
+package mandala;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+public class DatasetPreflight
+{
+   // Fraction of available heap usable by memory spools.
+   public static float MEMORY_FRACTION = 0.5f;
+
+   // Rows, sequences and paths.
+   public long trainRows;
+   public long testRows;
+   public int  trainSequences;
+   public int  testSequences;
+   public int  maxTiers;
+   public int  maxPathLength;
+
+   // Estimated bytes: spools, and dataset files by format.
+   public long spoolBytes;
+   public long pythonBytes;
+   public long numpyBytes;
+   public long sparseBytes;
+   public long tokenBytes;
+   public long ternaryBytes;
+
+   // Available heap bytes and memory spooling.
+   public long    availableHeap;
+   public boolean memory;
+
+   // Preflight datasets, choosing memory spooling when automatic.
+   public DatasetPreflight(boolean NN, boolean RNN, float trainFraction, int randomSeed)
+   {
+      int trainPaths = (int)((float)Mandala.NUM_CAUSATION_PATHS * trainFraction);
+
+      maxTiers      = Mandala.getMaxTiers();
+      maxPathLength = 0;
+      for (int i = 0; i < Mandala.NUM_CAUSATION_HIERARCHIES; i++)
+      {
+         ArrayList<Mandala.CausationPath> paths = Mandala.causationPaths.get(i);
+         for (int j = 0; j < trainPaths; j++)
+         {
+            int length = paths.get(j).steps.size() - 1;
+            trainRows    += length;
+            maxPathLength = Math.max(maxPathLength, length);
+         }
+      }
+      trainSequences = Mandala.NUM_CAUSATION_HIERARCHIES * trainPaths;
+
+      // Replay the test interleaving draws untraced.
+      Mandala.DatasetGenerator generator = new Mandala.DatasetGenerator(maxTiers, false, null);
+      SplittableRandom         random    = new SplittableRandom(randomSeed);
+      boolean                  verbose   = Mandala.VERBOSE;
+      Mandala.VERBOSE = false;
+      for (int i = trainPaths; i < Mandala.NUM_CAUSATION_PATHS; i++)
+      {
+         int length = generator.testPath(i, new Mandala.PathDraws(random), null);
+         testRows     += length;
+         maxPathLength = Math.max(maxPathLength, length);
+      }
+      Mandala.VERBOSE = verbose;
+      testSequences   = Mandala.NUM_CAUSATION_PATHS - trainPaths;
+
+      // Dense values, sparse nonzero values and rows, tokens, and integers of spools and files.
+      long width    = (long)maxTiers * Mandala.NUM_DIMENSIONS;
+      long dense    = 0;
+      long nonzeros = 0;
+      long rows     = 0;
+      long tokens   = 0;
+      long ints     = 0;
+      long padded   = 0;
+      if (NN)
+      {
+         dense    += trainRows * (2 * width + Mandala.NUM_DIMENSIONS + Mandala.PredictionSignatureLength) + testRows * 2 * width;
+         nonzeros += trainRows * (2 * maxTiers * Mandala.NUM_FEATURES + Mandala.NUM_FEATURES + Mandala.PredictionSignatureLength) +
+                     testRows * 2 * Mandala.NUM_FEATURES;
+         rows   += trainRows * 4 + testRows * 2;
+         tokens += trainRows * (2 * maxTiers + 2) + testRows * 2 * maxTiers;
+         ints   += trainSequences + testSequences + testRows;
+      }
+      if (RNN)
+      {
+         dense    += (trainRows + testRows) * 2 * Mandala.NUM_DIMENSIONS;
+         nonzeros += (trainRows + testRows) * 2 * Mandala.NUM_FEATURES;
+         rows     += (trainRows + testRows) * 2;
+         tokens   += (trainRows + testRows) * 2;
+         ints     += testRows;
+         if (DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.PADDED_SEQUENCES))
+         {
+            padded = (long)(trainSequences + testSequences) * maxPathLength * 2 * Mandala.NUM_DIMENSIONS - (trainRows + testRows) * 2 * Mandala.NUM_DIMENSIONS;
+         }
+      }
+      pythonBytes  = (dense + padded) * 4 + ints * 6;
+      numpyBytes   = (dense + padded + ints) * 4;
+      sparseBytes  = (nonzeros * 2 + rows + padded / Math.max(Mandala.NUM_DIMENSIONS, 1) + ints) * 4;
+      tokenBytes   = (tokens + padded / Math.max(Mandala.NUM_DIMENSIONS, 1) + ints) * 4;
+      ternaryBytes = (dense + padded) / 4 + ints * 4;
+      if (Mandala.DATASET_FORMAT.equals(DatasetWriter.SPARSE_FORMAT))
+      {
+         spoolBytes = (nonzeros * 2 + rows + ints) * 4;
+      }
+      else if (Mandala.DATASET_FORMAT.equals(DatasetWriter.TOKEN_FORMAT))
+      {
+         spoolBytes = (tokens + ints) * 4;
+      }
+      else if (Mandala.DATASET_FORMAT.equals(DatasetWriter.TERNARY_FORMAT))
+      {
+         spoolBytes = dense / 4 + ints * 4;
+      }
+      else
+      {
+         spoolBytes = (dense + ints) * 4;
+      }
+
+      Runtime runtime = Runtime.getRuntime();
+      availableHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+      if (DatasetWriter.SPOOLING.equals(DatasetWriter.AUTO_SPOOLING))
+      {
+         memory = !DatasetWriter.MAPPED_SPOOLS && (spoolBytes <= (long)((double)availableHeap * MEMORY_FRACTION));
+      }
+      else
+      {
+         memory = DatasetWriter.SPOOLING.equals(DatasetWriter.MEMORY_SPOOLING);
+      }
+   }
+
+
+   // Print preflight.
+   public void print()
+   {
+      System.out.println("Dataset preflight:");
+      System.out.println("train rows=" + trainRows + ", sequences=" + trainSequences);
+      System.out.println("test rows=" + testRows + ", sequences=" + testSequences);
+      System.out.println("maxTiers=" + maxTiers + ", maxPathLength=" + maxPathLength);
+      System.out.println("estimated bytes: python=" + pythonBytes + ", numpy=" + numpyBytes + ", sparse=" + sparseBytes + ", token=" + tokenBytes + ", ternary=" + ternaryBytes);
+      System.out.println("estimated spool bytes=" + spoolBytes + ", available heap bytes=" + availableHeap +
+                         ", spooling=" + (memory ? DatasetWriter.MEMORY_SPOOLING : DatasetWriter.FILE_SPOOLING));
+   }
+}
@@ -0,0 +1,277 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Python dataset encoder.
+// Sections are written as Python lists by a byte table text writer, as
+// plain text, or as gzip text by a compression thread, with the dataset file
+// becoming a Python module that decompresses and runs it.
+
+package mandala;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class DatasetPythonEncoder
+{
+   // Dataset writer.
+   private DatasetWriter writer;
+
+   // Constructor.
+   public DatasetPythonEncoder(DatasetWriter writer)
+   {
+      this.writer = writer;
+   }
+
+
+   // Write Python dataset.
+   public void write() throws IOException
+   {
+      if (DatasetWriter.COMPRESSION_LEVEL > 0)
+      {
+         String compressedFilename = DatasetWriter.getCompressedFilename(writer.filename);
+         System.setProperty("line.separator", "\n");
+         PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(writer.filename)));
+         printWriter.println("# Dataset is gzip-compressed in " + new File(compressedFilename).getName());
+         printWriter.println("import gzip");
+         printWriter.println("import os");
+         printWriter.println("with gzip.open(os.path.join(os.path.dirname(os.path.abspath(__file__)), '" +
+                             new File(compressedFilename).getName() + "'), 'rt') as _file:");
+         printWriter.println("    exec(_file.read())");
+         printWriter.close();
+         if (printWriter.checkError())
+         {
+            throw new IOException("Error writing " + writer.filename);
+         }
+      }
+      TextChannelWriter textWriter;
+      if (DatasetWriter.COMPRESSION_LEVEL > 0)
+      {
+         textWriter = new TextChannelWriter(DatasetWriter.getCompressedFilename(writer.filename), DatasetWriter.COMPRESSION_LEVEL);
+      }
+      else
+      {
+         textWriter = new TextChannelWriter(writer.filename);
+      }
+
+      try
+      {
+         for (DatasetWriter.Section section : writer.sections)
+         {
+            section.rewind();
+            switch (section.kind)
+            {
+            case DatasetWriter.FLOAT_ROWS:
+               writeRows(textWriter, section);
+               break;
+
+            case DatasetWriter.FLOAT_SEQUENCES:
+               writeSequences(textWriter, section);
+               break;
+
+            case DatasetWriter.INT_LIST:
+               writeIntList(textWriter, section);
+               break;
+
+            case DatasetWriter.INT_LISTS:
+               writeIntLists(textWriter, section);
+               break;
+
+            case DatasetWriter.TEXT:
+               textWriter.print(section.text);
+               break;
+            }
+         }
+      }
+      finally
+      {
+         textWriter.close();
+      }
+   }
+
+
+   private void writeRows(TextChannelWriter textWriter, DatasetWriter.Section section) throws IOException
+   {
+      DatasetWriter.DeduplicationPlan deduplication = writer.deduplication(section);
+      int                             rows          = (deduplication != null ? deduplication.count : section.rows);
+
+      textWriter.println(section.name + "_shape = [ " + rows + ", " + section.width + " ]");
+      textWriter.println(section.name + " = [");
+      for (int i = 0, j = rows; i < j; i++)
+      {
+         if ((deduplication != null) && ((i == 0) || (deduplication.rows[i] != deduplication.rows[i - 1] + 1)))
+         {
+            section.spool.seek((long)deduplication.rows[i] * section.width);
+         }
+         for (int k = 0, q = section.width; k < q; k++)
+         {
+            textWriter.print(section.spool.getFloat());
+            if ((i != j - 1) || (k != q - 1))
+            {
+               textWriter.print(',');
+            }
+         }
+         textWriter.println();
+      }
+      textWriter.println("]");
+      if (section.weighted)
+      {
+         textWriter.print(section.name + "_weights = [");
+         for (int i = 0; i < rows; i++)
+         {
+            textWriter.print(deduplication.weights[i]);
+            if (i < rows - 1)
+            {
+               textWriter.print(',');
+            }
+         }
+         textWriter.println("]");
+      }
+   }
+
+
+   private void writeSequences(TextChannelWriter textWriter, DatasetWriter.Section section) throws IOException
+   {
+      DatasetWriter.SequencePlan plan = writer.plan(section);
+
+      textWriter.println(section.name + "_shape = [ " + plan.count + ", " + plan.maxLength + ", " + section.width + " ]");
+      textWriter.print(layoutText(section, plan));
+      textWriter.println(section.name + " = [");
+      for (int i = 0, j = plan.count; i < j; i++)
+      {
+         int s = plan.order[i];
+         if (plan.reordered)
+         {
+            section.spool.seek(plan.starts[s] * section.width);
+         }
+         for (int k = 0, p = plan.lengths[s] * section.width, q = (plan.padded[i] * section.width); k < q; k++)
+         {
+            if (k < p)
+            {
+               textWriter.print(section.spool.getFloat());
+            }
+            else
+            {
+               textWriter.print(0.0f);
+            }
+            if ((i != j - 1) || (k != q - 1))
+            {
+               textWriter.print(',');
+            }
+         }
+         textWriter.println();
+      }
+      textWriter.println("]");
+   }
+
+
+   private void writeIntList(TextChannelWriter textWriter, DatasetWriter.Section section) throws IOException
+   {
+      int[] positions = writer.basePositions(section);
+
+      textWriter.print(section.name + " = [");
+      for (int i = 0, j = section.rows; i < j; i++)
+      {
+         int value = section.spool.getInt();
+         textWriter.print(positions != null ? positions[value] : value);
+         if (i < j - 1)
+         {
+            textWriter.print(',');
+         }
+      }
+      textWriter.println("]");
+   }
+
+
+   private void writeIntLists(TextChannelWriter textWriter, DatasetWriter.Section section) throws IOException
+   {
+      textWriter.println(section.name + " = [");
+      for (int i = 0, j = section.numLengths; i < j; i++)
+      {
+         textWriter.print('[');
+         for (int k = 0, q = section.lengths[i]; k < q; k++)
+         {
+            textWriter.print(section.spool.getInt());
+            if (k != q - 1)
+            {
+               textWriter.print(',');
+            }
+         }
+         textWriter.print(']');
+         if (i < j - 1)
+         {
+            textWriter.print(',');
+         }
+         textWriter.println();
+      }
+      textWriter.println("]");
+   }
+
+
+   // Sequence layout description: layout, lengths, buckets of sequence indexes with padded lengths,
+   // and windows with their sequences, starting steps and carry-state markers.
+   // Empty for whole padded sequences.
+   static String layoutText(DatasetWriter.Section section, DatasetWriter.SequencePlan plan)
+   {
+      if (DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.PADDED_SEQUENCES) && (plan.windowSequences == null))
+      {
+         return("");
+      }
+      StringBuilder text = new StringBuilder();
+      text.append(section.name + "_layout = '" + DatasetWriter.SEQUENCE_LAYOUT + "'\n");
+      text.append(section.name + "_lengths = [");
+      for (int i = 0; i < plan.count; i++)
+      {
+         text.append(i > 0 ? "," : "").append(plan.lengths[i]);
+      }
+      text.append("]\n");
+      if (DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.BUCKETED_SEQUENCES))
+      {
+         text.append(section.name + "_buckets = [");
+         for (int b = 0; b < plan.bucketStarts.length - 1; b++)
+         {
+            text.append(b > 0 ? "," : "").append("[");
+            for (int i = plan.bucketStarts[b]; i < plan.bucketStarts[b + 1]; i++)
+            {
+               text.append(i > plan.bucketStarts[b] ? "," : "").append(plan.order[i]);
+            }
+            text.append("]");
+         }
+         text.append("]\n");
+         text.append(section.name + "_bucket_lengths = [");
+         for (int b = 0; b < plan.bucketStarts.length - 1; b++)
+         {
+            int start = plan.bucketStarts[b];
+            text.append(b > 0 ? "," : "").append(start < plan.bucketStarts[b + 1] ? plan.padded[start] : 0);
+         }
+         text.append("]\n");
+      }
+      if (plan.windowSequences != null)
+      {
+         // A window carries state when it directly continues the previous window of its sequence.
+         int stride = DatasetWriter.sequenceStride();
+         text.append(section.name + "_window = " + DatasetWriter.SEQUENCE_WINDOW + "\n");
+         text.append(section.name + "_stride = " + stride + "\n");
+         text.append(section.name + "_window_sequences = [");
+         for (int i = 0; i < plan.count; i++)
+         {
+            text.append(i > 0 ? "," : "").append(plan.windowSequences[i]);
+         }
+         text.append("]\n");
+         text.append(section.name + "_window_starts = [");
+         for (int i = 0; i < plan.count; i++)
+         {
+            text.append(i > 0 ? "," : "").append(plan.windowStarts[i]);
+         }
+         text.append("]\n");
+         text.append(section.name + "_window_carry = [");
+         for (int i = 0; i < plan.count; i++)
+         {
+            text.append(i > 0 ? "," : "").append(((plan.windowStarts[i] > 0) && (stride == DatasetWriter.SEQUENCE_WINDOW)) ? 1 : 0);
+         }
+         text.append("]\n");
+      }
+      return(text.toString());
+   }
+}
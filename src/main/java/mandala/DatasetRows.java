@@ -0,0 +1,57 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset row assembly over primitive float arrays.
+// Loops are kept simple and counted so that the JIT can vectorize them.
+
+package mandala;
+
+import java.util.Arrays;
+import java.util.List;
+
+public abstract class DatasetRows
+{
+   // Clear a row segment.
+   public static void clear(float[] row, int offset, int length)
+   {
+      Arrays.fill(row, offset, offset + length, 0.0f);
+   }
+
+
+   // Scatter features into a cleared row segment.
+   public static void scatter(float[] row, int offset, int length, List<Integer> features, float value)
+   {
+      clear(row, offset, length);
+      for (int i = 0, j = features.size(); i < j; i++)
+      {
+         row[offset + features.get(i)] = value;
+      }
+   }
+
+
+   // One-hot encode features into a row segment.
+   public static void oneHot(float[] row, int offset, int length, List<Integer> features)
+   {
+      scatter(row, offset, length, features, 1.0f);
+   }
+
+
+   // Copy a row segment.
+   public static void copy(float[] src, int srcOffset, float[] dst, int dstOffset, int length)
+   {
+      System.arraycopy(src, srcOffset, dst, dstOffset, length);
+   }
+
+
+   // Subtract a row segment in place: dst[i] -= src[i].
+   public static void subtract(float[] dst, int dstOffset, float[] src, int srcOffset, int length)
+   {
+      for (int i = 0; i < length; i++)
+      {
+         dst[dstOffset + i] -= src[srcOffset + i];
+      }
+   }
+
+
+   // Prevent instantiation.
+   private DatasetRows() {}
+}
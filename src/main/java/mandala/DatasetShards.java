@@ -0,0 +1,356 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset shards.
+// The shard writers of a sharded dataset writer are assembled concurrently,
+// and the dataset file becomes a manifest of shard files, paths, section shapes,
+// row ranges and checksums. The manifest also presents the concatenated shard
+// sections, so the learners import it as an unsharded dataset.
+
+package mandala;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+public class DatasetShards
+{
+   // Sharded dataset writer.
+   private DatasetWriter writer;
+
+   // Manifest concatenation of shard sections, loaded on first use of a dataset name.
+   // Sequences are decoded from their shard layouts and laid out again over all shards.
+   private static final String[] MANIFEST_MERGE =
+   {
+      "_merged = None",
+      "def _blocks(values, width):",
+      "    if isinstance(values, list):",
+      "        return [[values[i:i + width] for i in range(0, len(values), width)]]",
+      "    return [np.asarray(values).reshape(-1, width)]",
+      "def _join(blocks, shape, width, python):",
+      "    if python:",
+      "        return [value for block in blocks for row in block for value in row]",
+      "    return np.concatenate([np.asarray(block, dtype=np.float32).reshape(-1, width) for block in blocks]).reshape(shape)",
+      "def _units(module, name, width):",
+      "    shape = getattr(module, name + '_shape')",
+      "    layout = getattr(module, name + '_layout', 'padded')",
+      "    lengths = [int(length) for length in getattr(module, name + '_lengths', [shape[1]] * shape[0])]",
+      "    if layout == 'bucketed':",
+      "        groups = getattr(module, name + '_buckets')",
+      "        padded = getattr(module, name + '_bucket_lengths')",
+      "    elif layout == 'padded':",
+      "        groups = [range(shape[0])]",
+      "        padded = [shape[1]]",
+      "    else:",
+      "        groups = [[i] for i in range(len(lengths))]",
+      "        padded = lengths",
+      "    rows = _blocks(getattr(module, name), width)[0]",
+      "    units = [None] * len(lengths)",
+      "    row = 0",
+      "    for group, length in zip(groups, padded):",
+      "        for i in group:",
+      "            units[i] = rows[row:row + lengths[i]]",
+      "            row += length",
+      "    return units, lengths",
+      "def _merge_sequences(merged, modules, name, width):",
+      "    layout = getattr(modules[0], name + '_layout', 'padded')",
+      "    windowed = hasattr(modules[0], name + '_window')",
+      "    python = isinstance(getattr(modules[0], name), list)",
+      "    units = []",
+      "    lengths = []",
+      "    length = 0",
+      "    for module in modules:",
+      "        shard_units, shard_lengths = _units(module, name, width)",
+      "        units += shard_units",
+      "        lengths += shard_lengths",
+      "        length = max(length, getattr(module, name + '_shape')[1])",
+      "    n = len(units)",
+      "    if layout == 'bucketed':",
+      "        groups = [[]]",
+      "        padded = [0]",
+      "        if n > 0:",
+      "            ranks = sorted(range(n), key=lambda i: lengths[i])",
+      "            count = min(_sequence_buckets, n)",
+      "            groups = [sorted(ranks[b * n // count:(b + 1) * n // count]) for b in range(count)]",
+      "            padded = [max([lengths[i] for i in group]) for group in groups]",
+      "    elif layout == 'ragged':",
+      "        groups = [[i] for i in range(n)]",
+      "        padded = lengths",
+      "    else:",
+      "        groups = [range(n)]",
+      "        padded = [length]",
+      "    blocks = []",
+      "    for group, pad in zip(groups, padded):",
+      "        for i in group:",
+      "            blocks.append(units[i])",
+      "            blocks.append([[0.0] * width] * (pad - lengths[i]) if python else np.zeros((pad - lengths[i], width), dtype=np.float32))",
+      "    merged[name + '_shape'] = [n, length, width]",
+      "    if (layout != 'padded') or windowed:",
+      "        merged[name + '_layout'] = layout",
+      "        merged[name + '_lengths'] = lengths",
+      "    if layout == 'bucketed':",
+      "        merged[name + '_buckets'] = [list(group) for group in groups]",
+      "        merged[name + '_bucket_lengths'] = padded",
+      "    if windowed:",
+      "        merged[name + '_window'] = getattr(modules[0], name + '_window')",
+      "        merged[name + '_stride'] = getattr(modules[0], name + '_stride')",
+      "        merged[name + '_window_sequences'] = [int(sequence) + shard['sections'][name]['rows'][0] for shard, module in zip(shards, modules) for sequence in getattr(module, name + '_window_sequences')]",
+      "        for suffix in ('_window_starts', '_window_carry'):",
+      "            merged[name + suffix] = [int(value) for module in modules for value in getattr(module, name + suffix)]",
+      "    merged[name] = _join(blocks, (n, length, width) if layout == 'padded' else (-1, width), width, python)",
+      "def _merge():",
+      "    merged = {}",
+      "    modules = [load_shard(i) for i in range(len(shards))]",
+      "    for name, kind, width, base in _sections:",
+      "        if kind == 'rows':",
+      "            count = sum([getattr(module, name + '_shape')[0] for module in modules])",
+      "            merged[name + '_shape'] = [count, width]",
+      "            python = isinstance(getattr(modules[0], name), list)",
+      "            merged[name] = _join([block for module in modules for block in _blocks(getattr(module, name), width)], (count, width), width, python)",
+      "            if hasattr(modules[0], name + '_weights'):",
+      "                merged[name + '_weights'] = [int(weight) for module in modules for weight in getattr(module, name + '_weights')]",
+      "        elif kind == 'sequences':",
+      "            _merge_sequences(merged, modules, name, width)",
+      "        elif kind == 'index':",
+      "            merged[name] = [int(index) + shard['sections'][base]['rows'][0] for shard, module in zip(shards, modules) for index in getattr(module, name)]",
+      "        else:",
+      "            merged[name] = [value for module in modules for value in getattr(module, name)]",
+      "    for name, value in vars(modules[0]).items():",
+      "        if not (name.startswith('_') or name in merged or callable(value) or isinstance(value, type(os)) or",
+      "                any([name.startswith(section[0] + '_') for section in _sections])):",
+      "            merged[name] = value",
+      "    return merged",
+      "def __getattr__(name):",
+      "    global _merged",
+      "    if _merged is None:",
+      "        _merged = _merge()",
+      "    if name not in _merged:",
+      "        raise AttributeError(name)",
+      "    return _merged[name]"
+   };
+
+   // Constructor.
+   public DatasetShards(DatasetWriter writer)
+   {
+      this.writer = writer;
+   }
+
+
+   // Assemble shard files and write the manifest.
+   public void close() throws IOException
+   {
+      assemble();
+      writeManifest();
+   }
+
+
+   // Assemble shards on SHARD_THREADS threads.
+   private void assemble() throws IOException
+   {
+      ExecutorService              executor = Executors.newFixedThreadPool(Math.max(1, Math.min(DatasetWriter.SHARD_THREADS, writer.shards.size())));
+      ArrayList < Future < Void >> futures  = new ArrayList < Future < Void >> ();
+
+      try
+      {
+         for (final DatasetWriter shard : writer.shards)
+         {
+            futures.add(executor.submit(new Callable<Void>()
+                                        {
+                                           public Void call() throws IOException
+                                           {
+                                              shard.close();
+                                              return(null);
+                                           }
+                                        }));
+         }
+         for (Future<Void> future : futures)
+         {
+            try
+            {
+               future.get();
+            }
+            catch (ExecutionException e)
+            {
+               if (e.getCause() instanceof IOException)
+               {
+                  throw (IOException)e.getCause();
+               }
+               throw new IOException("Cannot write shard of " + writer.filename, e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+               throw new IOException("Interrupted writing shards of " + writer.filename);
+            }
+         }
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+   }
+
+
+   // Write manifest: shard files, paths, section shapes, row ranges and file checksums.
+   // Row ranges count rows, sequences or lists of the unsharded sections, and index
+   // lists are relative to their shard. Deduplicated sections count the distinct rows
+   // of each shard, so rows duplicated across shards remain, with their shard weights.
+   // The manifest module's dataset names are the concatenated shard sections, as
+   // decoded arrays of the unsharded dataset. Names of format encodings, such as
+   // sparse or token arrays, are only in the shards.
+   private void writeManifest() throws IOException
+   {
+      long[] starts = new long[writer.sections.size()];
+
+      System.setProperty("line.separator", "\n");
+      PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(writer.filename)));
+      printWriter.println("# Dataset shards: files, paths, section shapes, row ranges, and file CRC-32 checksums.");
+      printWriter.println("# Row ranges are [start, count] in the unsharded dataset; index lists are relative to their shard.");
+      printWriter.println("# Dataset names are the concatenated shard sections, loaded on first use.");
+      printWriter.println("import importlib.util");
+      printWriter.println("import os");
+      if (!writer.format.equals(DatasetWriter.PYTHON_FORMAT))
+      {
+         printWriter.println("import numpy as np");
+      }
+      printWriter.println("shards = [");
+      for (int i = 0, j = writer.shards.size(); i < j; i++)
+      {
+         DatasetWriter shard = writer.shards.get(i);
+         String        files = "'" + new File(shard.filename).getName() + "'";
+         String        crcs  = checksum(shard.filename) + "";
+         if (!writer.format.equals(DatasetWriter.PYTHON_FORMAT))
+         {
+            files += ", '" + new File(DatasetWriter.getNumpyFilename(shard.filename)).getName() + "'";
+            crcs  += ", " + checksum(DatasetWriter.getNumpyFilename(shard.filename));
+         }
+         else if (DatasetWriter.COMPRESSION_LEVEL > 0)
+         {
+            files += ", '" + new File(DatasetWriter.getCompressedFilename(shard.filename)).getName() + "'";
+            crcs  += ", " + checksum(DatasetWriter.getCompressedFilename(shard.filename));
+         }
+         printWriter.println("  { 'files': [ " + files + " ], 'crc32': [ " + crcs + " ], 'paths': [ " + shard.firstPath + ", " + shard.numPaths + " ],");
+         printWriter.print("    'sections': {");
+         boolean first = true;
+         for (int k = 0, n = shard.sections.size(); k < n; k++)
+         {
+            DatasetWriter.Section section = shard.sections.get(k);
+            String                shape;
+            long                  count;
+            switch (section.kind)
+            {
+            case DatasetWriter.FLOAT_ROWS:
+               DatasetWriter.DeduplicationPlan deduplication = shard.deduplication(section);
+               count = (deduplication != null ? deduplication.count : section.rows);
+               shape = count + ", " + section.width;
+               break;
+
+            case DatasetWriter.FLOAT_SEQUENCES:
+               DatasetWriter.SequencePlan plan = shard.plan(section);
+               shape = plan.count + ", " + plan.maxLength + ", " + section.width;
+               count = section.numLengths;
+               break;
+
+            case DatasetWriter.INT_LIST:
+               shape = section.rows + "";
+               count = section.rows;
+               break;
+
+            case DatasetWriter.INT_LISTS:
+               shape = section.numLengths + "";
+               count = section.numLengths;
+               break;
+
+            default:
+               continue;
+            }
+            printWriter.println(first ? "" : ",");
+            printWriter.print("      '" + section.name + "': { 'shape': [ " + shape + " ], 'rows': [ " + starts[k] + ", " + count + " ] }");
+            starts[k] += count;
+            first      = false;
+         }
+         printWriter.println(" } }" + (i < j - 1 ? "," : ""));
+      }
+      printWriter.println("]");
+      printWriter.println("def load_shard(i):");
+      printWriter.println("    name = shards[i]['files'][0]");
+      printWriter.println("    spec = importlib.util.spec_from_file_location(os.path.splitext(name)[0], os.path.join(os.path.dirname(os.path.abspath(__file__)), name))");
+      printWriter.println("    module = importlib.util.module_from_spec(spec)");
+      printWriter.println("    spec.loader.exec_module(module)");
+      printWriter.println("    return module");
+      printWriter.println("_sequence_buckets = " + DatasetWriter.SEQUENCE_BUCKETS);
+      printWriter.println("_sections = [");
+      for (int i = 0, j = writer.sections.size(); i < j; i++)
+      {
+         DatasetWriter.Section section = writer.sections.get(i);
+         String                kind;
+         switch (section.kind)
+         {
+         case DatasetWriter.FLOAT_ROWS:
+            kind = "rows";
+            break;
+
+         case DatasetWriter.FLOAT_SEQUENCES:
+            kind = "sequences";
+            break;
+
+         case DatasetWriter.INT_LIST:
+            kind = (section.base != null ? "index" : "list");
+            break;
+
+         case DatasetWriter.INT_LISTS:
+            kind = "lists";
+            break;
+
+         default:
+            continue;
+         }
+         printWriter.println("  ('" + section.name + "', '" + kind + "', " + section.width + ", " +
+                             (section.base != null ? "'" + section.base.name + "'" : "None") + "),");
+      }
+      printWriter.println("]");
+      for (String line : MANIFEST_MERGE)
+      {
+         printWriter.println(line);
+      }
+      printWriter.close();
+      if (printWriter.checkError())
+      {
+         throw new IOException("Error writing " + writer.filename);
+      }
+   }
+
+
+   // File CRC-32 checksum.
+   private static long checksum(String filename) throws IOException
+   {
+      CRC32       crc     = new CRC32();
+      FileChannel channel = new FileInputStream(filename).getChannel();
+
+      try
+      {
+         ByteBuffer buffer = ByteBuffer.allocateDirect(DatasetWriter.SPOOL_BUFFER_SIZE);
+         while (channel.read(buffer) >= 0)
+         {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.clear();
+         }
+      }
+      finally
+      {
+         channel.close();
+      }
+      return(crc.getValue());
+   }
+}
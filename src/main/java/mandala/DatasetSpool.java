@@ -0,0 +1,315 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset spool: little-endian 4-byte values of a dataset section.
+// A file spool buffers values to a temporary file, writing filled buffers
+// directly or through a spool writer thread, and reads them back in order or
+// by seeking. A mapped or memory spool appends to and reads from a dataset store.
+// A file spool can be written through, for checkpoints, and reopened to resume.
+
+package mandala;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+public class DatasetSpool
+{
+   public File               file;
+   public FileChannel        channel;
+   public ByteBuffer         buffer;
+   public long               count;
+   public DatasetSpoolWriter writer;
+   public DatasetStore       store;
+   private long              position;
+
+   public DatasetSpool(File dir, String name) throws IOException
+   {
+      this(dir, name, null);
+   }
+
+
+   public DatasetSpool(File dir, String name, DatasetSpoolWriter writer) throws IOException
+   {
+      if (DatasetWriter.MEMORY_SPOOLS)
+      {
+         file    = null;
+         store   = new DatasetStore(null);
+         channel = null;
+         buffer  = null;
+      }
+      else
+      {
+         file = File.createTempFile(name + "_", ".spool", dir);
+         if (!DatasetWriter.PERSISTENT_SPOOLS)
+         {
+            file.deleteOnExit();
+         }
+         if (DatasetWriter.MAPPED_SPOOLS)
+         {
+            store   = new DatasetStore(file);
+            channel = null;
+            buffer  = null;
+         }
+         else
+         {
+            store   = null;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            buffer  = ByteBuffer.allocateDirect(DatasetWriter.SPOOL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+         }
+      }
+      count       = 0;
+      position    = 0;
+      this.writer = writer;
+   }
+
+
+   public void putFloat(float value) throws IOException
+   {
+      if (store != null)
+      {
+         store.putFloat(value);
+         count++;
+         return;
+      }
+      if (buffer.remaining() < 4)
+      {
+         flush();
+      }
+      buffer.putFloat(value);
+      count++;
+   }
+
+
+   public void putFloats(float[] values, int offset, int length) throws IOException
+   {
+      for (int i = 0; i < length; i++)
+      {
+         putFloat(values[offset + i]);
+      }
+   }
+
+
+   public void putInt(int value) throws IOException
+   {
+      if (store != null)
+      {
+         store.putInt(value);
+         count++;
+         return;
+      }
+      if (buffer.remaining() < 4)
+      {
+         flush();
+      }
+      buffer.putInt(value);
+      count++;
+   }
+
+
+   public void flush() throws IOException
+   {
+      if (store != null)
+      {
+         return;
+      }
+      buffer.flip();
+      if ((writer != null) && !writer.isFinished())
+      {
+         buffer = writer.write(this, buffer);
+         return;
+      }
+      while (buffer.hasRemaining())
+      {
+         channel.write(buffer);
+      }
+      buffer.clear();
+   }
+
+
+   // Finish writing and rewind for reading.
+   public void rewind() throws IOException
+   {
+      if (store != null)
+      {
+         position = 0;
+         return;
+      }
+      flush();
+      if (writer != null)
+      {
+         writer.finish();
+      }
+      channel.position(0);
+      buffer.limit(0);
+   }
+
+
+   public float getFloat() throws IOException
+   {
+      if (store != null)
+      {
+         return(store.getFloat(position++));
+      }
+      fill();
+      return(buffer.getFloat());
+   }
+
+
+   public int getInt() throws IOException
+   {
+      if (store != null)
+      {
+         return(store.getInt(position++));
+      }
+      fill();
+      return(buffer.getInt());
+   }
+
+
+   // Transfer values.
+   public void transferTo(NpzWriter npz, long count) throws IOException
+   {
+      if (store != null)
+      {
+         store.transferTo(npz, position, count);
+         position += count;
+         return;
+      }
+      long bytes = count * 4;
+
+      while (bytes > 0)
+      {
+         if (!buffer.hasRemaining())
+         {
+            buffer.clear();
+            if (channel.read(buffer) < 0)
+            {
+               throw new IOException("Unexpected end of spool " + file.getName());
+            }
+            buffer.flip();
+         }
+         ByteBuffer chunk = buffer.duplicate();
+         int        n     = (int)Math.min(chunk.remaining(), bytes);
+         chunk.limit(chunk.position() + n);
+         npz.put(chunk);
+         buffer.position(buffer.position() + n);
+         bytes -= n;
+      }
+   }
+
+
+   // Seek to value for reading.
+   public void seek(long index) throws IOException
+   {
+      if (store != null)
+      {
+         position = index;
+         return;
+      }
+      channel.position(index * 4);
+      buffer.limit(0);
+   }
+
+
+   // Compare value ranges of rewound spool, without moving the read position.
+   public boolean sameValues(long index1, long index2, int count) throws IOException
+   {
+      if (store != null)
+      {
+         for (int i = 0; i < count; i++)
+         {
+            if (store.getInt(index1 + i) != store.getInt(index2 + i))
+            {
+               return(false);
+            }
+         }
+         return(true);
+      }
+      return(read(index1, count).equals(read(index2, count)));
+   }
+
+
+   private ByteBuffer read(long index, int count) throws IOException
+   {
+      ByteBuffer values = ByteBuffer.allocate(count * 4);
+
+      while (values.hasRemaining())
+      {
+         if (channel.read(values, index * 4 + values.position()) < 0)
+         {
+            throw new IOException("Unexpected end of spool " + file.getName());
+         }
+      }
+      values.flip();
+      return(values);
+   }
+
+
+   private void fill() throws IOException
+   {
+      if (buffer.remaining() < 4)
+      {
+         buffer.compact();
+         while (buffer.position() < 4)
+         {
+            if (channel.read(buffer) < 0)
+            {
+               throw new IOException("Unexpected end of spool " + file.getName());
+            }
+         }
+         buffer.flip();
+      }
+   }
+
+
+   public void delete()
+   {
+      if (store != null)
+      {
+         store.delete();
+         return;
+      }
+      try
+      {
+         channel.close();
+      }
+      catch (IOException e) {}
+      file.delete();
+   }
+
+
+   // Force written values to storage.
+   public void force() throws IOException
+   {
+      channel.force(false);
+   }
+
+
+   // Replace with spool file of checkpointed values, for appending.
+   // Values written after the checkpoint are discarded.
+   public void reopen(File file, long count) throws IOException
+   {
+      if (file.length() < count * 4)
+      {
+         throw new IOException("Spool " + file.getName() + " is shorter than its checkpoint");
+      }
+      delete();
+      this.file = file;
+      channel   = new RandomAccessFile(file, "rw").getChannel();
+      channel.truncate(count * 4);
+      channel.position(count * 4);
+      buffer.clear();
+      this.count = count;
+      position   = 0;
+   }
+
+
+   // Close, keeping the file.
+   public void close() throws IOException
+   {
+      channel.close();
+   }
+}
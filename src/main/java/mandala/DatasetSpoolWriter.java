@@ -0,0 +1,132 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset spool writer thread.
+// Filled spool buffers are queued to the thread, which writes them to their
+// spool files and recycles them through a bounded free list, so generation and
+// I/O overlap with bounded memory. A write error is thrown by the next write.
+
+package mandala;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class DatasetSpoolWriter extends Thread
+{
+   // Filled buffer.
+   private static class Block
+   {
+      DatasetSpool spool;
+      ByteBuffer   buffer;
+
+      Block(DatasetSpool spool, ByteBuffer buffer)
+      {
+         this.spool  = spool;
+         this.buffer = buffer;
+      }
+   };
+
+   private ArrayBlockingQueue<Block>      filled;
+   private ArrayBlockingQueue<ByteBuffer> free;
+   private volatile IOException           error;
+   private boolean finished;
+
+   public DatasetSpoolWriter(int numBuffers)
+   {
+      super("DatasetWriter");
+      setDaemon(true);
+      filled = new ArrayBlockingQueue<Block>(numBuffers + 1);
+      free   = new ArrayBlockingQueue<ByteBuffer>(numBuffers);
+      for (int i = 0; i < numBuffers; i++)
+      {
+         free.add(ByteBuffer.allocateDirect(DatasetWriter.SPOOL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+      }
+      error    = null;
+      finished = false;
+   }
+
+
+   // Write filled buffers, recycling them.
+   @Override
+   public void run()
+   {
+      try
+      {
+         while (true)
+         {
+            Block block = filled.take();
+            if (block.spool == null)
+            {
+               break;
+            }
+            try
+            {
+               if (error == null)
+               {
+                  while (block.buffer.hasRemaining())
+                  {
+                     block.spool.channel.write(block.buffer);
+                  }
+               }
+            }
+            catch (IOException e)
+            {
+               error = e;
+            }
+            block.buffer.clear();
+            free.put(block.buffer);
+         }
+      }
+      catch (InterruptedException e) {}
+   }
+
+
+   // Queue filled buffer for writing, returning an empty buffer.
+   // Blocks while all buffers are in flight.
+   public ByteBuffer write(DatasetSpool spool, ByteBuffer buffer) throws IOException
+   {
+      if (error != null)
+      {
+         throw error;
+      }
+      try
+      {
+         filled.put(new Block(spool, buffer));
+         return(free.take());
+      }
+      catch (InterruptedException e)
+      {
+         throw new IOException("Interrupted writing spool " + spool.file.getName());
+      }
+   }
+
+
+   // Write queued buffers and stop.
+   public synchronized void finish() throws IOException
+   {
+      if (!finished)
+      {
+         finished = true;
+         try
+         {
+            filled.put(new Block(null, null));
+            join();
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("Interrupted writing spools");
+         }
+      }
+      if (error != null)
+      {
+         throw error;
+      }
+   }
+
+
+   public synchronized boolean isFinished()
+   {
+      return(finished);
+   }
+}
@@ -0,0 +1,219 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Memory-mapped dataset store.
+// Little-endian 4-byte values are appended to a file mapped in fixed-size
+// segments, so datasets can exceed the 2 GB mapping limit and the heap. Values
+// are read at random by index, and the mapped pages
+// are managed by the operating system rather than the garbage collector.
+// A store without a file keeps its segments in heap memory.
+
+package mandala;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class DatasetStore
+{
+   // Segment size: 2^SEGMENT_BITS bytes, and 2^MEMORY_SEGMENT_BITS bytes in memory.
+   public static int SEGMENT_BITS        = 28;
+   public static int MEMORY_SEGMENT_BITS = 18;
+
+   public File          file;
+   public long          count;
+   private FileChannel  channel;
+   private ByteBuffer[] segments;
+   private int          numSegments;
+   private int          segmentBits;
+   private int          segmentMask;
+
+   // Constructor: store in new file, or in memory if file is null.
+   public DatasetStore(File file) throws IOException
+   {
+      this.file = file;
+      count     = 0;
+      if (file != null)
+      {
+         channel = new RandomAccessFile(file, "rw").getChannel();
+         channel.truncate(0);
+         segmentBits = SEGMENT_BITS;
+      }
+      else
+      {
+         channel     = null;
+         segmentBits = MEMORY_SEGMENT_BITS;
+      }
+      segments    = new ByteBuffer[16];
+      numSegments = 0;
+      segmentMask = (1 << segmentBits) - 1;
+   }
+
+
+   // Append float.
+   public void putFloat(float value) throws IOException
+   {
+      long position = count << 2;
+      segment(position).putFloat((int)position & segmentMask, value);
+      count++;
+   }
+
+
+   // Append floats.
+   public void putFloats(float[] values, int offset, int length) throws IOException
+   {
+      for (int i = 0; i < length; i++)
+      {
+         putFloat(values[offset + i]);
+      }
+   }
+
+
+   // Append integer.
+   public void putInt(int value) throws IOException
+   {
+      long position = count << 2;
+      segment(position).putInt((int)position & segmentMask, value);
+      count++;
+   }
+
+
+   // Get float at value index.
+   public float getFloat(long index)
+   {
+      long position = index << 2;
+      return(segments[(int)(position >>> segmentBits)].getFloat((int)position & segmentMask));
+   }
+
+
+   // Get integer at value index.
+   public int getInt(long index)
+   {
+      long position = index << 2;
+      return(segments[(int)(position >>> segmentBits)].getInt((int)position & segmentMask));
+   }
+
+
+   // Transfer values starting at value index.
+   public void transferTo(NpzWriter npz, long index, long count) throws IOException
+   {
+      long position = index << 2;
+      long bytes    = count << 2;
+
+      while (bytes > 0)
+      {
+         ByteBuffer chunk  = segments[(int)(position >>> segmentBits)].duplicate();
+         int        offset = (int)position & segmentMask;
+         int        n      = (int)Math.min(chunk.capacity() - offset, bytes);
+         chunk.limit(offset + n);
+         chunk.position(offset);
+         npz.put(chunk);
+         position += n;
+         bytes    -= n;
+      }
+   }
+
+
+   // Unmap segments and truncate file to stored values.
+   public void close() throws IOException
+   {
+      unmap();
+      if (channel != null)
+      {
+         channel.truncate(count << 2);
+         channel.close();
+      }
+   }
+
+
+   // Unmap segments and delete file.
+   public void delete()
+   {
+      unmap();
+      if (channel != null)
+      {
+         try
+         {
+            channel.close();
+         }
+         catch (IOException e) {}
+         file.delete();
+      }
+   }
+
+
+   // Get segment at byte position, mapping or allocating it when appending.
+   private ByteBuffer segment(long position) throws IOException
+   {
+      int index = (int)(position >>> segmentBits);
+
+      if (index == numSegments)
+      {
+         if (numSegments == segments.length)
+         {
+            segments = Arrays.copyOf(segments, numSegments * 2);
+         }
+         ByteBuffer segment;
+         if (channel != null)
+         {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, (long)index << segmentBits, 1L << segmentBits);
+         }
+         else
+         {
+            segment = ByteBuffer.allocate(1 << segmentBits);
+         }
+         segment.order(ByteOrder.LITTLE_ENDIAN);
+         segments[numSegments++] = segment;
+      }
+      return(segments[index]);
+   }
+
+
+   // Release mappings now rather than when collected, where supported.
+   // Unmapping is an internal API: Unsafe.invokeCleaner on Java 9 and later, and
+   // the buffer cleaner on Java 8. Where neither is accessible the segments are
+   // only dereferenced, and their mappings are released when collected; the file
+   // is then still mapped on close, which is harmless except on Windows, where
+   // truncating or deleting a mapped file fails.
+   private void unmap()
+   {
+      for (int i = 0; i < numSegments; i++)
+      {
+         ByteBuffer segment = segments[i];
+         segments[i] = null;
+         if (!(segment instanceof MappedByteBuffer))
+         {
+            continue;
+         }
+         try
+         {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field    field       = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method clean = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            clean.invoke(field.get(null), segment);
+         }
+         catch (Exception e)
+         {
+            try
+            {
+               Method cleaner = segment.getClass().getMethod("cleaner");
+               cleaner.setAccessible(true);
+               Object c = cleaner.invoke(segment);
+               c.getClass().getMethod("clean").invoke(c);
+            }
+            catch (Exception e2)
+            {
+               // Released when collected.
+            }
+         }
+      }
+      numSegments = 0;
+   }
+}
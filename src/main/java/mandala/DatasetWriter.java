@@ -0,0 +1,1385 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Streaming dataset writer.
+// Rows are spooled per section to temporary files as they are generated,
+// so peak memory does not depend on dataset size. Closing the writer
+// assembles the dataset file, with shapes known, from the spools.
+// Spools are dataset spools, written by a spool writer thread or held in
+// memory-mapped or heap dataset stores.
+// Sequences are padded to the maximum sequence length, written ragged with
+// their lengths, or grouped into length buckets padded per bucket. Long
+// sequences can be cut into fixed-length strided windows for truncated BPTT.
+// The dataset file is written by the format's encoder: the Python encoder for
+// the python format, and the numpy encoder for the numpy, sparse, token and
+// ternary formats, whose arrays are in a .npz file.
+// Sharded datasets split paths over shard writers, balancing path steps, and
+// the dataset shards assemble them into shard files and a manifest.
+// The token format interns blocks of row features, such as terminal encodings,
+// as token ids of a feature codebook. The ternary format packs float values,
+// all -1, 0 or 1, as 2-bit codes, 16 to a spool integer.
+// Deduplicated row section pairs keep the first occurrence of each distinct pair
+// of rows, identified by 128-bit row fingerprints, with occurrence count weights.
+// A writer with file spools can be checkpointed: its spools are written through
+// to their files and its state saved, so a later writer can resume it.
+
+package mandala;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class DatasetWriter
+{
+   // Dataset formats.
+   public static final String PYTHON_FORMAT  = "python";
+   public static final String NUMPY_FORMAT   = "numpy";
+   public static final String SPARSE_FORMAT  = "sparse";
+   public static final String TOKEN_FORMAT   = "token";
+   public static final String TERNARY_FORMAT = "ternary";
+
+   // Token format row block width (0=whole rows).
+   // Rows with widths not a multiple of it are single blocks.
+   public static int TOKEN_WIDTH = 0;
+
+   // Sequence layouts.
+   public static final String PADDED_SEQUENCES   = "padded";
+   public static final String RAGGED_SEQUENCES   = "ragged";
+   public static final String BUCKETED_SEQUENCES = "bucketed";
+
+   // Sequence layout and number of length buckets.
+   public static String SEQUENCE_LAYOUT  = PADDED_SEQUENCES;
+   public static int    SEQUENCE_BUCKETS = 4;
+
+   // Sequence window length (0=whole sequences) and stride (0=window length).
+   // Strides longer than the window would skip steps, and are cut to the window length.
+   public static int SEQUENCE_WINDOW = 0;
+   public static int SEQUENCE_STRIDE = 0;
+
+   // Python format compression level: 1-9 writes gzip text, 0 plain text.
+   public static int COMPRESSION_LEVEL = 0;
+
+   // Number of shards, by path, and shard rows (0=shard by path).
+   public static int  SHARDS     = 1;
+   public static long SHARD_ROWS = 0;
+
+   // Shard assembly threads.
+   public static int SHARD_THREADS = Runtime.getRuntime().availableProcessors();
+
+   // Section kinds.
+   public static final int FLOAT_ROWS      = 0;
+   public static final int FLOAT_SEQUENCES = 1;
+   public static final int INT_LIST        = 2;
+   public static final int INT_LISTS       = 3;
+   public static final int TEXT            = 4;
+
+   // Spool buffer size.
+   public static int SPOOL_BUFFER_SIZE = 1 << 16;
+
+   // Spool write buffers in flight to the writer thread (0=synchronous writes).
+   public static int WRITE_BUFFERS = 4;
+
+   // Memory-mapped spools.
+   public static boolean MAPPED_SPOOLS = false;
+
+   // Spooling: in memory, to files, or chosen by dataset size.
+   public static final String MEMORY_SPOOLING = "memory";
+   public static final String FILE_SPOOLING   = "file";
+   public static final String AUTO_SPOOLING   = "auto";
+   public static String       SPOOLING        = AUTO_SPOOLING;
+
+   // Heap memory spools, chosen by spooling.
+   public static boolean MEMORY_SPOOLS = false;
+
+   // Keep spool files on exit, for resuming from a checkpoint.
+   public static boolean PERSISTENT_SPOOLS = false;
+
+   // Section.
+   public class Section
+   {
+      public String       name;
+      public int          kind;
+      public int          width;
+      public String       text;
+      public DatasetSpool spool;
+      public int          rows;
+      public int[]        lengths;
+      public int          numLengths;
+      public int          length;
+
+      // Sparse rows: nonzero values are in spool, with column indices and row counts.
+      public DatasetSpool indices;
+      public DatasetSpool counts;
+      public long         nonzeros;
+
+      // Token rows: block token ids are in spool, with block width and tokens per row.
+      public int tokenWidth;
+      public int tokens;
+
+      // Ternary rows: packed integers per row, each of 16 2-bit value codes.
+      public int packedWidth;
+
+      // Deduplicated rows: row fingerprints, paired section and plan shared with it.
+      // The weights of the pair are written after the weighted section.
+      public long[]     fingerprints;
+      public Section    pair;
+      public boolean    weighted;
+      DeduplicationPlan deduplication;
+
+      // Base section of index list.
+      public Section base;
+
+      Section(String name, int kind, int width) throws IOException
+      {
+         this.name  = name;
+         this.kind  = kind;
+         this.width = width;
+         if ((kind != TEXT) && (filename != null))
+         {
+            spool = new DatasetSpool(dir, name, spoolWriter);
+         }
+         if ((filename != null) && format.equals(SPARSE_FORMAT) && ((kind == FLOAT_ROWS) || (kind == FLOAT_SEQUENCES)))
+         {
+            indices = new DatasetSpool(dir, name + "_indices", spoolWriter);
+            counts  = new DatasetSpool(dir, name + "_counts", spoolWriter);
+         }
+         tokenWidth = 0;
+         tokens     = 0;
+         if ((filename != null) && format.equals(TOKEN_FORMAT) && ((kind == FLOAT_ROWS) || (kind == FLOAT_SEQUENCES)) && (width > 0))
+         {
+            tokenWidth = ((TOKEN_WIDTH > 0) && (width % TOKEN_WIDTH == 0) ? TOKEN_WIDTH : width);
+            tokens     = width / tokenWidth;
+         }
+         packedWidth = 0;
+         if ((filename != null) && format.equals(TERNARY_FORMAT) && ((kind == FLOAT_ROWS) || (kind == FLOAT_SEQUENCES)))
+         {
+            packedWidth = (width + 15) / 16;
+         }
+         nonzeros   = 0;
+         rows       = 0;
+         lengths    = new int[16];
+         numLengths = 0;
+         length     = 0;
+         fingerprints  = null;
+         pair          = null;
+         weighted      = false;
+         deduplication = null;
+         base          = null;
+      }
+
+
+      // Add row.
+      public void add(float[] row) throws IOException
+      {
+         if (indices != null)
+         {
+            int count = 0;
+            for (int i = 0; i < width; i++)
+            {
+               if (row[i] != 0.0f)
+               {
+                  spool.putFloat(row[i]);
+                  indices.putInt(i);
+                  count++;
+               }
+            }
+            counts.putInt(count);
+            nonzeros += count;
+         }
+         else if (tokens > 0)
+         {
+            for (int i = 0; i < width; i += tokenWidth)
+            {
+               spool.putInt(codebook.intern(row, i, tokenWidth));
+            }
+         }
+         else if (packedWidth > 0)
+         {
+            for (int i = 0; i < packedWidth; i++)
+            {
+               int bits = 0;
+               for (int j = i * 16, k = Math.min(j + 16, width); j < k; j++)
+               {
+                  bits |= ternary(row[j]) << ((j & 15) * 2);
+               }
+               spool.putInt(bits);
+            }
+         }
+         else
+         {
+            spool.putFloats(row, 0, width);
+         }
+         if (fingerprints != null)
+         {
+            fingerprint(row);
+         }
+         rows++;
+         length++;
+      }
+
+
+      // Add value.
+      public void add(int value) throws IOException
+      {
+         spool.putInt(value);
+         rows++;
+         length++;
+      }
+
+
+      // Ternary value code: 0, 1, or 2 for -1.
+      private int ternary(float value) throws IOException
+      {
+         if (value == 0.0f)
+         {
+            return(0);
+         }
+         if (value == 1.0f)
+         {
+            return(1);
+         }
+         if (value == -1.0f)
+         {
+            return(2);
+         }
+         throw new IOException("Non-ternary value " + value + " in " + name);
+      }
+
+
+      // Spool values per row.
+      public int spoolWidth()
+      {
+         if (tokens > 0)
+         {
+            return(tokens);
+         }
+         if (packedWidth > 0)
+         {
+            return(packedWidth);
+         }
+         return(width);
+      }
+
+
+      // Record 128-bit row fingerprint.
+      private void fingerprint(float[] row)
+      {
+         long h1 = 0x9e3779b97f4a7c15L ^ width;
+         long h2 = 0xc2b2ae3d27d4eb4fL;
+
+         for (int i = 0; i < width; i++)
+         {
+            long bits = Float.floatToIntBits(row[i]);
+            h1 = Long.rotateLeft(h1 ^ (bits * 0x87c37b91114253d5L), 31) * 0x4cf5ad432745937fL;
+            h2 = Long.rotateLeft(h2 + (bits * 0x52dce729L), 27) * 0x38495ab5L + h1;
+         }
+         if (fingerprints.length < (rows + 1) * 2)
+         {
+            fingerprints = Arrays.copyOf(fingerprints, Math.max(fingerprints.length * 2, 32));
+         }
+         fingerprints[rows * 2]     = mix(h1);
+         fingerprints[rows * 2 + 1] = mix(h2 ^ h1);
+      }
+
+
+      // Spool offsets of sparse rows, read from rewound counts spool.
+      long[] rowOffsets() throws IOException
+      {
+         long[] offsets = new long[rows + 1];
+
+         for (int i = 0; i < rows; i++)
+         {
+            offsets[i + 1] = offsets[i] + counts.getInt();
+         }
+         counts.rewind();
+         return(offsets);
+      }
+
+
+      // Compare spooled rows of rewound section, given sparse row offsets.
+      boolean sameRows(int row1, int row2, long[] offsets) throws IOException
+      {
+         if (indices != null)
+         {
+            int count = (int)(offsets[row1 + 1] - offsets[row1]);
+            return((offsets[row2 + 1] - offsets[row2] == count) &&
+                   spool.sameValues(offsets[row1], offsets[row2], count) &&
+                   indices.sameValues(offsets[row1], offsets[row2], count));
+         }
+         int width = spoolWidth();
+         return(spool.sameValues((long)row1 * width, (long)row2 * width, width));
+      }
+
+
+      // Rewind spools for reading.
+      public void rewind() throws IOException
+      {
+         if (spool != null)
+         {
+            spool.rewind();
+         }
+         if (indices != null)
+         {
+            indices.rewind();
+            counts.rewind();
+         }
+      }
+
+
+      // Delete spools.
+      public void delete()
+      {
+         if (spool != null)
+         {
+            spool.delete();
+         }
+         if (indices != null)
+         {
+            indices.delete();
+            counts.delete();
+         }
+      }
+
+
+      // Spools: values, and sparse indices and counts.
+      public DatasetSpool[] spools()
+      {
+         return(new DatasetSpool[] { spool, indices, counts });
+      }
+
+
+      // Save state for resuming.
+      void checkpoint(DataOutputStream writer) throws IOException
+      {
+         Utility.saveInt(writer, kind);
+         Utility.saveString(writer, name != null ? name : "");
+         for (DatasetSpool s : spools())
+         {
+            if (s != null)
+            {
+               Utility.saveInt(writer, 1);
+               Utility.saveString(writer, s.file.getPath());
+               Utility.saveLong(writer, s.count);
+            }
+            else
+            {
+               Utility.saveInt(writer, 0);
+            }
+         }
+         Utility.saveInt(writer, rows);
+         Utility.saveInt(writer, numLengths);
+         for (int i = 0; i < numLengths; i++)
+         {
+            Utility.saveInt(writer, lengths[i]);
+         }
+         Utility.saveInt(writer, length);
+         Utility.saveLong(writer, nonzeros);
+         if (fingerprints != null)
+         {
+            Utility.saveInt(writer, 1);
+            for (int i = 0; i < rows * 2; i++)
+            {
+               Utility.saveLong(writer, fingerprints[i]);
+            }
+         }
+         else
+         {
+            Utility.saveInt(writer, 0);
+         }
+         Utility.saveInt(writer, sections.indexOf(base));
+      }
+
+
+      // Resume saved state.
+      void resume(DataInputStream reader) throws IOException
+      {
+         if ((Utility.loadInt(reader) != kind) || !Utility.loadString(reader).equals(name != null ? name : ""))
+         {
+            throw new IOException("Checkpoint sections differ from " + filename);
+         }
+         for (DatasetSpool s : spools())
+         {
+            if ((Utility.loadInt(reader) == 1) != (s != null))
+            {
+               throw new IOException("Checkpoint spools differ from " + filename);
+            }
+            if (s != null)
+            {
+               File file = new File(Utility.loadString(reader));
+               s.reopen(file, Utility.loadLong(reader));
+            }
+         }
+         rows       = Utility.loadInt(reader);
+         numLengths = Utility.loadInt(reader);
+         lengths    = new int[Math.max(16, numLengths)];
+         for (int i = 0; i < numLengths; i++)
+         {
+            lengths[i] = Utility.loadInt(reader);
+         }
+         length   = Utility.loadInt(reader);
+         nonzeros = Utility.loadLong(reader);
+         if ((Utility.loadInt(reader) == 1) != (fingerprints != null))
+         {
+            throw new IOException("Checkpoint deduplication differs from " + filename);
+         }
+         if (fingerprints != null)
+         {
+            fingerprints = new long[Math.max(32, rows * 2)];
+            for (int i = 0; i < rows * 2; i++)
+            {
+               fingerprints[i] = Utility.loadLong(reader);
+            }
+         }
+         int i = Utility.loadInt(reader);
+         base = (i >= 0 ? sections.get(i) : null);
+      }
+
+
+      // Swap contents with section.
+      private void swap(Section section)
+      {
+         DatasetSpool spool = this.spool;
+         this.spool    = section.spool;
+         section.spool = spool;
+         spool           = this.indices;
+         this.indices    = section.indices;
+         section.indices = spool;
+         spool          = this.counts;
+         this.counts    = section.counts;
+         section.counts = spool;
+         int n = this.rows;
+         this.rows    = section.rows;
+         section.rows = n;
+         int[] lengths = this.lengths;
+         this.lengths    = section.lengths;
+         section.lengths = lengths;
+         n = this.numLengths;
+         this.numLengths    = section.numLengths;
+         section.numLengths = n;
+         n = this.length;
+         this.length    = section.length;
+         section.length = n;
+         long nonzeros = this.nonzeros;
+         this.nonzeros    = section.nonzeros;
+         section.nonzeros = nonzeros;
+         long[] fingerprints = this.fingerprints;
+         this.fingerprints    = section.fingerprints;
+         section.fingerprints = fingerprints;
+      }
+
+
+      public DatasetWriter getWriter()
+      {
+         return(DatasetWriter.this);
+      }
+
+
+      // Sequence starting rows.
+      public long[] sequenceOffsets()
+      {
+         long[] offsets = new long[numLengths + 1];
+
+         for (int i = 0; i < numLengths; i++)
+         {
+            offsets[i + 1] = offsets[i] + lengths[i];
+         }
+         return(offsets);
+      }
+
+
+      // End sequence or list.
+      public void end()
+      {
+         if (numLengths == lengths.length)
+         {
+            lengths = Arrays.copyOf(lengths, numLengths * 2);
+         }
+         lengths[numLengths++] = length;
+         if ((kind == FLOAT_SEQUENCES) && (length > maxSequenceLength))
+         {
+            maxSequenceLength = length;
+         }
+         length = 0;
+      }
+   };
+
+   // Chunk: rows generated for one path, added to sections in path order.
+   // Operations on null sections are ignored.
+   public static class Chunk
+   {
+      // Operation kinds.
+      private static final int ROW   = 0;
+      private static final int VALUE = 1;
+      private static final int INDEX = 2;
+      private static final int END   = 3;
+
+      // Operation.
+      private static class Operation
+      {
+         int     kind;
+         Section section;
+         float[] row;
+         int     value;
+         Section base;
+
+         Operation(int kind, Section section, float[] row, int value, Section base)
+         {
+            this.kind    = kind;
+            this.section = section;
+            this.row     = row;
+            this.value   = value;
+            this.base    = base;
+         }
+      };
+
+      private ArrayList<Operation> operations = new ArrayList<Operation>();
+
+      // Add row.
+      public void add(Section section, float[] row)
+      {
+         if (section != null)
+         {
+            operations.add(new Operation(ROW, section, row, 0, null));
+         }
+      }
+
+
+      // Add value.
+      public void add(Section section, int value)
+      {
+         if (section != null)
+         {
+            operations.add(new Operation(VALUE, section, null, value, null));
+         }
+      }
+
+
+      // Add row index: index of a chunk row in the base section.
+      public void addIndex(Section section, Section base, int index)
+      {
+         if (section != null)
+         {
+            operations.add(new Operation(INDEX, section, null, index, base));
+         }
+      }
+
+
+      // End sequence or list.
+      public void end(Section section)
+      {
+         if (section != null)
+         {
+            operations.add(new Operation(END, section, null, 0, null));
+         }
+      }
+
+
+      // Get rows added to section.
+      public ArrayList<float[]> getRows(Section section)
+      {
+         ArrayList<float[]> rows = new ArrayList<float[]>();
+
+         for (Operation operation : operations)
+         {
+            if ((operation.kind == ROW) && (operation.section == section))
+            {
+               rows.add(operation.row);
+            }
+         }
+         return(rows);
+      }
+
+
+      // Write chunk to sections.
+      // The chunk is a path of each writer, which may begin a new shard.
+      // Path steps are the most rows added to a section of the writer.
+      public void write() throws IOException
+      {
+         ArrayList<DatasetWriter> writers = new ArrayList<DatasetWriter>();
+         for (Operation operation : operations)
+         {
+            DatasetWriter writer = operation.section.getWriter();
+            if (!writers.contains(writer))
+            {
+               writers.add(writer);
+               int steps = 0;
+               for (Section section : writer.sections)
+               {
+                  int rows = 0;
+                  for (Operation sectionOperation : operations)
+                  {
+                     if ((sectionOperation.kind == ROW) && (sectionOperation.section == section))
+                     {
+                        rows++;
+                     }
+                  }
+                  steps = Math.max(steps, rows);
+               }
+               writer.beginPath(steps);
+            }
+         }
+         for (Operation operation : operations)
+         {
+            if (operation.kind == INDEX)
+            {
+               operation.value       += operation.base.rows;
+               operation.section.base = operation.base;
+            }
+         }
+         for (Operation operation : operations)
+         {
+            switch (operation.kind)
+            {
+            case ROW:
+               operation.section.add(operation.row);
+               break;
+
+            case VALUE:
+            case INDEX:
+               operation.section.add(operation.value);
+               break;
+
+            case END:
+               operation.section.end();
+               break;
+            }
+         }
+         operations.clear();
+      }
+   };
+
+   // Sequence plan: sequences or windows with their starting rows and lengths,
+   // written order with padded lengths, bucket starting positions in the order,
+   // and total written rows. Windows record their sequence and starting step.
+   // Reordered plans are read by seeking.
+   static class SequencePlan
+   {
+      int     count;
+      int     maxLength;
+      long[]  starts;
+      int[]   lengths;
+      int[]   windowSequences;
+      int[]   windowStarts;
+      int[]   order;
+      int[]   padded;
+      int[]   bucketStarts;
+      long    rows;
+      boolean reordered;
+   };
+
+   // Deduplication plan: first occurrence rows of distinct row pairs in order,
+   // their weights, and for every row, and the end, the position of the first
+   // distinct row at or after it, so path begins stay ordered output rows.
+   static class DeduplicationPlan
+   {
+      int   count;
+      int[] rows;
+      int[] weights;
+      int[] positions;
+   };
+
+   // Dataset file name and format.
+   public String filename;
+   public String format;
+
+   // Spool directory.
+   public File dir;
+
+   // Sections.
+   public ArrayList<Section> sections;
+
+   // Spool writer thread.
+   public DatasetSpoolWriter spoolWriter;
+
+   // Token format codebook, shared with shards.
+   public DatasetCodebook codebook;
+
+   // Maximum sequence length over all sequence sections.
+   public int maxSequenceLength;
+
+   // Shards: finished shard writers, paths to write, paths written, and paths in current shard.
+   // A shard writer records its dataset writer, first path and number of paths.
+   // Path steps to write and written balance shards by path.
+   public ArrayList<DatasetWriter> shards;
+   public DatasetWriter            parent;
+   public int  numPaths;
+   public int  pathCount;
+   public int  shardPaths;
+   public int  firstPath;
+   public long numSteps;
+   public long stepCount;
+
+   // Constructors.
+   // A writer without a file has sections without spools, whose chunk rows are read directly.
+   public DatasetWriter()
+   {
+      this(null, PYTHON_FORMAT);
+   }
+
+
+   public DatasetWriter(String filename)
+   {
+      this(filename, PYTHON_FORMAT);
+   }
+
+
+   public DatasetWriter(String filename, String format)
+   {
+      this.filename = filename;
+      this.format   = format;
+      dir           = (filename != null ? new File(filename).getAbsoluteFile().getParentFile() : null);
+      sections      = new ArrayList<Section>();
+      maxSequenceLength = 0;
+      spoolWriter       = null;
+      shards            = new ArrayList<DatasetWriter>();
+      parent            = null;
+      numPaths          = 0;
+      pathCount         = 0;
+      shardPaths        = 0;
+      firstPath         = 0;
+      numSteps          = 0;
+      stepCount         = 0;
+      codebook          = (format.equals(TOKEN_FORMAT) ? new DatasetCodebook() : null);
+      if ((WRITE_BUFFERS > 0) && !MAPPED_SPOOLS && !MEMORY_SPOOLS && (filename != null))
+      {
+         spoolWriter = new DatasetSpoolWriter(WRITE_BUFFERS);
+         spoolWriter.start();
+      }
+   }
+
+
+   // Add float rows section: shape [rows, width].
+   public Section addRows(String name, int width) throws IOException
+   {
+      return(addSection(name, FLOAT_ROWS, width));
+   }
+
+
+   // Add float sequences section: shape [sequences, maximum sequence length, width].
+   public Section addSequences(String name, int width) throws IOException
+   {
+      return(addSection(name, FLOAT_SEQUENCES, width));
+   }
+
+
+   // Add integer list section.
+   public Section addIntList(String name) throws IOException
+   {
+      return(addSection(name, INT_LIST, 1));
+   }
+
+
+   // Add list of integer lists section.
+   public Section addIntLists(String name) throws IOException
+   {
+      return(addSection(name, INT_LISTS, 1));
+   }
+
+
+   // Add verbatim text.
+   public Section addText(String text) throws IOException
+   {
+      Section section = addSection(null, TEXT, 0);
+
+      section.text = text;
+      for (DatasetWriter shard : shards)
+      {
+         shard.sections.get(shard.sections.size() - 1).text = text;
+      }
+      return(section);
+   }
+
+
+   private Section addSection(String name, int kind, int width) throws IOException
+   {
+      Section section = new Section(name, kind, width);
+
+      sections.add(section);
+      for (DatasetWriter shard : shards)
+      {
+         shard.addSection(name, kind, width);
+      }
+      return(section);
+   }
+
+
+   // Deduplicate row pairs of float row sections, weighting rows by occurrences.
+   // Weights are written as <weighted section name>_weights.
+   public void deduplicate(Section section, Section weighted)
+   {
+      section.pair          = weighted;
+      section.fingerprints  = new long[32];
+      weighted.pair         = section;
+      weighted.fingerprints = new long[32];
+      weighted.weighted     = true;
+   }
+
+
+   // Set number of paths and their steps to be written, for sharding by path.
+   public void setPaths(int paths, long steps)
+   {
+      numPaths = paths;
+      numSteps = steps;
+   }
+
+
+   // Checkpoint: write spools through to their files and save state for resuming.
+   // Sharded writers and mapped or memory spools cannot be checkpointed.
+   public void checkpoint(DataOutputStream writer) throws IOException
+   {
+      if (isSharded() || MAPPED_SPOOLS || MEMORY_SPOOLS)
+      {
+         throw new IOException("Cannot checkpoint " + filename + " without unsharded file spools");
+      }
+      for (Section section : sections)
+      {
+         for (DatasetSpool spool : section.spools())
+         {
+            if (spool != null)
+            {
+               spool.flush();
+            }
+         }
+      }
+      if (spoolWriter != null)
+      {
+         spoolWriter.finish();
+         spoolWriter = new DatasetSpoolWriter(WRITE_BUFFERS);
+         spoolWriter.start();
+      }
+      Utility.saveString(writer, format);
+      Utility.saveInt(writer, sections.size());
+      for (Section section : sections)
+      {
+         for (DatasetSpool spool : section.spools())
+         {
+            if (spool != null)
+            {
+               spool.force();
+               spool.writer = spoolWriter;
+            }
+         }
+         section.checkpoint(writer);
+      }
+      Utility.saveInt(writer, maxSequenceLength);
+      Utility.saveInt(writer, pathCount);
+      Utility.saveInt(writer, shardPaths);
+      Utility.saveLong(writer, stepCount);
+      if (codebook != null)
+      {
+         codebook.save(writer);
+      }
+   }
+
+
+   // Resume checkpoint saved by a writer with the same sections.
+   public void resume(DataInputStream reader) throws IOException
+   {
+      if (!Utility.loadString(reader).equals(format) || (Utility.loadInt(reader) != sections.size()))
+      {
+         throw new IOException("Checkpoint differs from " + filename);
+      }
+      for (Section section : sections)
+      {
+         section.resume(reader);
+      }
+      maxSequenceLength = Utility.loadInt(reader);
+      pathCount         = Utility.loadInt(reader);
+      shardPaths        = Utility.loadInt(reader);
+      stepCount         = Utility.loadLong(reader);
+      if (codebook != null)
+      {
+         codebook.load(reader);
+      }
+   }
+
+
+   // Suspend writing after a checkpoint, keeping spool files for resuming.
+   public void suspend() throws IOException
+   {
+      if (spoolWriter != null)
+      {
+         spoolWriter.finish();
+      }
+      for (Section section : sections)
+      {
+         for (DatasetSpool spool : section.spools())
+         {
+            if (spool != null)
+            {
+               spool.close();
+            }
+         }
+      }
+   }
+
+
+   // Is dataset sharded?
+   public boolean isSharded()
+   {
+      return((parent == null) && ((SHARD_ROWS > 0) || ((SHARDS > 1) && (numPaths > 0))));
+   }
+
+
+   // Begin path of steps, beginning a new shard when the current shard is full.
+   // Shards by path are full when the path would end more than half past their
+   // share of the path steps, or at their share of the paths when the steps are unknown.
+   public void beginPath(int steps) throws IOException
+   {
+      if (isSharded() && (shardPaths > 0))
+      {
+         boolean full;
+         if (SHARD_ROWS > 0)
+         {
+            int rows = 0;
+            for (Section section : sections)
+            {
+               if ((section.kind == FLOAT_ROWS) || (section.kind == FLOAT_SEQUENCES))
+               {
+                  rows = Math.max(rows, section.rows);
+               }
+            }
+            full = (rows >= SHARD_ROWS);
+         }
+         else if (numSteps > 0)
+         {
+            full = ((shards.size() + 1 < SHARDS) && (stepCount + steps / 2 >= (shards.size() + 1) * numSteps / SHARDS));
+         }
+         else
+         {
+            full = (pathCount >= (long)(shards.size() + 1) * numPaths / SHARDS);
+         }
+         if (full)
+         {
+            endShard();
+         }
+      }
+      shardPaths++;
+      pathCount++;
+      stepCount += steps;
+   }
+
+
+   // End current shard: its sections move to a shard writer, leaving empty sections.
+   private void endShard() throws IOException
+   {
+      DatasetWriter shard = new DatasetWriter(getShardFilename(filename, shards.size()), format);
+
+      shard.codebook = codebook;
+      for (Section section : sections)
+      {
+         Section shardSection = shard.addSection(section.name, section.kind, section.width);
+         shardSection.text = section.text;
+         if (section.fingerprints != null)
+         {
+            shardSection.fingerprints = new long[32];
+         }
+         shardSection.swap(section);
+      }
+      for (int i = 0, j = sections.size(); i < j; i++)
+      {
+         Section section      = sections.get(i);
+         Section shardSection = shard.sections.get(i);
+         if (section.pair != null)
+         {
+            shardSection.pair     = shard.sections.get(sections.indexOf(section.pair));
+            shardSection.weighted = section.weighted;
+         }
+         if (section.base != null)
+         {
+            shardSection.base = shard.sections.get(sections.indexOf(section.base));
+         }
+      }
+      DatasetSpoolWriter writer = shard.spoolWriter;
+      shard.spoolWriter         = spoolWriter;
+      spoolWriter               = writer;
+      shard.maxSequenceLength   = maxSequenceLength;
+      maxSequenceLength         = 0;
+      shard.parent              = this;
+      shard.firstPath           = pathCount - shardPaths;
+      shard.numPaths            = shardPaths;
+      shardPaths = 0;
+      shards.add(shard);
+   }
+
+
+   // Shard file name.
+   public static String getShardFilename(String filename, int shard)
+   {
+      if (filename.endsWith(".py"))
+      {
+         filename = filename.substring(0, filename.length() - 3);
+      }
+      return(filename + "_" + shard + ".py");
+   }
+
+
+   // Assemble dataset file and delete spools.
+   // A sharded dataset assembles its shard files and writes the manifest.
+   public void close() throws IOException
+   {
+      try
+      {
+         if (isSharded())
+         {
+            if ((shardPaths > 0) || shards.isEmpty())
+            {
+               endShard();
+            }
+            new DatasetShards(this).close();
+         }
+         else if (format.equals(NUMPY_FORMAT) || format.equals(SPARSE_FORMAT) || format.equals(TOKEN_FORMAT) ||
+                  format.equals(TERNARY_FORMAT))
+         {
+            new DatasetNumpyEncoder(this).write();
+         }
+         else
+         {
+            new DatasetPythonEncoder(this).write();
+         }
+      }
+      finally
+      {
+         delete();
+      }
+   }
+
+
+   // Close writers concurrently.
+   // Null writers are skipped.
+   public static void close(DatasetWriter... writers) throws IOException
+   {
+      final IOException[] errors  = new IOException[writers.length];
+      Thread[]            threads = new Thread[writers.length];
+
+      for (int i = 1; i < writers.length; i++)
+      {
+         final int           index  = i;
+         final DatasetWriter writer = writers[i];
+         if (writer != null)
+         {
+            threads[i] = new Thread(new Runnable()
+                                    {
+                                       public void run()
+                                       {
+                                          try
+                                          {
+                                             writer.close();
+                                          }
+                                          catch (IOException e)
+                                          {
+                                             errors[index] = e;
+                                          }
+                                       }
+                                    }, "DatasetWriter close");
+            threads[i].start();
+         }
+      }
+      if ((writers.length > 0) && (writers[0] != null))
+      {
+         try
+         {
+            writers[0].close();
+         }
+         catch (IOException e)
+         {
+            errors[0] = e;
+         }
+      }
+      for (int i = 1; i < writers.length; i++)
+      {
+         if (threads[i] != null)
+         {
+            try
+            {
+               threads[i].join();
+            }
+            catch (InterruptedException e)
+            {
+               errors[i] = new IOException("Interrupted closing " + writers[i].filename);
+            }
+         }
+      }
+      for (IOException e : errors)
+      {
+         if (e != null)
+         {
+            throw e;
+         }
+      }
+   }
+
+
+   // Numpy arrays file name.
+   public static String getNumpyFilename(String filename)
+   {
+      if (filename.endsWith(".py"))
+      {
+         filename = filename.substring(0, filename.length() - 3);
+      }
+      return(filename + ".npz");
+   }
+
+
+   // Compressed Python dataset file name.
+   public static String getCompressedFilename(String filename)
+   {
+      return(filename + ".gz");
+   }
+
+
+   // Delete spools.
+   public void delete()
+   {
+      for (DatasetWriter shard : shards)
+      {
+         shard.delete();
+      }
+      if (spoolWriter != null)
+      {
+         try
+         {
+            spoolWriter.finish();
+         }
+         catch (IOException e) {}
+      }
+      for (Section section : sections)
+      {
+         section.delete();
+      }
+   }
+
+
+   // Plan deduplication of row section pair, or null if not deduplicated.
+   DeduplicationPlan deduplication(Section section) throws IOException
+   {
+      if ((section.fingerprints == null) || (section.deduplication != null))
+      {
+         return(section.deduplication);
+      }
+      Section first  = (section.weighted ? section.pair : section);
+      Section second = first.pair;
+      if (first.rows != second.rows)
+      {
+         throw new IOException("Deduplicated sections " + first.name + " and " + second.name + " differ in rows");
+      }
+
+      // Find distinct row pairs with an open addressing table of pair fingerprints,
+      // confirming fingerprint matches by comparing the spooled rows.
+      first.rewind();
+      second.rewind();
+      int               rows          = first.rows;
+      int               capacity      = Integer.highestOneBit(Math.max(rows, 1)) << 2;
+      long[]            keys          = new long[capacity * 2];
+      int[]             slots         = new int[capacity];
+      long[]            firstOffsets  = (first.indices != null ? first.rowOffsets() : null);
+      long[]            secondOffsets = (second.indices != null ? second.rowOffsets() : null);
+      DeduplicationPlan plan          = new DeduplicationPlan();
+      plan.count     = 0;
+      plan.rows      = new int[rows];
+      plan.weights   = new int[rows];
+      plan.positions = new int[rows + 1];
+      for (int r = 0; r < rows; r++)
+      {
+         long key1 = mix(first.fingerprints[r * 2] ^ Long.rotateLeft(second.fingerprints[r * 2], 23));
+         long key2 = mix(first.fingerprints[r * 2 + 1] + second.fingerprints[r * 2 + 1] * 0x9e3779b97f4a7c15L);
+         int  slot = (int)key1 & (capacity - 1);
+         while ((slots[slot] != 0) &&
+                ((keys[slot * 2] != key1) || (keys[slot * 2 + 1] != key2) ||
+                 !first.sameRows(plan.rows[slots[slot] - 1], r, firstOffsets) ||
+                 !second.sameRows(plan.rows[slots[slot] - 1], r, secondOffsets)))
+         {
+            slot = (slot + 1) & (capacity - 1);
+         }
+         plan.positions[r] = plan.count;
+         if (slots[slot] == 0)
+         {
+            keys[slot * 2]          = key1;
+            keys[slot * 2 + 1]      = key2;
+            plan.rows[plan.count++] = r;
+            slots[slot]             = plan.count;
+         }
+         plan.weights[slots[slot] - 1]++;
+      }
+      plan.positions[rows] = plan.count;
+      plan.rows            = Arrays.copyOf(plan.rows, plan.count);
+      plan.weights         = Arrays.copyOf(plan.weights, plan.count);
+      first.deduplication  = plan;
+      second.deduplication = plan;
+      return(plan);
+   }
+
+
+   // Deduplicated positions of index list base section rows, the first distinct
+   // row at or after each, or null if not deduplicated.
+   int[] basePositions(Section section) throws IOException
+   {
+      if (section.base == null)
+      {
+         return(null);
+      }
+      DeduplicationPlan deduplication = deduplication(section.base);
+      return(deduplication != null ? deduplication.positions : null);
+   }
+
+
+   // Deduplicated rows as a plan of single-row sequences.
+   static SequencePlan rowPlan(DeduplicationPlan deduplication)
+   {
+      SequencePlan plan = new SequencePlan();
+
+      plan.count     = deduplication.count;
+      plan.maxLength = 1;
+      plan.starts    = new long[plan.count];
+      plan.lengths   = new int[plan.count];
+      plan.order     = new int[plan.count];
+      plan.padded    = new int[plan.count];
+      for (int i = 0; i < plan.count; i++)
+      {
+         plan.starts[i]  = deduplication.rows[i];
+         plan.lengths[i] = 1;
+         plan.order[i]   = i;
+         plan.padded[i]  = 1;
+      }
+      plan.rows      = plan.count;
+      plan.reordered = true;
+      return(plan);
+   }
+
+
+   // Fingerprint mixer.
+   private static long mix(long h)
+   {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb3f53fe63d49L;
+      h ^= h >>> 33;
+      return(h);
+   }
+
+
+   // Plan sequence layout.
+   SequencePlan plan(Section section)
+   {
+      SequencePlan plan    = new SequencePlan();
+      long[]       offsets = section.sequenceOffsets();
+
+      if (SEQUENCE_WINDOW > 0)
+      {
+         // Windows start every stride steps until the sequence end is covered.
+         int stride = sequenceStride();
+         for (int i = 0; i < section.numLengths; i++)
+         {
+            plan.count += Math.max(1, (section.lengths[i] - SEQUENCE_WINDOW + stride - 1) / stride + 1);
+         }
+         plan.maxLength       = Math.min(SEQUENCE_WINDOW, maxSequenceLength);
+         plan.starts          = new long[plan.count];
+         plan.lengths         = new int[plan.count];
+         plan.windowSequences = new int[plan.count];
+         plan.windowStarts    = new int[plan.count];
+         for (int i = 0, w = 0; i < section.numLengths; i++)
+         {
+            for (int start = 0; ; start += stride, w++)
+            {
+               plan.starts[w]          = offsets[i] + start;
+               plan.lengths[w]         = Math.min(SEQUENCE_WINDOW, section.lengths[i] - start);
+               plan.windowSequences[w] = i;
+               plan.windowStarts[w]    = start;
+               if (start + SEQUENCE_WINDOW >= section.lengths[i])
+               {
+                  w++;
+                  break;
+               }
+            }
+         }
+         plan.reordered = (stride != SEQUENCE_WINDOW);
+      }
+      else
+      {
+         plan.count     = section.numLengths;
+         plan.maxLength = maxSequenceLength;
+         plan.starts    = offsets;
+         plan.lengths   = section.lengths;
+      }
+      int n = plan.count;
+      plan.order  = new int[n];
+      plan.padded = new int[n];
+      if (SEQUENCE_LAYOUT.equals(BUCKETED_SEQUENCES) && (n > 0))
+      {
+         // Equal count buckets by length, keeping sequence order within a bucket.
+         final int[] lengths = plan.lengths;
+         Integer[]   ranks   = new Integer[n];
+         for (int i = 0; i < n; i++)
+         {
+            ranks[i] = i;
+         }
+         Arrays.sort(ranks, new Comparator<Integer>()
+                     {
+                        public int compare(Integer a, Integer b)
+                        {
+                           return(Integer.compare(lengths[a], lengths[b]));
+                        }
+                     });
+         int buckets = Math.min(SEQUENCE_BUCKETS, n);
+         plan.bucketStarts = new int[buckets + 1];
+         for (int b = 0; b < buckets; b++)
+         {
+            int start = (int)((long)b * n / buckets);
+            int end   = (int)((long)(b + 1) * n / buckets);
+            plan.bucketStarts[b] = start;
+            Arrays.sort(ranks, start, end);
+            int max = 0;
+            for (int i = start; i < end; i++)
+            {
+               max = Math.max(max, lengths[ranks[i]]);
+            }
+            for (int i = start; i < end; i++)
+            {
+               plan.order[i]  = ranks[i];
+               plan.padded[i] = max;
+               if (ranks[i] != i)
+               {
+                  plan.reordered = true;
+               }
+            }
+         }
+         plan.bucketStarts[buckets] = n;
+      }
+      else
+      {
+         for (int i = 0; i < n; i++)
+         {
+            plan.order[i] = i;
+            if (SEQUENCE_LAYOUT.equals(RAGGED_SEQUENCES))
+            {
+               plan.padded[i] = plan.lengths[i];
+            }
+            else
+            {
+               plan.padded[i] = plan.maxLength;
+            }
+         }
+         plan.bucketStarts = new int[] { 0, n };
+      }
+      for (int i = 0; i < n; i++)
+      {
+         plan.rows += plan.padded[i];
+      }
+      return(plan);
+   }
+
+
+   // Window stride.
+   static int sequenceStride()
+   {
+      if ((SEQUENCE_STRIDE > 0) && (SEQUENCE_STRIDE < SEQUENCE_WINDOW))
+      {
+         return(SEQUENCE_STRIDE);
+      }
+      return(SEQUENCE_WINDOW);
+   }
+}
@@ -0,0 +1,290 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Bounded LRU cache of context feature encodings, and feature set interning.
+// Feature sets are sorted and immutable. Interned sets are canonical: equal
+// sets share one instance for as long as any is in use, so they compare by
+// reference. The canonical table is separate from the LRU tables and holds its
+// instances weakly, so evicting an encoding does not lose its interning.
+// Each thread has its own cache, so dataset workers never contend for a lock.
+// Sets are canonical within the thread that interned them; sets shared with
+// another thread are interned again there. Statistics sum the thread caches.
+
+package mandala;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+public class FeaturesCache
+{
+   // Capacity (entries per table, 0=disable encoding cache).
+   public static int CAPACITY = 4096;
+
+   // Thread caches, and statistics of caches of finished threads.
+   private static volatile ThreadLocal<FeaturesCache> local         = new ThreadLocal<FeaturesCache>();
+   private static ArrayList<FeaturesCache>            caches        = new ArrayList<FeaturesCache>();
+   private static long                                retiredHits   = 0;
+   private static long                                retiredMisses = 0;
+
+   // Combination key.
+   private static class Key
+   {
+      List<Integer> features1;
+      List<Integer> features2;
+      int           hash;
+
+      Key(List<Integer> features1, List<Integer> features2)
+      {
+         this.features1 = features1;
+         this.features2 = features2;
+         hash           = (31 * features1.hashCode()) + features2.hashCode();
+      }
+
+
+      @Override
+      public int hashCode()
+      {
+         return(hash);
+      }
+
+
+      @Override
+      public boolean equals(Object object)
+      {
+         if (!(object instanceof Key))
+         {
+            return(false);
+         }
+         Key key = (Key)object;
+         return(hash == key.hash && features1.equals(key.features1) && features2.equals(key.features2));
+      }
+   };
+
+   // LRU table.
+   private static class Table<K, V> extends LinkedHashMap<K, V>
+   {
+      private static final long serialVersionUID = 1L;
+
+      Table()
+      {
+         super(16, 0.75f, true);
+      }
+
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+      {
+         return(size() > CAPACITY);
+      }
+   };
+
+   // Owner thread.
+   private WeakReference<Thread> thread;
+
+   // Statistics, written by the owner thread and read once its work is done.
+   private long hits;
+   private long misses;
+
+   // Encoding tables.
+   private Table<Long, List<Integer>> causations;
+   private Table<Key, List<Integer>>  combinations;
+
+   // Canonical feature sets.
+   private WeakHashMap < List < Integer >, WeakReference < List < Integer >>> canonical;
+
+   // Thread cache.
+   private FeaturesCache()
+   {
+      thread       = new WeakReference<Thread>(Thread.currentThread());
+      hits         = 0;
+      misses       = 0;
+      causations   = new Table<Long, List<Integer>>();
+      combinations = new Table<Key, List<Integer>>();
+      canonical    = new WeakHashMap < List < Integer >, WeakReference < List < Integer >>> ();
+   }
+
+
+   // Get cache of current thread.
+   private static FeaturesCache get()
+   {
+      ThreadLocal<FeaturesCache> threadCaches = local;
+      FeaturesCache              cache        = threadCaches.get();
+
+      if (cache == null)
+      {
+         cache = new FeaturesCache();
+         threadCaches.set(cache);
+         register(cache);
+      }
+      return(cache);
+   }
+
+
+   // Register thread cache, retiring caches of finished threads.
+   private static synchronized void register(FeaturesCache cache)
+   {
+      for (int i = caches.size() - 1; i >= 0; i--)
+      {
+         FeaturesCache retired = caches.get(i);
+         Thread        owner   = retired.thread.get();
+         if ((owner == null) || !owner.isAlive())
+         {
+            retiredHits   += retired.hits;
+            retiredMisses += retired.misses;
+            caches.remove(i);
+         }
+      }
+      caches.add(cache);
+   }
+
+
+   // Get causation features.
+   public static List<Integer> encodeFeatures(int hierarchy, int id)
+   {
+      FeaturesCache cache = get();
+
+      if (CAPACITY <= 0)
+      {
+         cache.misses++;
+         return(cache.internFeatures(Mandala.Causation.encodeFeatures(hierarchy, id)));
+      }
+      Long          key      = ((long)hierarchy << 32) | (id & 0xffffffffL);
+      List<Integer> features = cache.causations.get(key);
+      if (features != null)
+      {
+         cache.hits++;
+         return(features);
+      }
+      cache.misses++;
+      features = cache.internFeatures(Mandala.Causation.encodeFeatures(hierarchy, id));
+      cache.causations.put(key, features);
+      return(features);
+   }
+
+
+   // Get combined features.
+   public static List<Integer> encodeFeatures(List<Integer> features1, List<Integer> features2)
+   {
+      FeaturesCache cache = get();
+
+      if (CAPACITY <= 0)
+      {
+         cache.misses++;
+         return(cache.internFeatures(Mandala.Causation.encodeFeatures(features1, features2)));
+      }
+      Key           key      = new Key(features1, features2);
+      List<Integer> features = cache.combinations.get(key);
+      if (features != null)
+      {
+         cache.hits++;
+         return(features);
+      }
+      cache.misses++;
+      features = cache.internFeatures(Mandala.Causation.encodeFeatures(features1, features2));
+      cache.combinations.put(key, features);
+      return(features);
+   }
+
+
+   // Intern sorted features, returning the canonical immutable set of the current thread.
+   public static List<Integer> intern(List<Integer> features)
+   {
+      return(get().internFeatures(features));
+   }
+
+
+   private List<Integer> internFeatures(List<Integer> features)
+   {
+      WeakReference<List<Integer>> reference = canonical.get(features);
+      List<Integer>                internedFeatures = (reference != null ? reference.get() : null);
+
+      if (internedFeatures == null)
+      {
+         internedFeatures = Collections.unmodifiableList(new ArrayList<Integer>(features));
+         canonical.put(internedFeatures, new WeakReference<List<Integer>>(internedFeatures));
+      }
+      return(internedFeatures);
+   }
+
+
+   // Canonical set of features of the current thread, or null if not interned.
+   public static List<Integer> canonical(List<Integer> features)
+   {
+      WeakReference<List<Integer>> reference = get().canonical.get(features);
+
+      return(reference != null ? reference.get() : null);
+   }
+
+
+   // Clear: threads begin new caches.
+   public static synchronized void clear()
+   {
+      caches.clear();
+      local         = new ThreadLocal<FeaturesCache>();
+      retiredHits   = 0;
+      retiredMisses = 0;
+   }
+
+
+   // Statistics: encoding lookups found and not found, and cached encodings.
+   public static synchronized long getHits()
+   {
+      long hits = retiredHits;
+
+      for (FeaturesCache cache : caches)
+      {
+         hits += cache.hits;
+      }
+      return(hits);
+   }
+
+
+   public static synchronized long getMisses()
+   {
+      long misses = retiredMisses;
+
+      for (FeaturesCache cache : caches)
+      {
+         misses += cache.misses;
+      }
+      return(misses);
+   }
+
+
+   // Cached encodings of the current thread.
+   public static int getSize()
+   {
+      FeaturesCache cache = get();
+
+      return(cache.causations.size() + cache.combinations.size());
+   }
+
+
+   // Number of canonical feature sets in use by the current thread.
+   public static int getInterned()
+   {
+      return(get().canonical.size());
+   }
+
+
+   // Print statistics.
+   public static void print()
+   {
+      long  hits    = getHits();
+      long  misses  = getMisses();
+      long  lookups = hits + misses;
+      float hitPct  = 0.0f;
+
+      if (lookups > 0)
+      {
+         hitPct = ((float)hits / (float)lookups) * 100.0f;
+      }
+      FeaturesCache cache = get();
+      System.out.println("features cache: capacity=" + CAPACITY + ", hits=" + hits + ", misses=" + misses +
+                         " (" + hitPct + "% hits), combinations=" + cache.combinations.size() + ", interned=" + cache.canonical.size());
+   }
+}
@@ -5,6 +5,8 @@
 
 package mandala;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -16,10 +18,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -96,7 +108,7 @@ public class Mandala
       }
 
 
-      public static ArrayList<Integer> encodeFeatures(ArrayList<Integer> features1, ArrayList<Integer> features2)
+      public static ArrayList<Integer> encodeFeatures(List<Integer> features1, List<Integer> features2)
       {
          String seedString = "";
 
@@ -382,29 +394,46 @@ public class Mandala
    public static ArrayList<Integer> tierValueDurations;
 
    // Context features.
+   // Features are interned, immutable and sorted.
    public static class ContextFeatures
    {
-      public ArrayList<Integer> features;
-      public float              value;
-      public int                age;
-      public int                tier;
+      public List<Integer> features;
+      public float         value;
+      public int           age;
+      public int           tier;
+
+      // Never seen before when placed, with novel context detection.
+      public boolean novel;
 
       // Constructors.
       public ContextFeatures(Causation causation, int tier)
       {
-         features  = Causation.encodeFeatures(causation.hierarchy, causation.id);
+         features  = FeaturesCache.encodeFeatures(causation.hierarchy, causation.id);
          value     = 1.0f;
          age       = 0;
          this.tier = tier;
+         novel     = false;
       }
 
 
       public ContextFeatures(ContextFeatures contextFeatures1, ContextFeatures contextFeatures2, int tier)
       {
-         features  = Causation.encodeFeatures(contextFeatures1.features, contextFeatures2.features);
+         features  = FeaturesCache.encodeFeatures(contextFeatures1.features, contextFeatures2.features);
          value     = 1.0f;
          age       = 0;
          this.tier = tier;
+         novel     = false;
+      }
+
+
+      // Copy, interning features in the current thread.
+      public ContextFeatures(ContextFeatures contextFeatures)
+      {
+         features = FeaturesCache.intern(contextFeatures.features);
+         value    = contextFeatures.value;
+         age      = contextFeatures.age;
+         tier     = contextFeatures.tier;
+         novel    = contextFeatures.novel;
       }
 
 
@@ -420,26 +449,17 @@ public class Mandala
 
 
       // Features are equal?
+      // Features interned by the same thread are the same instance, which is a fast path;
+      // sets interned by other threads, or before a cache clear, are compared by value.
       public boolean featuresEqual(ContextFeatures contextFeatures)
       {
          return(featuresEqual(contextFeatures.features));
       }
 
 
-      public boolean featuresEqual(ArrayList<Integer> otherFeatures)
+      public boolean featuresEqual(List<Integer> otherFeatures)
       {
-         if (features.size() != otherFeatures.size())
-         {
-            return(false);
-         }
-         for (int i : features)
-         {
-            if (!otherFeatures.contains(i))
-            {
-               return(false);
-            }
-         }
-         return(true);
+         return((features == otherFeatures) || features.equals(otherFeatures));
       }
 
 
@@ -469,6 +489,38 @@ public class Mandala
       }
 
 
+      // Save.
+      public void save(DataOutputStream writer) throws IOException
+      {
+         Utility.saveInt(writer, features.size());
+         for (int i : features)
+         {
+            Utility.saveInt(writer, i);
+         }
+         Utility.saveFloat(writer, value);
+         Utility.saveInt(writer, age);
+         Utility.saveInt(writer, tier);
+      }
+
+
+      // Load.
+      public static ContextFeatures load(DataInputStream reader) throws IOException
+      {
+         ContextFeatures    contextFeatures = new ContextFeatures();
+         ArrayList<Integer> features        = new ArrayList<Integer>();
+
+         for (int i = 0, j = Utility.loadInt(reader); i < j; i++)
+         {
+            features.add(Utility.loadInt(reader));
+         }
+         contextFeatures.features = FeaturesCache.intern(features);
+         contextFeatures.value    = Utility.loadFloat(reader);
+         contextFeatures.age      = Utility.loadInt(reader);
+         contextFeatures.tier     = Utility.loadInt(reader);
+         return(contextFeatures);
+      }
+
+
       // Print.
       public void print()
       {
@@ -483,17 +535,42 @@ public class Mandala
          }
          System.out.println(", tier=" + tier + ", value=" + value + ", age=" + age);
       }
+
+
+      private ContextFeatures() {}
    };
-   public static ArrayList<ContextFeatures> contextTiers;
+
+   // Context tiers snapshot file identifier.
+   public static final int CONTEXT_TIERS_SNAPSHOT_ID = 0x4d435453;
 
    // Prediction signature length.
    public static int PredictionSignatureLength = 8;
 
    // Datasets.
-   public static String NN_DATASET_FILENAME        = "mandala_nn_dataset.py";
-   public static float  NN_DATASET_TRAIN_FRACTION  = 0.5f;
-   public static String RNN_DATASET_FILENAME       = "mandala_rnn_dataset.py";
-   public static float  RNN_DATASET_TRAIN_FRACTION = 0.5f;
+   public static String  NN_DATASET_FILENAME        = "mandala_nn_dataset.py";
+   public static float   NN_DATASET_TRAIN_FRACTION  = 0.5f;
+   public static boolean NN_DATASET_DEDUPLICATE     = false;
+   public static String  RNN_DATASET_FILENAME       = "mandala_rnn_dataset.py";
+   public static float   RNN_DATASET_TRAIN_FRACTION = 0.5f;
+   public static String  DATASET_FORMAT             = DatasetWriter.PYTHON_FORMAT;
+   public static int     DATASET_THREADS            = Runtime.getRuntime().availableProcessors();
+
+   // Dataset export checkpoint file (null=none), paths between checkpoints, and resume from it.
+   // A checkpoint records the paths written and the dataset writers, whose spool files are
+   // kept until the export completes. Every train path starts from empty context tiers.
+   public static String    CHECKPOINT_FILENAME = null;
+   public static int       CHECKPOINT_PATHS    = 100;
+   public static boolean   CHECKPOINT_RESUME   = false;
+   public static final int CHECKPOINT_ID       = 0x4d434b51;
+
+   // Halt export after writing this many paths (0=never), simulating an interruption.
+   static int CHECKPOINT_HALT_PATHS = 0;
+
+   // Paths resumed from checkpoint by the last export.
+   static int resumedPaths = 0;
+
+   // Checkpoint parameters key: dataset cache key of the run (null=key of generated causations).
+   static String checkpointKey = null;
 
    // Learners.
    public static String NN_FILENAME          = "mandala_nn.py";
@@ -549,12 +626,34 @@ public class Mandala
       "      [-numCausationPaths <quantity per hierarchy> (default=" + NUM_CAUSATION_PATHS + ")]\n" +
       "      [-maxContextTier <value> (default=" + MAX_CONTEXT_TIER + ")]\n" +
       "      [-contextTierValueDurationType \"minimum\" | \"expected\" | \"maximum\" (default=" + TIER_VALUE_DURATION_TYPE + ")]\n" +
+      "      [-contextCacheSize <entries> (default=" + FeaturesCache.CAPACITY + ", 0=disable)]\n" +
+      "      [-monitorContexts (estimate distinct tier contexts)]\n" +
+      "      [-detectNovelContexts (flag never-before-seen tier contexts)\n" +
+      "          [-novelContextCapacity <expected contexts> (default=" + ContextMonitor.NOVELTY_CAPACITY + ")]\n" +
+      "          [-novelContextFalsePositiveRate <probability> (default=" + ContextMonitor.NOVELTY_FALSE_POSITIVE_RATE + ")]]\n" +
       "      [-NNdatasetTrainFraction <fraction> (default=" + NN_DATASET_TRAIN_FRACTION + ")]\n" +
+      "      [-NNdatasetDeduplicate (write distinct train rows with occurrence weights)]\n" +
       "      [-NNneurons<number of neurons> (comma-separated for additional layers) (default=" + NN_NEURONS + ")]\n" +
       "      [-NNepochs <number of epochs> (default=" + NN_EPOCHS + ")]\n" +
       "      [-RNNdatasetTrainFraction <fraction> (default=" + RNN_DATASET_TRAIN_FRACTION + ")]\n" +
       "      [-RNNneurons <number of neurons> (comma-separated for additional layers) (default=" + RNN_NEURONS + ")]\n" +
       "      [-RNNepochs <number of epochs> (default=" + RNN_EPOCHS + ")]\n" +
+      "      [-RNNsequenceLayout \"padded\" | \"ragged\" | \"bucketed\" (default=" + DatasetWriter.SEQUENCE_LAYOUT + ")]\n" +
+      "      [-RNNsequenceBuckets <quantity> (default=" + DatasetWriter.SEQUENCE_BUCKETS + ", bucketed layout)]\n" +
+      "      [-RNNsequenceWindow <length> (default=" + DatasetWriter.SEQUENCE_WINDOW + ", 0=whole sequences)\n" +
+      "          [-RNNsequenceStride <steps> (default=window length, at most window length)]]\n" +
+      "      [-datasetFormat \"python\" | \"numpy\" | \"sparse\" | \"token\" | \"ternary\" (default=" + DATASET_FORMAT + ", numpy=memory-mapped .npz arrays, sparse=.npz CSR arrays, token=.npz terminal token ids and feature codebook, ternary=.npz 2-bit packed values)]\n" +
+      "      [-datasetCompression <level> (default=" + DatasetWriter.COMPRESSION_LEVEL + ", 1-9=gzip, python format only, 0=none)]\n" +
+      "      [-datasetWriteBuffers <quantity> (default=" + DatasetWriter.WRITE_BUFFERS + ", 0=write on generating thread)]\n" +
+      "      [-datasetMappedSpools (spool datasets in memory-mapped files)]\n" +
+      "      [-datasetSpooling \"auto\" | \"memory\" | \"file\" (default=" + DatasetWriter.SPOOLING + ", auto=memory if dataset size preflight fits in heap)]\n" +
+      "      [-datasetThreads <quantity> (default=" + DATASET_THREADS + ", quiet runs without novel context detection only)]\n" +
+      "      [-datasetCache <directory> (reuse datasets exported with identical parameters)]\n" +
+      "      [-checkpoint <file name> (checkpoint dataset export, file spooling without shards)\n" +
+      "          [-checkpointPaths <quantity> (default=" + CHECKPOINT_PATHS + ", paths between checkpoints)]\n" +
+      "          [-resume (resume dataset export from checkpoint file, if present)]]\n" +
+      "      [-datasetShards <quantity> (default=" + DatasetWriter.SHARDS + ", split by path steps, dataset file becomes shard manifest)]\n" +
+      "      [-datasetShardRows <rows> (default=" + DatasetWriter.SHARD_ROWS + ", begin new shard after rows, 0=shard by path)]\n" +
       "      [-randomSeed <seed> (default=" + RANDOM_SEED + ")]\n" +
       "      [-quiet]\n" +
       "      [-save [<file name> (default=" + MANDALA_FILENAME + ")]\n" +
@@ -566,12 +665,34 @@ public class Mandala
       "          [-treeFormat \"true\" | \"false\" (default=" + TREE_FORMAT + ")]]\n" +
       "      [-maxContextTier <value> (default=" + MAX_CONTEXT_TIER + ")]\n" +
       "      [-contextTierValueDurationType \"minimum\" | \"expected\" | \"maximum\" (default=" + TIER_VALUE_DURATION_TYPE + ")]\n" +
+      "      [-contextCacheSize <entries> (default=" + FeaturesCache.CAPACITY + ", 0=disable)]\n" +
+      "      [-monitorContexts (estimate distinct tier contexts)]\n" +
+      "      [-detectNovelContexts (flag never-before-seen tier contexts)\n" +
+      "          [-novelContextCapacity <expected contexts> (default=" + ContextMonitor.NOVELTY_CAPACITY + ")]\n" +
+      "          [-novelContextFalsePositiveRate <probability> (default=" + ContextMonitor.NOVELTY_FALSE_POSITIVE_RATE + ")]]\n" +
       "      [-NNdatasetTrainFraction <fraction> (default=" + NN_DATASET_TRAIN_FRACTION + ")]\n" +
+      "      [-NNdatasetDeduplicate (write distinct train rows with occurrence weights)]\n" +
       "      [-NNneurons<number of neurons> (comma-separated for additional layers) (default=" + NN_NEURONS + ")]\n" +
       "      [-NNepochs <number of epochs> (default=" + NN_EPOCHS + ")]\n" +
       "      [-RNNdatasetTrainFraction <fraction> (default=" + RNN_DATASET_TRAIN_FRACTION + ")]\n" +
       "      [-RNNneurons <number of neurons> (comma-separated for additional layers) (default=" + RNN_NEURONS + ")]\n" +
       "      [-RNNepochs <number of epochs> (default=" + RNN_EPOCHS + ")]\n" +
+      "      [-RNNsequenceLayout \"padded\" | \"ragged\" | \"bucketed\" (default=" + DatasetWriter.SEQUENCE_LAYOUT + ")]\n" +
+      "      [-RNNsequenceBuckets <quantity> (default=" + DatasetWriter.SEQUENCE_BUCKETS + ", bucketed layout)]\n" +
+      "      [-RNNsequenceWindow <length> (default=" + DatasetWriter.SEQUENCE_WINDOW + ", 0=whole sequences)\n" +
+      "          [-RNNsequenceStride <steps> (default=window length, at most window length)]]\n" +
+      "      [-datasetFormat \"python\" | \"numpy\" | \"sparse\" | \"token\" | \"ternary\" (default=" + DATASET_FORMAT + ", numpy=memory-mapped .npz arrays, sparse=.npz CSR arrays, token=.npz terminal token ids and feature codebook, ternary=.npz 2-bit packed values)]\n" +
+      "      [-datasetCompression <level> (default=" + DatasetWriter.COMPRESSION_LEVEL + ", 1-9=gzip, python format only, 0=none)]\n" +
+      "      [-datasetWriteBuffers <quantity> (default=" + DatasetWriter.WRITE_BUFFERS + ", 0=write on generating thread)]\n" +
+      "      [-datasetMappedSpools (spool datasets in memory-mapped files)]\n" +
+      "      [-datasetSpooling \"auto\" | \"memory\" | \"file\" (default=" + DatasetWriter.SPOOLING + ", auto=memory if dataset size preflight fits in heap)]\n" +
+      "      [-datasetThreads <quantity> (default=" + DATASET_THREADS + ", quiet runs without novel context detection only)]\n" +
+      "      [-datasetCache <directory> (reuse datasets exported with identical parameters)]\n" +
+      "      [-checkpoint <file name> (checkpoint dataset export, file spooling without shards)\n" +
+      "          [-checkpointPaths <quantity> (default=" + CHECKPOINT_PATHS + ", paths between checkpoints)]\n" +
+      "          [-resume (resume dataset export from checkpoint file, if present)]]\n" +
+      "      [-datasetShards <quantity> (default=" + DatasetWriter.SHARDS + ", split by path steps, dataset file becomes shard manifest)]\n" +
+      "      [-datasetShardRows <rows> (default=" + DatasetWriter.SHARD_ROWS + ", begin new shard after rows, 0=shard by path)]\n" +
       "      [-randomSeed <seed> (default=" + RANDOM_SEED + ")]\n" +
       "      [-quiet]\n" +
       "  Help:\n" +
@@ -588,6 +709,8 @@ public class Mandala
       boolean gotSave = false;
       boolean gotExportCausationsGraph = false;
       boolean gotTreeFormat            = false;
+      boolean gotNoveltyParameter      = false;
+      boolean gotCheckpointParameter   = false;
 
       for (int i = 0; i < args.length; i++)
       {
@@ -935,6 +1058,96 @@ public class Mandala
             }
             continue;
          }
+         if (args[i].equals("-contextCacheSize"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid contextCacheSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               FeaturesCache.CAPACITY = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid contextCacheSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (FeaturesCache.CAPACITY < 0)
+            {
+               System.err.println("Invalid contextCacheSize option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-monitorContexts"))
+         {
+            ContextMonitor.ENABLED = true;
+            continue;
+         }
+         if (args[i].equals("-detectNovelContexts"))
+         {
+            ContextMonitor.NOVELTY_ENABLED = true;
+            continue;
+         }
+         if (args[i].equals("-novelContextCapacity"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid novelContextCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               ContextMonitor.NOVELTY_CAPACITY = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid novelContextCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (ContextMonitor.NOVELTY_CAPACITY < 1)
+            {
+               System.err.println("Invalid novelContextCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            gotNoveltyParameter = true;
+            continue;
+         }
+         if (args[i].equals("-novelContextFalsePositiveRate"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid novelContextFalsePositiveRate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               ContextMonitor.NOVELTY_FALSE_POSITIVE_RATE = Double.parseDouble(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid novelContextFalsePositiveRate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((ContextMonitor.NOVELTY_FALSE_POSITIVE_RATE <= 0.0) || (ContextMonitor.NOVELTY_FALSE_POSITIVE_RATE >= 1.0))
+            {
+               System.err.println("Invalid novelContextFalsePositiveRate option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            gotNoveltyParameter = true;
+            continue;
+         }
          if (args[i].equals("-NNdatasetTrainFraction"))
          {
             i++;
@@ -961,6 +1174,11 @@ public class Mandala
             }
             continue;
          }
+         if (args[i].equals("-NNdatasetDeduplicate"))
+         {
+            NN_DATASET_DEDUPLICATE = true;
+            continue;
+         }
          if (args[i].equals("-NNneurons"))
          {
             i++;
@@ -1075,1667 +1293,1909 @@ public class Mandala
             }
             continue;
          }
-         if (args[i].equals("-randomSeed"))
+         if (args[i].equals("-RNNsequenceLayout"))
          {
             i++;
             if (i >= args.length)
             {
-               System.err.println("Invalid randomSeed option");
+               System.err.println("Invalid RNNsequenceLayout option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            DatasetWriter.SEQUENCE_LAYOUT = new String(args[i]);
+            if (!DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.PADDED_SEQUENCES) &&
+                !DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.RAGGED_SEQUENCES) &&
+                !DatasetWriter.SEQUENCE_LAYOUT.equals(DatasetWriter.BUCKETED_SEQUENCES))
+            {
+               System.err.println("Invalid RNNsequenceLayout option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-RNNsequenceBuckets"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid RNNsequenceBuckets option");
                System.err.println(Usage);
                System.exit(1);
             }
             try
             {
-               RANDOM_SEED = Integer.parseInt(args[i]);
+               DatasetWriter.SEQUENCE_BUCKETS = Integer.parseInt(args[i]);
             }
             catch (NumberFormatException e) {
-               System.err.println("Invalid randomSeed option");
+               System.err.println("Invalid RNNsequenceBuckets option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DatasetWriter.SEQUENCE_BUCKETS < 1)
+            {
+               System.err.println("Invalid RNNsequenceBuckets option");
                System.err.println(Usage);
                System.exit(1);
             }
             continue;
          }
-         if (args[i].equals("-quiet"))
+         if (args[i].equals("-RNNsequenceWindow"))
          {
-            VERBOSE = false;
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid RNNsequenceWindow option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               DatasetWriter.SEQUENCE_WINDOW = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid RNNsequenceWindow option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DatasetWriter.SEQUENCE_WINDOW < 0)
+            {
+               System.err.println("Invalid RNNsequenceWindow option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
             continue;
          }
-         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         if (args[i].equals("-RNNsequenceStride"))
          {
-            System.out.println(Usage);
-            System.exit(0);
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid RNNsequenceStride option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               DatasetWriter.SEQUENCE_STRIDE = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid RNNsequenceStride option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DatasetWriter.SEQUENCE_STRIDE < 1)
+            {
+               System.err.println("Invalid RNNsequenceStride option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-         System.err.println("Invalid option: " + args[i]);
-         System.err.println(Usage);
-         System.exit(1);
-      }
-
-      // Validate options.
-      if (gotLoad && gotNew)
-      {
-         System.err.println(Usage);
-         System.exit(1);
-      }
-      if (NUM_DIMENSIONS < NUM_FEATURES)
-      {
-         System.err.println(Usage);
-         System.exit(1);
-      }
-      if (!gotExportCausationsGraph && gotTreeFormat)
-      {
-         System.err.println(Usage);
-         System.exit(1);
-      }
-
-      if (VERBOSE)
-      {
-         System.out.print("options: ");
-         for (String arg : args)
+         if (args[i].equals("-datasetFormat"))
          {
-            System.out.print(arg + " ");
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid datasetFormat option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            DATASET_FORMAT = new String(args[i]);
+            if (!DATASET_FORMAT.equals(DatasetWriter.PYTHON_FORMAT) && !DATASET_FORMAT.equals(DatasetWriter.NUMPY_FORMAT) &&
+                !DATASET_FORMAT.equals(DatasetWriter.SPARSE_FORMAT) && !DATASET_FORMAT.equals(DatasetWriter.TOKEN_FORMAT) &&
+                !DATASET_FORMAT.equals(DatasetWriter.TERNARY_FORMAT))
+            {
+               System.err.println("Invalid datasetFormat option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-         System.out.println();
-      }
-
-      // Load?
-      if (gotLoad)
-      {
-         try
+         if (args[i].equals("-datasetCompression"))
          {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(MANDALA_FILENAME)));
-
-            // Load parameters.
-            NUM_CAUSATION_HIERARCHIES       = Utility.loadInt(reader);
-            NUM_NONTERMINALS                = Utility.loadInt(reader);
-            NUM_TERMINALS                   = Utility.loadInt(reader);
-            NUM_INTERSTITIAL_TERMINALS      = Utility.loadInt(reader);
-            TERMINAL_PRODUCTION_PROBABILITY = Utility.loadFloat(reader);
-            NUM_DIMENSIONS                  = Utility.loadInt(reader);
-            NUM_FEATURES = Utility.loadInt(reader);
-
-            // Load causations.
-            causationHierarchies = new ArrayList < ArrayList < Causation >> ();
-            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+            i++;
+            if (i >= args.length)
             {
-               ArrayList<Causation> causations = new ArrayList<Causation>();
-               if (NUM_NONTERMINALS > 0)
-               {
-                  ArrayList<NonterminalCausation> nonterminalInstances = new ArrayList<NonterminalCausation>();
-                  for (int j = 0; j < NUM_NONTERMINALS; j++)
-                  {
-                     nonterminalInstances.add(new NonterminalCausation(i, j));
-                  }
-                  ArrayList<TerminalCausation> terminalInstances = new ArrayList<TerminalCausation>();
-                  for (int j = 0; j < NUM_TERMINALS; j++)
-                  {
-                     terminalInstances.add(new TerminalCausation(i, j));
-                  }
-                  int k = Utility.loadInt(reader);
-                  for (int j = 0; j < k; j++)
-                  {
-                     int id = Utility.loadInt(reader);
-                     NonterminalCausation nonterminalCausation = nonterminalInstances.get(id);
-                     causations.add(nonterminalCausation);
-                     if (Utility.loadInt(reader) == 0)
-                     {
-                        for (int p = 0, q = Utility.loadInt(reader); p < q; p++)
-                        {
-                           NonterminalCausation child = nonterminalInstances.get(Utility.loadInt(reader));
-                           nonterminalCausation.children.add(child);
-                           child.parents.add(nonterminalCausation);
-                        }
-                     }
-                     else
-                     {
-                        for (int p = 0, q = Utility.loadInt(reader); p < q; p++)
-                        {
-                           TerminalCausation child = terminalInstances.get(Utility.loadInt(reader));
-                           nonterminalCausation.children.add(child);
-                           child.parents.add(nonterminalCausation);
-                        }
-                     }
-                  }
-               }
-               else if (NUM_TERMINALS > 0)
-               {
-                  causations.add(new TerminalCausation(i, 0));
-               }
-               causationHierarchies.add(causations);
+               System.err.println("Invalid datasetCompression option");
+               System.err.println(Usage);
+               System.exit(1);
             }
-
-            // Load causation paths.
-            NUM_CAUSATION_PATHS = Utility.loadInt(reader);
-            causationPaths      = new ArrayList < ArrayList < CausationPath >> ();
-            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+            try
             {
-               ArrayList<CausationPath> paths = new ArrayList<CausationPath>();
-               causationPaths.add(paths);
-               for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
-               {
-                  paths.add(new CausationPath(Utility.loadInt(reader), Utility.loadInt(reader)));
-               }
+               DatasetWriter.COMPRESSION_LEVEL = Integer.parseInt(args[i]);
             }
-
-            reader.close();
+            catch (NumberFormatException e) {
+               System.err.println("Invalid datasetCompression option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((DatasetWriter.COMPRESSION_LEVEL < 0) || (DatasetWriter.COMPRESSION_LEVEL > 9))
+            {
+               System.err.println("Invalid datasetCompression option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-         catch (Exception e)
+         if (args[i].equals("-datasetWriteBuffers"))
          {
-            System.err.println("Error loading file " + MANDALA_FILENAME + ":" + e.getMessage());
-            System.exit(1);
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid datasetWriteBuffers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               DatasetWriter.WRITE_BUFFERS = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid datasetWriteBuffers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DatasetWriter.WRITE_BUFFERS < 0)
+            {
+               System.err.println("Invalid datasetWriteBuffers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-      }
-      else
-      {
-         // Generate causations.
-         randomizer           = new SplittableRandom(RANDOM_SEED);
-         causationHierarchies = new ArrayList < ArrayList < Causation >> ();
-         for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+         if (args[i].equals("-datasetMappedSpools"))
          {
-            ArrayList<Causation> causations = new ArrayList<Causation>();
-            if (NUM_NONTERMINALS > 0)
+            DatasetWriter.MAPPED_SPOOLS = true;
+            continue;
+         }
+         if (args[i].equals("-datasetSpooling"))
+         {
+            i++;
+            if (i >= args.length)
             {
-               ArrayList<NonterminalCausation> nonterminalInstances = generateCausationHierarchy(i);
-               for (NonterminalCausation causation : nonterminalInstances)
-               {
-                  if (causation != null)
-                  {
-                     causations.add((Causation)causation);
-                  }
-               }
+               System.err.println("Invalid datasetSpooling option");
+               System.err.println(Usage);
+               System.exit(1);
             }
-            else if (NUM_TERMINALS > 0)
+            DatasetWriter.SPOOLING = new String(args[i]);
+            if (!DatasetWriter.SPOOLING.equals(DatasetWriter.AUTO_SPOOLING) &&
+                !DatasetWriter.SPOOLING.equals(DatasetWriter.MEMORY_SPOOLING) &&
+                !DatasetWriter.SPOOLING.equals(DatasetWriter.FILE_SPOOLING))
             {
-               causations.add(new TerminalCausation(i, 0));
+               System.err.println("Invalid datasetSpooling option");
+               System.err.println(Usage);
+               System.exit(1);
             }
-            causationHierarchies.add(causations);
+            continue;
          }
-         causationPaths = null;
-      }
-
-      // Print parameters and causations.
-      if (VERBOSE)
-      {
-         System.out.println("parameters:");
-         System.out.println("NUM_CAUSATION_HIERARCHIES=" + NUM_CAUSATION_HIERARCHIES);
-         System.out.println("NUM_NONTERMINALS=" + NUM_NONTERMINALS);
-         System.out.println("NUM_TERMINALS=" + NUM_TERMINALS);
-         System.out.println("NUM_INTERSTITIAL_TERMINALS=" + NUM_INTERSTITIAL_TERMINALS);
-         System.out.println("TERMINAL_PRODUCTION_PROBABILITY=" + TERMINAL_PRODUCTION_PROBABILITY);
-         System.out.println("NUM_DIMENSIONS=" + NUM_DIMENSIONS);
-         System.out.println("NUM_FEATURES=" + NUM_FEATURES);
-         System.out.println("MAX_INTERSTITIAL_TERMINAL_SEQUENCE=" + MAX_INTERSTITIAL_TERMINAL_SEQUENCE);
-         System.out.println("CAUSATIONS_GRAPH_FILENAME=" + CAUSATIONS_GRAPH_FILENAME + ", TREE_FORMAT=" + TREE_FORMAT);
-         System.out.println("NUM_CAUSATION_PATHS=" + NUM_CAUSATION_PATHS);
-         System.out.println("MAX_CONTEXT_TIER=" + MAX_CONTEXT_TIER);
-         System.out.println("TIER_VALUE_DURATION_TYPE=" + TIER_VALUE_DURATION_TYPE);
-         System.out.println("NN_DATASET_TRAIN_FRACTION=" + NN_DATASET_TRAIN_FRACTION);
-         System.out.println("NN_NEURONS=" + NN_NEURONS);
-         System.out.println("NN_EPOCHS=" + NN_EPOCHS);
-         System.out.println("RNN_DATASET_TRAIN_FRACTION=" + RNN_DATASET_TRAIN_FRACTION);
-         System.out.println("RNN_NEURONS=" + RNN_NEURONS);
-         System.out.println("RNN_EPOCHS=" + RNN_EPOCHS);
-         System.out.println("RANDOM_SEED=" + RANDOM_SEED);
-         System.out.println("MANDALA_FILENAME=" + MANDALA_FILENAME);
-         printCausations();
-      }
-
-      // Export causations graph.
-      if (gotExportCausationsGraph)
-      {
-         exportCausationsGraph(CAUSATIONS_GRAPH_FILENAME, TREE_FORMAT);
-      }
-
-      // Generate causation paths.
-      randomizer = new SplittableRandom(RANDOM_SEED);
-      generateCausationPaths();
-
-      // Analyze causations.
-      analyzeCausations();
-
-      // Export causation datasets.
-      exportNNdataset(NN_DATASET_FILENAME, NN_DATASET_TRAIN_FRACTION, RANDOM_SEED);
-      exportRNNdataset(RNN_DATASET_FILENAME, RNN_DATASET_TRAIN_FRACTION, RANDOM_SEED);
-
-      // Learn causations.
-      learnCausationsNN(NN_DATASET_FILENAME);
-      learnCausationsRNN(RNN_DATASET_FILENAME);
-
-      // Save?
-      if (gotSave)
-      {
-         try
+         if (args[i].equals("-datasetThreads"))
          {
-            System.setProperty("line.separator", "\n");
-            FileWriter  fileWriter = new FileWriter(MANDALA_FILENAME);
-            PrintWriter writer     = new PrintWriter(fileWriter);
-
-            // Save parameters.
-            Utility.saveInt(writer, NUM_CAUSATION_HIERARCHIES, "NUM_CAUSATION_HIERARCHIES");
-            Utility.saveInt(writer, NUM_NONTERMINALS, "NUM_NONTERMINALS");
-            Utility.saveInt(writer, NUM_TERMINALS, "NUM_TERMINALS");
-            Utility.saveInt(writer, NUM_INTERSTITIAL_TERMINALS, "NUM_INTERSTITIAL_TERMINALS");
-            Utility.saveFloat(writer, TERMINAL_PRODUCTION_PROBABILITY, "TERMINAL_PRODUCTION_PROBABILITY");
-            Utility.saveInt(writer, NUM_DIMENSIONS, "NUM_DIMENSIONS");
-            Utility.saveInt(writer, NUM_FEATURES, "NUM_FEATURES");
-
-            // Save causations.
-            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+            i++;
+            if (i >= args.length)
             {
-               ArrayList<Causation> causations = causationHierarchies.get(i);
-               if (NUM_NONTERMINALS > 0)
-               {
-                  Utility.saveInt(writer, causations.size(), "number of nonterminals, hierarchy=" + i);
-                  for (int j = 0, k = causations.size(); j < k; j++)
-                  {
-                     NonterminalCausation nonterminalCausation = (NonterminalCausation)causations.get(j);
-                     Utility.saveInt(writer, nonterminalCausation.id, "nonterminalCausation id");
-                     for (int p = 0, q = nonterminalCausation.children.size(); p < q; p++)
-                     {
-                        Causation child = nonterminalCausation.children.get(p);
-                        if (p == 0)
-                        {
-                           if (child instanceof NonterminalCausation)
-                           {
-                              Utility.saveInt(writer, 0, "nonterminal children type");
-                           }
-                           else
-                           {
-                              Utility.saveInt(writer, 1, "terminal children type");
-                           }
-                           Utility.saveInt(writer, nonterminalCausation.children.size(), "children size");
-                        }
-                        Utility.saveInt(writer, child.id, "child id");
-                     }
-                  }
-               }
+               System.err.println("Invalid datasetThreads option");
+               System.err.println(Usage);
+               System.exit(1);
             }
-
-            // Save causation paths.
-            Utility.saveInt(writer, NUM_CAUSATION_PATHS, "NUM_CAUSATION_PATHS");
-            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+            try
             {
-               ArrayList<CausationPath> paths = causationPaths.get(i);
-               for (CausationPath path : paths)
-               {
-                  Utility.saveInt(writer, path.hierarchy, "hierarchy");
-                  Utility.saveInt(writer, path.id, "id");
-               }
+               DATASET_THREADS = Integer.parseInt(args[i]);
             }
-
-            writer.close();
+            catch (NumberFormatException e) {
+               System.err.println("Invalid datasetThreads option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DATASET_THREADS < 1)
+            {
+               System.err.println("Invalid datasetThreads option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-         catch (Exception e)
+         if (args[i].equals("-datasetShards"))
          {
-            System.err.println("Error saving to file " + MANDALA_FILENAME + ":" + e.getMessage());
-            System.exit(1);
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid datasetShards option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               DatasetWriter.SHARDS = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid datasetShards option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DatasetWriter.SHARDS < 1)
+            {
+               System.err.println("Invalid datasetShards option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
          }
-      }
-
-      System.exit(0);
-   }
-
-
-   // Generate causation hierarchy.
-   public static ArrayList<NonterminalCausation> generateCausationHierarchy(int hierarchy)
-   {
-      NonterminalCausation root = new NonterminalCausation(hierarchy, 0);
+         if (args[i].equals("-datasetShardRows"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid datasetShardRows option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               DatasetWriter.SHARD_ROWS = Long.parseLong(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid datasetShardRows option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (DatasetWriter.SHARD_ROWS < 0)
+            {
+               System.err.println("Invalid datasetShardRows option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-datasetCache"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid datasetCache option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            DatasetCache.DIRECTORY = new String(args[i]);
+            continue;
+         }
+         if (args[i].equals("-checkpoint"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid checkpoint option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            CHECKPOINT_FILENAME = new String(args[i]);
+            continue;
+         }
+         if (args[i].equals("-checkpointPaths"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid checkpointPaths option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               CHECKPOINT_PATHS = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid checkpointPaths option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (CHECKPOINT_PATHS < 1)
+            {
+               System.err.println("Invalid checkpointPaths option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            gotCheckpointParameter = true;
+            continue;
+         }
+         if (args[i].equals("-resume"))
+         {
+            CHECKPOINT_RESUME      = true;
+            gotCheckpointParameter = true;
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               RANDOM_SEED = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-quiet"))
+         {
+            VERBOSE = false;
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
 
-      ArrayList<NonterminalCausation> open = new ArrayList<NonterminalCausation>();
-      open.add(root);
-      ArrayList<NonterminalCausation> nonterminalInstances = new ArrayList<NonterminalCausation>();
-      nonterminalInstances.add(root);
-      for (int i = 1; i < NUM_NONTERMINALS; i++)
+      // Validate options.
+      if (gotLoad && gotNew)
       {
-         nonterminalInstances.add(null);
+         System.err.println(Usage);
+         System.exit(1);
       }
-      ArrayList<TerminalCausation> terminalInstances = new ArrayList<TerminalCausation>();
-      for (int i = 0; i < NUM_TERMINALS; i++)
+      if (NUM_DIMENSIONS < NUM_FEATURES)
       {
-         terminalInstances.add(null);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (!gotExportCausationsGraph && gotTreeFormat)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (!ContextMonitor.NOVELTY_ENABLED && gotNoveltyParameter)
+      {
+         System.err.println(Usage);
+         System.exit(1);
       }
-      Graph graph = new Graph(NUM_NONTERMINALS);
-      expandNonterminal(open, graph, nonterminalInstances, terminalInstances);
-      return(nonterminalInstances);
-   }
-
 
-   // Expand nonterminal causation.
-   public static void expandNonterminal(ArrayList<NonterminalCausation> open, Graph graph,
-                                        ArrayList<NonterminalCausation> nonterminalInstances, ArrayList<TerminalCausation> terminalInstances)
-   {
-      int n = randomizer.nextInt(open.size());
-      NonterminalCausation parent = open.get(n);
+      // Strided windows cover every sequence step.
+      if ((DatasetWriter.SEQUENCE_STRIDE > 0) &&
+          ((DatasetWriter.SEQUENCE_WINDOW == 0) || (DatasetWriter.SEQUENCE_STRIDE > DatasetWriter.SEQUENCE_WINDOW)))
+      {
+         System.err.println("RNN sequence stride requires a window at least as long");
+         System.err.println(Usage);
+         System.exit(1);
+      }
 
-      open.remove(n);
-      if (randomizer.nextDouble() < (double)TERMINAL_PRODUCTION_PROBABILITY)
+      // Compression writes gzip text: the .npz arrays of other formats are memory-mapped.
+      if ((DatasetWriter.COMPRESSION_LEVEL > 0) && !DATASET_FORMAT.equals(DatasetWriter.PYTHON_FORMAT))
       {
-         expandTerminal(parent, terminalInstances);
+         System.err.println("Dataset compression requires the python dataset format");
+         System.err.println(Usage);
+         System.exit(1);
       }
-      else
+
+      // Checkpoints resume file spools of a single joint export.
+      if ((CHECKPOINT_FILENAME == null) && gotCheckpointParameter)
       {
-         for (int i = 0; i < 2; i++)
-         {
-            ArrayList<Causation> newChildren = new ArrayList<Causation>();
-            ArrayList<Integer>   available   = new ArrayList<Integer>();
-            for (int j = 0; j < NUM_NONTERMINALS; j++)
-            {
-               available.add(j);
-            }
-            NonterminalCausation child = null;
-            for (int j = 0; j < NUM_NONTERMINALS && child == null; j++)
-            {
-               int a = randomizer.nextInt(available.size());
-               int k = available.get(a);
-               graph.addEdge(parent.id, k);
-               if (graph.hasCycle())
-               {
-                  graph.removeEdge(parent.id, k);
-                  available.remove(a);
-               }
-               else
-               {
-                  child = nonterminalInstances.get(k);
-                  if (child == null)
-                  {
-                     child = new NonterminalCausation(parent.hierarchy, k);
-                     nonterminalInstances.set(k, child);
-                     newChildren.add(child);
-                     open.add(child);
-                  }
-                  child.parents.add(parent);
-                  parent.children.add(child);
-               }
-            }
-            if (child == null)
-            {
-               for (int j = 0, k = newChildren.size(); j < k; j++)
-               {
-                  Causation newChild = newChildren.get(j);
-                  graph.removeEdge(parent.id, newChild.id);
-                  nonterminalInstances.set(newChild.id, null);
-                  open.remove(newChild);
-               }
-               parent.children = new ArrayList<Causation>();
-               expandTerminal(parent, terminalInstances);
-               break;
-            }
-         }
+         System.err.println(Usage);
+         System.exit(1);
       }
-      if (open.size() > 0)
+      if ((CHECKPOINT_FILENAME != null) &&
+          ((DatasetWriter.SHARDS > 1) || (DatasetWriter.SHARD_ROWS > 0) || DatasetWriter.MAPPED_SPOOLS ||
+           DatasetWriter.SPOOLING.equals(DatasetWriter.MEMORY_SPOOLING) ||
+           (NN_DATASET_TRAIN_FRACTION != RNN_DATASET_TRAIN_FRACTION)))
       {
-         expandNonterminal(open, graph, nonterminalInstances, terminalInstances);
+         System.err.println("Checkpoint requires file spooling, no shards, and equal NN and RNN train fractions");
+         System.err.println(Usage);
+         System.exit(1);
       }
-   }
 
-
-   // Expand causation to terminals.
-   public static void expandTerminal(NonterminalCausation parent, ArrayList<TerminalCausation> terminalInstances)
-   {
-      for (int i = 0; i < 2; i++)
+      if (VERBOSE)
       {
-         int               j     = randomizer.nextInt(NUM_TERMINALS);
-         TerminalCausation child = terminalInstances.get(j);
-         if (child == null)
+         System.out.print("options: ");
+         for (String arg : args)
          {
-            child = new TerminalCausation(parent.hierarchy, j);
-            terminalInstances.set(j, child);
+            System.out.print(arg + " ");
          }
-         child.parents.add(parent);
-         parent.children.add(child);
+         System.out.println();
       }
-   }
 
-
-   // Print causations.
-   public static void printCausations()
-   {
-      System.out.println("hierarchies");
-      for (int i = 0; i < causationHierarchies.size(); i++)
+      // Restore datasets from cache?
+      // Causations are still generated when saved, graphed or printed.
+      String  cacheKey = null;
+      boolean cached   = false;
+      if (DatasetCache.DIRECTORY != null)
       {
-         System.out.println("  hierarchy_" + i);
-         Causation root = causationHierarchies.get(i).get(0);
-         if (root != null)
+         try
          {
-            if (root instanceof TerminalCausation)
-            {
-               TerminalCausation terminal = (TerminalCausation)root;
-               terminal.printHierarchical("    ", null);
-            }
-            else
-            {
-               NonterminalCausation nonterminal = (NonterminalCausation)root;
-               nonterminal.printHierarchical("    ", null, true);
-            }
+            cacheKey = DatasetCache.getKey(gotLoad ? MANDALA_FILENAME : null);
+            cached   = DatasetCache.restore(cacheKey, NN_DATASET_FILENAME, RNN_DATASET_FILENAME);
+         }
+         catch (IOException e)
+         {
+            System.err.println("Cannot restore datasets from cache " + DatasetCache.DIRECTORY + ":" + e.getMessage());
+            cached = false;
+         }
+         if (VERBOSE)
+         {
+            System.out.println("dataset cache key=" + cacheKey + (cached ? ", restored" : ", not cached"));
          }
       }
-   }
+      boolean generate = (!cached || gotSave || gotExportCausationsGraph || VERBOSE);
 
-
-   // Export causations graph (Graphviz dot format).
-   public static void exportCausationsGraph(String filename, boolean treeFormat)
-   {
-      try
+      // Load?
+      if (gotLoad)
       {
-         System.setProperty("line.separator", "\n");
-         FileWriter  fileWriter  = new FileWriter(filename);
-         PrintWriter printWriter = new PrintWriter(fileWriter);
-         printWriter.println("digraph causations {");
-         printWriter.println("hierarchies [label=\"hierarchies\", shape=triangle];");
-         for (int i = 0; i < causationHierarchies.size(); i++)
+         try
          {
-            Causation       root     = causationHierarchies.get(i).get(0);
-            HashSet<String> vertices = new HashSet<String>();
-            vertices.add("h" + i + " [label=\"hierarchy_" + i + "\", shape=triangle];");
-            HashSet<String> edges = new HashSet<String>();
-            edges.add("hierarchies -> h" + i);
-            if (root instanceof TerminalCausation)
-            {
-               edges.add("h" + i + " -> h" + i + "_t" + root.id);
-            }
-            else
-            {
-               edges.add("h" + i + " -> h" + i + "_nt" + root.id);
-            }
-            listGraph(i, root, "", vertices, edges);
-            for (String vertex : vertices)
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(MANDALA_FILENAME)));
+
+            // Load parameters.
+            NUM_CAUSATION_HIERARCHIES       = Utility.loadInt(reader);
+            NUM_NONTERMINALS                = Utility.loadInt(reader);
+            NUM_TERMINALS                   = Utility.loadInt(reader);
+            NUM_INTERSTITIAL_TERMINALS      = Utility.loadInt(reader);
+            TERMINAL_PRODUCTION_PROBABILITY = Utility.loadFloat(reader);
+            NUM_DIMENSIONS                  = Utility.loadInt(reader);
+            NUM_FEATURES = Utility.loadInt(reader);
+
+            // Load causations.
+            causationHierarchies = new ArrayList < ArrayList < Causation >> ();
+            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
             {
-               printWriter.println(vertex);
+               ArrayList<Causation> causations = new ArrayList<Causation>();
+               if (NUM_NONTERMINALS > 0)
+               {
+                  ArrayList<NonterminalCausation> nonterminalInstances = new ArrayList<NonterminalCausation>();
+                  for (int j = 0; j < NUM_NONTERMINALS; j++)
+                  {
+                     nonterminalInstances.add(new NonterminalCausation(i, j));
+                  }
+                  ArrayList<TerminalCausation> terminalInstances = new ArrayList<TerminalCausation>();
+                  for (int j = 0; j < NUM_TERMINALS; j++)
+                  {
+                     terminalInstances.add(new TerminalCausation(i, j));
+                  }
+                  int k = Utility.loadInt(reader);
+                  for (int j = 0; j < k; j++)
+                  {
+                     int id = Utility.loadInt(reader);
+                     NonterminalCausation nonterminalCausation = nonterminalInstances.get(id);
+                     causations.add(nonterminalCausation);
+                     if (Utility.loadInt(reader) == 0)
+                     {
+                        for (int p = 0, q = Utility.loadInt(reader); p < q; p++)
+                        {
+                           NonterminalCausation child = nonterminalInstances.get(Utility.loadInt(reader));
+                           nonterminalCausation.children.add(child);
+                           child.parents.add(nonterminalCausation);
+                        }
+                     }
+                     else
+                     {
+                        for (int p = 0, q = Utility.loadInt(reader); p < q; p++)
+                        {
+                           TerminalCausation child = terminalInstances.get(Utility.loadInt(reader));
+                           nonterminalCausation.children.add(child);
+                           child.parents.add(nonterminalCausation);
+                        }
+                     }
+                  }
+               }
+               else if (NUM_TERMINALS > 0)
+               {
+                  causations.add(new TerminalCausation(i, 0));
+               }
+               causationHierarchies.add(causations);
             }
-            for (String edge : edges)
+
+            // Load causation paths.
+            NUM_CAUSATION_PATHS = Utility.loadInt(reader);
+            causationPaths      = new ArrayList < ArrayList < CausationPath >> ();
+            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
             {
-               printWriter.println(edge);
+               ArrayList<CausationPath> paths = new ArrayList<CausationPath>();
+               causationPaths.add(paths);
+               for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
+               {
+                  paths.add(new CausationPath(Utility.loadInt(reader), Utility.loadInt(reader)));
+               }
             }
+
+            reader.close();
+         }
+         catch (Exception e)
+         {
+            System.err.println("Error loading file " + MANDALA_FILENAME + ":" + e.getMessage());
+            System.exit(1);
          }
-         printWriter.println("}");
-         printWriter.close();
       }
-      catch (IOException e)
+      else if (generate)
       {
-         System.err.println("Cannot save causations graph to file " + filename);
-         System.exit(1);
+         generateCausations();
       }
-   }
 
-
-   // List graph elements.
-   private static void listGraph(int hierarchy, Causation vertex, String pathPrefix, HashSet<String> vertices, HashSet<String> edges)
-   {
-      if (vertex instanceof TerminalCausation)
+      // Print parameters and causations.
+      if (VERBOSE)
       {
-         TerminalCausation terminal = (TerminalCausation)vertex;
-         String            features = "(";
-         for (int i = 0, j = terminal.features.size(); i < j; i++)
-         {
-            features += terminal.features.get(i);
-            if (i < j - 1)
-            {
-               features += ",";
-            }
-         }
-         features += ")";
-         vertices.add("h" + hierarchy + "_t" + pathPrefix + vertex.id + " [label=\"" + vertex.id + features + "\", shape=square];");
+         System.out.println("parameters:");
+         System.out.println("NUM_CAUSATION_HIERARCHIES=" + NUM_CAUSATION_HIERARCHIES);
+         System.out.println("NUM_NONTERMINALS=" + NUM_NONTERMINALS);
+         System.out.println("NUM_TERMINALS=" + NUM_TERMINALS);
+         System.out.println("NUM_INTERSTITIAL_TERMINALS=" + NUM_INTERSTITIAL_TERMINALS);
+         System.out.println("TERMINAL_PRODUCTION_PROBABILITY=" + TERMINAL_PRODUCTION_PROBABILITY);
+         System.out.println("NUM_DIMENSIONS=" + NUM_DIMENSIONS);
+         System.out.println("NUM_FEATURES=" + NUM_FEATURES);
+         System.out.println("MAX_INTERSTITIAL_TERMINAL_SEQUENCE=" + MAX_INTERSTITIAL_TERMINAL_SEQUENCE);
+         System.out.println("CAUSATIONS_GRAPH_FILENAME=" + CAUSATIONS_GRAPH_FILENAME + ", TREE_FORMAT=" + TREE_FORMAT);
+         System.out.println("NUM_CAUSATION_PATHS=" + NUM_CAUSATION_PATHS);
+         System.out.println("MAX_CONTEXT_TIER=" + MAX_CONTEXT_TIER);
+         System.out.println("TIER_VALUE_DURATION_TYPE=" + TIER_VALUE_DURATION_TYPE);
+         System.out.println("CONTEXT_CACHE_SIZE=" + FeaturesCache.CAPACITY);
+         System.out.println("MONITOR_CONTEXTS=" + ContextMonitor.ENABLED);
+         System.out.println("DETECT_NOVEL_CONTEXTS=" + ContextMonitor.NOVELTY_ENABLED + ", NOVEL_CONTEXT_CAPACITY=" + ContextMonitor.NOVELTY_CAPACITY +
+                            ", NOVEL_CONTEXT_FALSE_POSITIVE_RATE=" + ContextMonitor.NOVELTY_FALSE_POSITIVE_RATE);
+         System.out.println("NN_DATASET_TRAIN_FRACTION=" + NN_DATASET_TRAIN_FRACTION);
+         System.out.println("NN_DATASET_DEDUPLICATE=" + NN_DATASET_DEDUPLICATE);
+         System.out.println("NN_NEURONS=" + NN_NEURONS);
+         System.out.println("NN_EPOCHS=" + NN_EPOCHS);
+         System.out.println("RNN_DATASET_TRAIN_FRACTION=" + RNN_DATASET_TRAIN_FRACTION);
+         System.out.println("RNN_NEURONS=" + RNN_NEURONS);
+         System.out.println("RNN_EPOCHS=" + RNN_EPOCHS);
+         System.out.println("RNN_SEQUENCE_LAYOUT=" + DatasetWriter.SEQUENCE_LAYOUT + ", RNN_SEQUENCE_BUCKETS=" + DatasetWriter.SEQUENCE_BUCKETS);
+         System.out.println("RNN_SEQUENCE_WINDOW=" + DatasetWriter.SEQUENCE_WINDOW + ", RNN_SEQUENCE_STRIDE=" + DatasetWriter.SEQUENCE_STRIDE);
+         System.out.println("DATASET_FORMAT=" + DATASET_FORMAT);
+         System.out.println("DATASET_COMPRESSION=" + DatasetWriter.COMPRESSION_LEVEL);
+         System.out.println("DATASET_WRITE_BUFFERS=" + DatasetWriter.WRITE_BUFFERS);
+         System.out.println("DATASET_MAPPED_SPOOLS=" + DatasetWriter.MAPPED_SPOOLS);
+         System.out.println("DATASET_SPOOLING=" + DatasetWriter.SPOOLING);
+         System.out.println("DATASET_THREADS=" + DATASET_THREADS);
+         System.out.println("DATASET_SHARDS=" + DatasetWriter.SHARDS + ", DATASET_SHARD_ROWS=" + DatasetWriter.SHARD_ROWS);
+         System.out.println("DATASET_CACHE=" + DatasetCache.DIRECTORY);
+         System.out.println("CHECKPOINT_FILENAME=" + CHECKPOINT_FILENAME + ", CHECKPOINT_PATHS=" + CHECKPOINT_PATHS +
+                            ", CHECKPOINT_RESUME=" + CHECKPOINT_RESUME);
+         System.out.println("RANDOM_SEED=" + RANDOM_SEED);
+         System.out.println("MANDALA_FILENAME=" + MANDALA_FILENAME);
+         printCausations();
       }
-      else
+
+      // Export causations graph.
+      if (gotExportCausationsGraph)
       {
-         vertices.add("h" + hierarchy + "_nt" + pathPrefix + vertex.id + " [label=\"" + vertex.id + "\", shape=circle];");
-         NonterminalCausation nonTerminal = (NonterminalCausation)vertex;
-         for (int i = 0; i < nonTerminal.children.size(); i++)
-         {
-            Causation child           = nonTerminal.children.get(i);
-            String    childPathPrefix = "";
-            if (TREE_FORMAT)
-            {
-               childPathPrefix = new String(pathPrefix) + vertex.id + "_" + i + "_";
-            }
-            if (child instanceof TerminalCausation)
-            {
-               edges.add("h" + hierarchy + "_nt" + pathPrefix + vertex.id + " -> h" + hierarchy + "_t" + childPathPrefix + child.id + " [label=\"" + i + "\"];");
-            }
-            else
-            {
-               edges.add("h" + hierarchy + "_nt" + pathPrefix + vertex.id + " -> h" + hierarchy + "_nt" + childPathPrefix + child.id + " [label=\"" + i + "\"];");
-            }
-            listGraph(hierarchy, child, childPathPrefix, vertices, edges);
-         }
+         exportCausationsGraph(CAUSATIONS_GRAPH_FILENAME, TREE_FORMAT);
       }
-   }
 
+      if (generate)
+      {
+         // Generate causation paths.
+         randomizer = new SplittableRandom(RANDOM_SEED);
+         generateCausationPaths();
+
+         // Analyze causations.
+         analyzeCausations();
+      }
 
-   // Generate causation paths.
-   public static void generateCausationPaths()
-   {
-      if (causationPaths == null)
+      // Export causation datasets.
+      if (!cached)
       {
-         causationPaths = new ArrayList < ArrayList < CausationPath >> ();
-         for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+         long exportTime = System.currentTimeMillis();
+         if (NN_DATASET_TRAIN_FRACTION == RNN_DATASET_TRAIN_FRACTION)
          {
-            ArrayList<Causation>     causationHierarchy = causationHierarchies.get(i);
-            ArrayList<CausationPath> paths = new ArrayList<CausationPath>();
-            causationPaths.add(paths);
-            Causation root = causationHierarchy.get(0);
-            paths.add(new CausationPath(i, root.id));
-            for (int j = 1, k = NUM_CAUSATION_PATHS - 1, n = causationHierarchy.size(); j < k; j++)
-            {
-               if (n == 1)
-               {
-                  root = causationHierarchy.get(0);
-               }
-               else
-               {
-                  root = causationHierarchy.get(randomizer.nextInt(n - 1) + 1);
-               }
-               paths.add(new CausationPath(i, root.id));
-            }
-            if (NUM_CAUSATION_PATHS > 1)
-            {
-               root = causationHierarchy.get(0);
-               paths.add(new CausationPath(i, root.id));
-            }
+            exportDatasets(NN_DATASET_FILENAME, RNN_DATASET_FILENAME, NN_DATASET_TRAIN_FRACTION, RANDOM_SEED);
          }
-      }
-      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
-      {
-         ArrayList<Causation>     causationHierarchy = causationHierarchies.get(i);
-         ArrayList<CausationPath> paths = causationPaths.get(i);
-         for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
+         else
          {
-            CausationPath path = paths.get(j);
-            Causation     root = causationHierarchy.get(0);
-            for (int k = 1, q = causationHierarchy.size(); k < q && root.id != path.id; k++)
-            {
-               root = causationHierarchy.get(k);
-            }
-            ArrayList<CausationTier> step = new ArrayList<CausationTier>();
-            step.add(new CausationTier(root, 0));
-            while (root instanceof NonterminalCausation)
+            exportNNdataset(NN_DATASET_FILENAME, NN_DATASET_TRAIN_FRACTION, RANDOM_SEED);
+            exportRNNdataset(RNN_DATASET_FILENAME, RNN_DATASET_TRAIN_FRACTION, RANDOM_SEED);
+         }
+         if (VERBOSE || ContextMonitor.ENABLED)
+         {
+            FeaturesCache.print();
+         }
+         if (cacheKey != null)
+         {
+            try
             {
-               NonterminalCausation nonterminal = (NonterminalCausation)root;
-               root = nonterminal.children.get(0);
-               step.add(new CausationTier(root, 0));
+               DatasetCache.store(cacheKey, exportTime, NN_DATASET_FILENAME, RNN_DATASET_FILENAME);
             }
-            path.add(step);
-            while (stepCausationPath(path, 0)) {}
-            for (ArrayList<CausationTier> s : path.steps)
+            catch (IOException e)
             {
-               Collections.reverse(s);
+               System.err.println("Cannot store datasets in cache " + DatasetCache.DIRECTORY + ":" + e.getMessage());
             }
          }
       }
 
-      if (VERBOSE)
+      // Learn causations.
+      learnCausationsNN(NN_DATASET_FILENAME);
+      learnCausationsRNN(RNN_DATASET_FILENAME);
+
+      // Save?
+      if (gotSave)
       {
-         System.out.println("causation paths:");
-         for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+         try
          {
-            ArrayList<CausationPath> paths = causationPaths.get(i);
-            for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
+            System.setProperty("line.separator", "\n");
+            FileWriter  fileWriter = new FileWriter(MANDALA_FILENAME);
+            PrintWriter writer     = new PrintWriter(fileWriter);
+
+            // Save parameters.
+            Utility.saveInt(writer, NUM_CAUSATION_HIERARCHIES, "NUM_CAUSATION_HIERARCHIES");
+            Utility.saveInt(writer, NUM_NONTERMINALS, "NUM_NONTERMINALS");
+            Utility.saveInt(writer, NUM_TERMINALS, "NUM_TERMINALS");
+            Utility.saveInt(writer, NUM_INTERSTITIAL_TERMINALS, "NUM_INTERSTITIAL_TERMINALS");
+            Utility.saveFloat(writer, TERMINAL_PRODUCTION_PROBABILITY, "TERMINAL_PRODUCTION_PROBABILITY");
+            Utility.saveInt(writer, NUM_DIMENSIONS, "NUM_DIMENSIONS");
+            Utility.saveInt(writer, NUM_FEATURES, "NUM_FEATURES");
+
+            // Save causations.
+            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
             {
-               CausationPath path = paths.get(j);
-               System.out.println("path=" + j + ", hierarchy=" + path.hierarchy + ", id=" + path.id);
-               for (int k = 0; k < path.steps.size(); k++)
+               ArrayList<Causation> causations = causationHierarchies.get(i);
+               if (NUM_NONTERMINALS > 0)
                {
-                  System.out.println("step=" + k);
-                  ArrayList<CausationTier> step = path.steps.get(k);
-                  for (int q = 0; q < step.size(); q++)
+                  Utility.saveInt(writer, causations.size(), "number of nonterminals, hierarchy=" + i);
+                  for (int j = 0, k = causations.size(); j < k; j++)
                   {
-                     CausationTier tier = step.get(q);
-                     tier.print();
+                     NonterminalCausation nonterminalCausation = (NonterminalCausation)causations.get(j);
+                     Utility.saveInt(writer, nonterminalCausation.id, "nonterminalCausation id");
+                     for (int p = 0, q = nonterminalCausation.children.size(); p < q; p++)
+                     {
+                        Causation child = nonterminalCausation.children.get(p);
+                        if (p == 0)
+                        {
+                           if (child instanceof NonterminalCausation)
+                           {
+                              Utility.saveInt(writer, 0, "nonterminal children type");
+                           }
+                           else
+                           {
+                              Utility.saveInt(writer, 1, "terminal children type");
+                           }
+                           Utility.saveInt(writer, nonterminalCausation.children.size(), "children size");
+                        }
+                        Utility.saveInt(writer, child.id, "child id");
+                     }
                   }
                }
             }
-         }
-      }
-   }
 
-
-   // Step along causation path.
-   public static boolean stepCausationPath(CausationPath path, int context)
-   {
-      ArrayList<CausationTier> currentStep   = path.steps.get(path.steps.size() - 1);
-      CausationTier            CausationTier = currentStep.get(context);
-      if (CausationTier.causation instanceof TerminalCausation)
-      {
-         return(false);
-      }
-      if (stepCausationPath(path, context + 1))
-      {
-         return(true);
-      }
-      NonterminalCausation nonterminalCausation = (NonterminalCausation)CausationTier.causation;
-      if (CausationTier.currentChild == nonterminalCausation.children.size() - 1)
-      {
-         return(false);
-      }
-      ArrayList<CausationTier> nextStep = new ArrayList<CausationTier>();
-      for (int i = 0; i < context; i++)
-      {
-         CausationTier tier = currentStep.get(i);
-         tier = new CausationTier(tier.causation, tier.currentChild);
-         nextStep.add(tier);
-      }
-      CausationTier tier = currentStep.get(context);
-      tier = new CausationTier(tier.causation, tier.currentChild);
-      tier.currentChild++;
-      nextStep.add(tier);
-      do
-      {
-         NonterminalCausation parent = (NonterminalCausation)tier.causation;
-         Causation            child  = parent.children.get(tier.currentChild);
-         tier = new CausationTier(child, 0);
-         nextStep.add(tier);
-      } while (tier.causation instanceof NonterminalCausation);
-      path.add(nextStep);
-      return(true);
-   }
-
-
-   // Analyze causations.
-   public static void analyzeCausations()
-   {
-      if (VERBOSE)
-      {
-         System.out.println("analyze causations");
-      }
-      tierValueDurations = new ArrayList<Integer>();
-      ArrayList < ArrayList < Integer >> hierarchyTiers = new ArrayList < ArrayList < Integer >> ();
-      int maxTier = 0;
-      for (int i = 0, j = causationHierarchies.size(); i < j; i++)
-      {
-         ArrayList<Integer> tiers = new ArrayList<Integer>();
-         hierarchyTiers.add(tiers);
-         ArrayList<Causation> causations = causationHierarchies.get(i);
-         for (Causation causation : causations)
-         {
-            int tier = getTier(causation);
-            tiers.add(tier);
-            if (tier > maxTier)
+            // Save causation paths.
+            Utility.saveInt(writer, NUM_CAUSATION_PATHS, "NUM_CAUSATION_PATHS");
+            for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
             {
-               maxTier = tier;
+               ArrayList<CausationPath> paths = causationPaths.get(i);
+               for (CausationPath path : paths)
+               {
+                  Utility.saveInt(writer, path.hierarchy, "hierarchy");
+                  Utility.saveInt(writer, path.id, "id");
+               }
             }
+
+            writer.close();
+         }
+         catch (Exception e)
+         {
+            System.err.println("Error saving to file " + MANDALA_FILENAME + ":" + e.getMessage());
+            System.exit(1);
          }
       }
-      if (VERBOSE)
-      {
-         System.out.println("maximum tier=" + maxTier);
-      }
-      int[] durationAccums = new int[maxTier + 1];
-      int[] durationCounts = new int[maxTier + 1];
-      durationAccums[0]    = 1;
-      durationCounts[0]    = 1;
-      for (int i = 1; i <= maxTier; i++)
-      {
-         durationAccums[i] = 0;
-         durationCounts[i] = 0;
-      }
-      for (ArrayList<Causation> causations : causationHierarchies)
+
+      System.exit(0);
+   }
+
+
+   // Generate causation hierarchies.
+   public static void generateCausations()
+   {
+      randomizer           = new SplittableRandom(RANDOM_SEED);
+      causationHierarchies = new ArrayList < ArrayList < Causation >> ();
+      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
       {
-         for (Causation causation : causations)
+         ArrayList<Causation> causations = new ArrayList<Causation>();
+         if (NUM_NONTERMINALS > 0)
          {
-            if (causation instanceof TerminalCausation)
-            {
-               if (VERBOSE)
-               {
-                  ((TerminalCausation)causation).print();
-                  System.out.println("terminal span=1");
-               }
-            }
-            else
+            ArrayList<NonterminalCausation> nonterminalInstances = generateCausationHierarchy(i);
+            for (NonterminalCausation causation : nonterminalInstances)
             {
-               if (VERBOSE)
-               {
-                  ((NonterminalCausation)causation).print();
-               }
-               int root_min      = spanCausation(causation, 0);
-               int root_expected = spanCausation(causation, 1);
-               int root_max      = spanCausation(causation, 2);
-               int tier          = getTier(causation);
-               if (TIER_VALUE_DURATION_TYPE.equals("minimum"))
-               {
-                  durationAccums[tier] += root_min;
-               }
-               else if (TIER_VALUE_DURATION_TYPE.equals("expected"))
-               {
-                  durationAccums[tier] += root_expected;
-               }
-               else
-               {
-                  durationAccums[tier] += root_max;
-               }
-               durationCounts[tier]++;
-               NonterminalCausation root  = (NonterminalCausation)causation;
-               Causation            cause = root.children.get(0);
-               int       cause_min        = spanCausation(cause, 0);
-               int       cause_expected   = spanCausation(cause, 1);
-               int       cause_max        = spanCausation(cause, 2);
-               Causation effect           = root.children.get(1);
-               int       effect_min       = spanCausation(effect, 0);
-               int       effect_expected  = spanCausation(effect, 1);
-               int       effect_max       = spanCausation(effect, 2);
-               if (VERBOSE)
+               if (causation != null)
                {
-                  System.out.println("min span=" + root_min + ", expected span=" + root_expected + ", max span=" + root_max);
-                  System.out.println("cause min span=" + cause_min + ", expected span=" + cause_expected + ", max span=" + cause_max);
-                  System.out.println("effect min span=" + effect_min + ", expected span=" + effect_expected + ", max span=" + effect_max);
+                  causations.add((Causation)causation);
                }
             }
          }
-      }
-      if (VERBOSE)
-      {
-         System.out.println("feature value durations:");
-      }
-      for (int i = 0; i <= maxTier; i++)
-      {
-         int duration = (int)((float)durationAccums[i] / (float)durationCounts[i]);
-         tierValueDurations.add(duration);
-         if (VERBOSE)
+         else if (NUM_TERMINALS > 0)
          {
-            System.out.println("tier=" + i + ", duration=" + duration);
+            causations.add(new TerminalCausation(i, 0));
          }
+         causationHierarchies.add(causations);
       }
+      causationPaths = null;
    }
 
 
-   // Get causation tier.
-   public static int getTier(Causation causation)
+   // Generate causation hierarchy.
+   public static ArrayList<NonterminalCausation> generateCausationHierarchy(int hierarchy)
    {
-      if (causation instanceof TerminalCausation)
+      NonterminalCausation root = new NonterminalCausation(hierarchy, 0);
+
+      ArrayList<NonterminalCausation> open = new ArrayList<NonterminalCausation>();
+      open.add(root);
+      ArrayList<NonterminalCausation> nonterminalInstances = new ArrayList<NonterminalCausation>();
+      nonterminalInstances.add(root);
+      for (int i = 1; i < NUM_NONTERMINALS; i++)
       {
-         return(0);
+         nonterminalInstances.add(null);
       }
-      else
+      ArrayList<TerminalCausation> terminalInstances = new ArrayList<TerminalCausation>();
+      for (int i = 0; i < NUM_TERMINALS; i++)
       {
-         NonterminalCausation nonterminalCausation = (NonterminalCausation)causation;
-         int cause_tier  = getTier(nonterminalCausation.children.get(0)) + 1;
-         int effect_tier = getTier(nonterminalCausation.children.get(1)) + 1;
-         if (cause_tier > effect_tier)
-         {
-            return(cause_tier);
-         }
-         else
-         {
-            return(effect_tier);
-         }
+         terminalInstances.add(null);
       }
+      Graph graph = new Graph(NUM_NONTERMINALS);
+      expandNonterminal(open, graph, nonterminalInstances, terminalInstances);
+      return(nonterminalInstances);
    }
 
 
-   // Measure traversal span.
-   public static int spanCausation(Causation causation, int type)
+   // Expand nonterminal causation.
+   public static void expandNonterminal(ArrayList<NonterminalCausation> open, Graph graph,
+                                        ArrayList<NonterminalCausation> nonterminalInstances, ArrayList<TerminalCausation> terminalInstances)
    {
-      int numTerminals = countTerminals(causation);
+      int n = randomizer.nextInt(open.size());
+      NonterminalCausation parent = open.get(n);
 
-      switch (type)
+      open.remove(n);
+      if (randomizer.nextDouble() < (double)TERMINAL_PRODUCTION_PROBABILITY)
       {
-      case 0:      // minimum.
-         return(numTerminals);
-
-      case 1:      // expected.
-         int count = 0;
-         for (int i = 0; i < 100; i++)
+         expandTerminal(parent, terminalInstances);
+      }
+      else
+      {
+         for (int i = 0; i < 2; i++)
          {
-            for (int j = 0, k = numTerminals / 2; j < k; j++)
+            ArrayList<Causation> newChildren = new ArrayList<Causation>();
+            ArrayList<Integer>   available   = new ArrayList<Integer>();
+            for (int j = 0; j < NUM_NONTERMINALS; j++)
             {
-               for (int n = 0; n < MAX_INTERSTITIAL_TERMINAL_SEQUENCE; n++)
+               available.add(j);
+            }
+            NonterminalCausation child = null;
+            for (int j = 0; j < NUM_NONTERMINALS && child == null; j++)
+            {
+               int a = randomizer.nextInt(available.size());
+               int k = available.get(a);
+               graph.addEdge(parent.id, k);
+               if (graph.hasCycle())
                {
-                  if (NUM_INTERSTITIAL_TERMINALS == 0)
-                  {
-                     if (randomizer.nextInt(NUM_TERMINALS) == 0)
-                     {
-                        break;
-                     }
-                  }
-                  else
+                  graph.removeEdge(parent.id, k);
+                  available.remove(a);
+               }
+               else
+               {
+                  child = nonterminalInstances.get(k);
+                  if (child == null)
                   {
-                     if (randomizer.nextInt(NUM_INTERSTITIAL_TERMINALS + 1) == 0)
-                     {
-                        break;
-                     }
+                     child = new NonterminalCausation(parent.hierarchy, k);
+                     nonterminalInstances.set(k, child);
+                     newChildren.add(child);
+                     open.add(child);
                   }
-                  count++;
+                  child.parents.add(parent);
+                  parent.children.add(child);
+               }
+            }
+            if (child == null)
+            {
+               for (int j = 0, k = newChildren.size(); j < k; j++)
+               {
+                  Causation newChild = newChildren.get(j);
+                  graph.removeEdge(parent.id, newChild.id);
+                  nonterminalInstances.set(newChild.id, null);
+                  open.remove(newChild);
                }
+               parent.children = new ArrayList<Causation>();
+               expandTerminal(parent, terminalInstances);
+               break;
             }
          }
-         count /= 100;
-         return(numTerminals + count);
-
-      case 2:       // maximum.
-         return(numTerminals + ((numTerminals / 2) * MAX_INTERSTITIAL_TERMINAL_SEQUENCE));
       }
-      return(0);
+      if (open.size() > 0)
+      {
+         expandNonterminal(open, graph, nonterminalInstances, terminalInstances);
+      }
    }
 
 
-   // Count terminals.
-   public static int countTerminals(Causation causation)
+   // Expand causation to terminals.
+   public static void expandTerminal(NonterminalCausation parent, ArrayList<TerminalCausation> terminalInstances)
    {
-      int count = 0;
-
-      if (causation instanceof TerminalCausation)
-      {
-         count = 1;
-      }
-      else
+      for (int i = 0; i < 2; i++)
       {
-         NonterminalCausation nonterminalCausation = (NonterminalCausation)causation;
-         count  = countTerminals(nonterminalCausation.children.get(0));
-         count += countTerminals(nonterminalCausation.children.get(1));
+         int               j     = randomizer.nextInt(NUM_TERMINALS);
+         TerminalCausation child = terminalInstances.get(j);
+         if (child == null)
+         {
+            child = new TerminalCausation(parent.hierarchy, j);
+            terminalInstances.set(j, child);
+         }
+         child.parents.add(parent);
+         parent.children.add(child);
       }
-      return(count);
    }
 
 
-   // Export NN dataset.
-   public static void exportNNdataset(String filename, float trainFraction, int randomSeed)
+   // Print causations.
+   public static void printCausations()
    {
-      if (VERBOSE)
-      {
-         System.out.println("export NN dataset");
-      }
-      SplittableRandom random   = new SplittableRandom(randomSeed);
-      int              maxTiers = 0;
-      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+      System.out.println("hierarchies");
+      for (int i = 0; i < causationHierarchies.size(); i++)
       {
-         ArrayList<CausationPath> paths = causationPaths.get(i);
-         for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
+         System.out.println("  hierarchy_" + i);
+         Causation root = causationHierarchies.get(i).get(0);
+         if (root != null)
          {
-            CausationPath path = paths.get(j);
-            for (int k = 0; k < path.steps.size(); k++)
+            if (root instanceof TerminalCausation)
+            {
+               TerminalCausation terminal = (TerminalCausation)root;
+               terminal.printHierarchical("    ", null);
+            }
+            else
             {
-               ArrayList<CausationTier> step = path.steps.get(k);
-               if (step.size() > maxTiers)
-               {
-                  maxTiers = step.size();
-               }
+               NonterminalCausation nonterminal = (NonterminalCausation)root;
+               nonterminal.printHierarchical("    ", null, true);
             }
          }
       }
+   }
 
-      if (VERBOSE)
-      {
-         System.out.println("train dataset:");
-      }
-      ArrayList < ArrayList < Float >> X_train           = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Float >> y_train           = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Float >> X_signature_train = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Float >> y_signature_train = new ArrayList < ArrayList < Float >> ();
-      ArrayList<Integer> y_train_path_begin = new ArrayList<Integer>();
-      int                trainCount         = 0;
-      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+
+   // Export causations graph (Graphviz dot format).
+   public static void exportCausationsGraph(String filename, boolean treeFormat)
+   {
+      try
       {
-         ArrayList<CausationPath> paths = causationPaths.get(i);
-         for (int j = 0, n = (int)((float)NUM_CAUSATION_PATHS * NN_DATASET_TRAIN_FRACTION); j < n; j++)
+         System.setProperty("line.separator", "\n");
+         FileWriter  fileWriter  = new FileWriter(filename);
+         PrintWriter printWriter = new PrintWriter(fileWriter);
+         printWriter.println("digraph causations {");
+         printWriter.println("hierarchies [label=\"hierarchies\", shape=triangle];");
+         for (int i = 0; i < causationHierarchies.size(); i++)
          {
-            CausationPath path = paths.get(j);
-            if (VERBOSE)
+            Causation       root     = causationHierarchies.get(i).get(0);
+            HashSet<String> vertices = new HashSet<String>();
+            vertices.add("h" + i + " [label=\"hierarchy_" + i + "\", shape=triangle];");
+            HashSet<String> edges = new HashSet<String>();
+            edges.add("hierarchies -> h" + i);
+            if (root instanceof TerminalCausation)
             {
-               path.print();
-               System.out.println("data:");
+               edges.add("h" + i + " -> h" + i + "_t" + root.id);
             }
-            contextTiers = new ArrayList<ContextFeatures> ();
-            for (int k = 0, q = maxTiers - 1; k < q; k++)
+            else
             {
-               contextTiers.add(null);
+               edges.add("h" + i + " -> h" + i + "_nt" + root.id);
             }
-            int step = 0;
-            for (int k = 0, p = path.steps.size() - 1; k < p; k++)
+            listGraph(i, root, "", vertices, edges);
+            for (String vertex : vertices)
             {
-               ArrayList<CausationTier> xstep              = path.steps.get(k);
-               ArrayList<CausationTier> ystep              = path.steps.get(k + 1);
-               Causation                xcausation         = xstep.get(0).causation;
-               TerminalCausation        xterminalCausation = (TerminalCausation)xcausation;
-               Causation                ycausation         = ystep.get(0).causation;
-               TerminalCausation        yterminalCausation = (TerminalCausation)ycausation;
-               if (k == 0)
-               {
-                  y_train_path_begin.add(trainCount);
-               }
-               if (VERBOSE)
-               {
-                  System.out.print("X: ");
-                  xterminalCausation.print();
-                  System.out.print("y: ");
-                  yterminalCausation.print();
-               }
-               ArrayList<Float> X_train_step           = new ArrayList<Float>();
-               ArrayList<Float> y_train_step           = new ArrayList<Float>();
-               ArrayList<Float> X_signature_train_step = new ArrayList<Float>();
-               ArrayList<Float> y_signature_train_step = new ArrayList<Float>();
-               ArrayList < ArrayList < Float >> X_contexts = new ArrayList < ArrayList < Float >> ();
-               for (int t = 0; t < maxTiers; t++)
-               {
-                  if (t == 0)
-                  {
-                     for (int q = 0; q < NUM_DIMENSIONS; q++)
-                     {
-                        if (xterminalCausation.features.contains(q))
-                        {
-                           X_train_step.add(1.0f);
-                           X_signature_train_step.add(1.0f);
-                        }
-                        else
-                        {
-                           X_train_step.add(0.0f);
-                           X_signature_train_step.add(0.0f);
-                        }
-                     }
-                  }
-                  else
-                  {
-                     if (VERBOSE)
-                     {
-                        System.out.println("get tier context for X, terminal id=" + xterminalCausation.id + ", tier=" + (t - 1) + ", step=" + step);
-                     }
-                     ArrayList<Float> X_context = getTierContext(t - 1);
-                     X_contexts.add(X_context);
-                     for (int q = 0; q < NUM_DIMENSIONS; q++)
-                     {
-                        X_train_step.add(X_context.get(q));
-                     }
-                  }
-               }
-               updateContexts(xterminalCausation);
-               for (int t = 0; t < maxTiers; t++)
-               {
-                  if (t == 0)
-                  {
-                     for (int q = 0; q < PredictionSignatureLength; q++)
-                     {
-                        y_signature_train_step.add(-1.0f);
-                     }
-                     for (int q = 0, r = xterminalCausation.features.size(); q < r; q++)
-                     {
-                        y_signature_train_step.set(xterminalCausation.features.get(q) % PredictionSignatureLength, 1.0f);
-                     }
-                     for (int q = 0; q < NUM_DIMENSIONS; q++)
-                     {
-                        if (yterminalCausation.features.contains(q))
-                        {
-                           y_train_step.add(1.0f);
-                        }
-                        else
-                        {
-                           y_train_step.add(0.0f);
-                        }
-                     }
-                  }
-                  else
-                  {
-                     if (VERBOSE)
-                     {
-                        System.out.println("get tier context for y, terminal id=" + xterminalCausation.id + ", tier=" + (t - 1) + ", step=" + step);
-                     }
-                     ArrayList<Float> y_context = getTierContext(t - 1);
-                     ArrayList<Float> X_context = X_contexts.get(t - 1);
-                     for (int q = 0; q < NUM_DIMENSIONS; q++)
-                     {
-                        y_train_step.add(y_context.get(q) - X_context.get(q));
-                     }
-                  }
-               }
-               X_train.add(X_train_step);
-               y_train.add(y_train_step);
-               X_signature_train.add(X_signature_train_step);
-               y_signature_train.add(y_signature_train_step);
-               step++;
-               trainCount++;
+               printWriter.println(vertex);
             }
-            if (VERBOSE)
+            for (String edge : edges)
             {
-               System.out.println("train path length=" + step);
+               printWriter.println(edge);
             }
          }
+         printWriter.println("}");
+         printWriter.close();
       }
-      if (VERBOSE)
+      catch (IOException e)
       {
-         System.out.println("testing dataset:");
+         System.err.println("Cannot save causations graph to file " + filename);
+         System.exit(1);
       }
-      ArrayList < ArrayList < Float >> X_test = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Float >> y_test = new ArrayList < ArrayList < Float >> ();
-      ArrayList<Integer> y_test_path_begin   = new ArrayList<Integer>();
-      ArrayList<Integer> y_test_predictable  = new ArrayList<Integer>();
-      ArrayList<Integer> y_test_interstitial = new ArrayList<Integer>();
-      int                testCount           = 0;
-      for (int i = (int)((float)NUM_CAUSATION_PATHS * NN_DATASET_TRAIN_FRACTION); i < NUM_CAUSATION_PATHS; i++)
+   }
+
+
+   // List graph elements.
+   private static void listGraph(int hierarchy, Causation vertex, String pathPrefix, HashSet<String> vertices, HashSet<String> edges)
+   {
+      if (vertex instanceof TerminalCausation)
       {
-         if (VERBOSE)
-         {
-            System.out.println("path=" + i);
-         }
-         y_test_path_begin.add(testCount);
-         ArrayList<Integer> pathIdxs = new ArrayList<Integer>();
-         for (int j = 0; j < NUM_CAUSATION_HIERARCHIES; j++)
+         TerminalCausation terminal = (TerminalCausation)vertex;
+         String            features = "(";
+         for (int i = 0, j = terminal.features.size(); i < j; i++)
          {
-            pathIdxs.add(0);
+            features += terminal.features.get(i);
+            if (i < j - 1)
+            {
+               features += ",";
+            }
          }
-         int step = 0;
-         while (true)
+         features += ")";
+         vertices.add("h" + hierarchy + "_t" + pathPrefix + vertex.id + " [label=\"" + vertex.id + features + "\", shape=square];");
+      }
+      else
+      {
+         vertices.add("h" + hierarchy + "_nt" + pathPrefix + vertex.id + " [label=\"" + vertex.id + "\", shape=circle];");
+         NonterminalCausation nonTerminal = (NonterminalCausation)vertex;
+         for (int i = 0; i < nonTerminal.children.size(); i++)
          {
-            ArrayList<Integer> available = new ArrayList<Integer>();
-            for (int j = 0; j < NUM_CAUSATION_HIERARCHIES; j++)
+            Causation child           = nonTerminal.children.get(i);
+            String    childPathPrefix = "";
+            if (TREE_FORMAT)
             {
-               if (pathIdxs.get(j) < causationPaths.get(j).get(i).steps.size() - 1)
-               {
-                  available.add(j);
-               }
+               childPathPrefix = new String(pathPrefix) + vertex.id + "_" + i + "_";
             }
-            if (available.size() == 0)
+            if (child instanceof TerminalCausation)
             {
-               break;
+               edges.add("h" + hierarchy + "_nt" + pathPrefix + vertex.id + " -> h" + hierarchy + "_t" + childPathPrefix + child.id + " [label=\"" + i + "\"];");
             }
-            int           h    = available.get(random.nextInt(available.size()));
-            CausationPath path = causationPaths.get(h).get(i);
-            int           k    = pathIdxs.get(h);
-            if (VERBOSE)
+            else
             {
-               System.out.println("destination step=" + step + ", source path: hierarchy=" + h + ", step=" + k);
+               edges.add("h" + hierarchy + "_nt" + pathPrefix + vertex.id + " -> h" + hierarchy + "_nt" + childPathPrefix + child.id + " [label=\"" + i + "\"];");
             }
-            ArrayList<CausationTier> xstep              = path.steps.get(k);
-            ArrayList<CausationTier> ystep              = path.steps.get(k + 1);
-            Causation                xcausation         = xstep.get(0).causation;
-            TerminalCausation        xterminalCausation = (TerminalCausation)xcausation;
-            Causation                ycausation         = ystep.get(0).causation;
-            TerminalCausation        yterminalCausation = (TerminalCausation)ycausation;
-            if ((xstep.size() > 1) && (xstep.get(1).currentChild == 0))
+            listGraph(hierarchy, child, childPathPrefix, vertices, edges);
+         }
+      }
+   }
+
+
+   // Generate causation paths.
+   public static void generateCausationPaths()
+   {
+      if (causationPaths == null)
+      {
+         causationPaths = new ArrayList < ArrayList < CausationPath >> ();
+         for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+         {
+            ArrayList<Causation>     causationHierarchy = causationHierarchies.get(i);
+            ArrayList<CausationPath> paths = new ArrayList<CausationPath>();
+            causationPaths.add(paths);
+            Causation root = causationHierarchy.get(0);
+            paths.add(new CausationPath(i, root.id));
+            for (int j = 1, k = NUM_CAUSATION_PATHS - 1, n = causationHierarchy.size(); j < k; j++)
             {
-               int xid, yid;
-               if (NUM_INTERSTITIAL_TERMINALS == 0)
+               if (n == 1)
                {
-                  xid = random.nextInt(NUM_TERMINALS);
+                  root = causationHierarchy.get(0);
                }
                else
                {
-                  xid = random.nextInt(NUM_INTERSTITIAL_TERMINALS + 1);
-                  if (xid == 0)
-                  {
-                     xid = xcausation.id;
-                  }
-                  else
-                  {
-                     xid += (NUM_TERMINALS - 1);
-                  }
-               }
-               int max = MAX_INTERSTITIAL_TERMINAL_SEQUENCE / NUM_CAUSATION_HIERARCHIES;
-               for (int n = 0; xid != xcausation.id && n < max; n++)
-               {
-                  ArrayList<Float>  X_test_step      = new ArrayList<Float>();
-                  ArrayList<Float>  y_test_step      = new ArrayList<Float>();
-                  TerminalCausation xrandomCausation = new TerminalCausation(NUM_CAUSATION_HIERARCHIES, xid);
-                  if (NUM_INTERSTITIAL_TERMINALS == 0)
-                  {
-                     yid = random.nextInt(NUM_TERMINALS);
-                  }
-                  else
-                  {
-                     yid = random.nextInt(NUM_INTERSTITIAL_TERMINALS + 1);
-                     if (yid == 0)
-                     {
-                        yid = xcausation.id;
-                     }
-                     else
-                     {
-                        yid += (NUM_TERMINALS - 1);
-                     }
-                  }
-                  TerminalCausation yrandomCausation = new TerminalCausation(NUM_CAUSATION_HIERARCHIES, yid);
-                  if (VERBOSE)
-                  {
-                     System.out.print("X: *");
-                     xrandomCausation.print();
-                     System.out.print("y: *");
-                     yrandomCausation.print();
-                  }
-                  for (int t = 0; t < maxTiers; t++)
-                  {
-                     if (t == 0)
-                     {
-                        for (int q = 0; q < NUM_DIMENSIONS; q++)
-                        {
-                           if (xrandomCausation.features.contains(q))
-                           {
-                              X_test_step.add(1.0f);
-                           }
-                           else
-                           {
-                              X_test_step.add(0.0f);
-                           }
-                        }
-                        for (int q = 0; q < NUM_DIMENSIONS; q++)
-                        {
-                           y_test_step.add(0.0f);
-                        }
-                     }
-                     else
-                     {
-                        for (int q = 0; q < NUM_DIMENSIONS; q++)
-                        {
-                           X_test_step.add(0.0f);
-                           y_test_step.add(0.0f);
-                        }
-                     }
-                  }
-                  X_test.add(X_test_step);
-                  y_test.add(y_test_step);
-                  y_test_interstitial.add(testCount);
-                  step++;
-                  testCount++;
-                  xid = yid;
+                  root = causationHierarchy.get(randomizer.nextInt(n - 1) + 1);
                }
+               paths.add(new CausationPath(i, root.id));
             }
-            if (VERBOSE)
+            if (NUM_CAUSATION_PATHS > 1)
             {
-               System.out.print("X: ");
-               xterminalCausation.print();
-               System.out.print("y: ");
-               yterminalCausation.print();
+               root = causationHierarchy.get(0);
+               paths.add(new CausationPath(i, root.id));
+            }
+         }
+      }
+      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+      {
+         ArrayList<Causation>     causationHierarchy = causationHierarchies.get(i);
+         ArrayList<CausationPath> paths = causationPaths.get(i);
+         for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
+         {
+            CausationPath path = paths.get(j);
+            Causation     root = causationHierarchy.get(0);
+            for (int k = 1, q = causationHierarchy.size(); k < q && root.id != path.id; k++)
+            {
+               root = causationHierarchy.get(k);
+            }
+            ArrayList<CausationTier> step = new ArrayList<CausationTier>();
+            step.add(new CausationTier(root, 0));
+            while (root instanceof NonterminalCausation)
+            {
+               NonterminalCausation nonterminal = (NonterminalCausation)root;
+               root = nonterminal.children.get(0);
+               step.add(new CausationTier(root, 0));
             }
-            ArrayList<Float> X_test_step = new ArrayList<Float>();
-            ArrayList<Float> y_test_step = new ArrayList<Float>();
-            for (int t = 0; t < maxTiers; t++)
+            path.add(step);
+            while (stepCausationPath(path, 0)) {}
+            for (ArrayList<CausationTier> s : path.steps)
             {
-               if (t == 0)
-               {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     if (xterminalCausation.features.contains(q))
-                     {
-                        X_test_step.add(1.0f);
-                     }
-                     else
-                     {
-                        X_test_step.add(0.0f);
-                     }
-                  }
-               }
-               else
-               {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     X_test_step.add(0.0f);
-                  }
-               }
+               Collections.reverse(s);
             }
-            for (int t = 0; t < maxTiers; t++)
+         }
+      }
+
+      if (VERBOSE)
+      {
+         System.out.println("causation paths:");
+         for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+         {
+            ArrayList<CausationPath> paths = causationPaths.get(i);
+            for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
             {
-               if (t == 0)
-               {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     if (yterminalCausation.features.contains(q))
-                     {
-                        y_test_step.add(1.0f);
-                     }
-                     else
-                     {
-                        y_test_step.add(0.0f);
-                     }
-                  }
-               }
-               else
+               CausationPath path = paths.get(j);
+               System.out.println("path=" + j + ", hierarchy=" + path.hierarchy + ", id=" + path.id);
+               for (int k = 0; k < path.steps.size(); k++)
                {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
+                  System.out.println("step=" + k);
+                  ArrayList<CausationTier> step = path.steps.get(k);
+                  for (int q = 0; q < step.size(); q++)
                   {
-                     y_test_step.add(0.0f);
+                     CausationTier tier = step.get(q);
+                     tier.print();
                   }
                }
             }
-            X_test.add(X_test_step);
-            y_test.add(y_test_step);
-            y_test_predictable.add(testCount);
-            step++;
-            testCount++;
-            pathIdxs.set(h, pathIdxs.get(h) + 1);
-            k++;
-            if (VERBOSE)
+         }
+      }
+   }
+
+
+   // Step along causation path.
+   public static boolean stepCausationPath(CausationPath path, int context)
+   {
+      ArrayList<CausationTier> currentStep   = path.steps.get(path.steps.size() - 1);
+      CausationTier            CausationTier = currentStep.get(context);
+      if (CausationTier.causation instanceof TerminalCausation)
+      {
+         return(false);
+      }
+      if (stepCausationPath(path, context + 1))
+      {
+         return(true);
+      }
+      NonterminalCausation nonterminalCausation = (NonterminalCausation)CausationTier.causation;
+      if (CausationTier.currentChild == nonterminalCausation.children.size() - 1)
+      {
+         return(false);
+      }
+      ArrayList<CausationTier> nextStep = new ArrayList<CausationTier>();
+      for (int i = 0; i < context; i++)
+      {
+         CausationTier tier = currentStep.get(i);
+         tier = new CausationTier(tier.causation, tier.currentChild);
+         nextStep.add(tier);
+      }
+      CausationTier tier = currentStep.get(context);
+      tier = new CausationTier(tier.causation, tier.currentChild);
+      tier.currentChild++;
+      nextStep.add(tier);
+      do
+      {
+         NonterminalCausation parent = (NonterminalCausation)tier.causation;
+         Causation            child  = parent.children.get(tier.currentChild);
+         tier = new CausationTier(child, 0);
+         nextStep.add(tier);
+      } while (tier.causation instanceof NonterminalCausation);
+      path.add(nextStep);
+      return(true);
+   }
+
+
+   // Analyze causations.
+   public static void analyzeCausations()
+   {
+      if (VERBOSE)
+      {
+         System.out.println("analyze causations");
+      }
+      tierValueDurations = new ArrayList<Integer>();
+      ArrayList < ArrayList < Integer >> hierarchyTiers = new ArrayList < ArrayList < Integer >> ();
+      int maxTier = 0;
+      for (int i = 0, j = causationHierarchies.size(); i < j; i++)
+      {
+         ArrayList<Integer> tiers = new ArrayList<Integer>();
+         hierarchyTiers.add(tiers);
+         ArrayList<Causation> causations = causationHierarchies.get(i);
+         for (Causation causation : causations)
+         {
+            int tier = getTier(causation);
+            tiers.add(tier);
+            if (tier > maxTier)
             {
-               System.out.println("destination step=" + step + ", source path: hierarchy=" + h + ", step=" + k);
+               maxTier = tier;
             }
-            xstep              = ystep;
-            xcausation         = xstep.get(0).causation;
-            xterminalCausation = (TerminalCausation)xcausation;
-            if (k < path.steps.size() - 1)
+         }
+      }
+      if (VERBOSE)
+      {
+         System.out.println("maximum tier=" + maxTier);
+      }
+      int[] durationAccums = new int[maxTier + 1];
+      int[] durationCounts = new int[maxTier + 1];
+      durationAccums[0]    = 1;
+      durationCounts[0]    = 1;
+      for (int i = 1; i <= maxTier; i++)
+      {
+         durationAccums[i] = 0;
+         durationCounts[i] = 0;
+      }
+      for (ArrayList<Causation> causations : causationHierarchies)
+      {
+         for (Causation causation : causations)
+         {
+            if (causation instanceof TerminalCausation)
             {
-               ystep              = path.steps.get(k + 1);
-               ycausation         = ystep.get(0).causation;
-               yterminalCausation = (TerminalCausation)ycausation;
+               if (VERBOSE)
+               {
+                  ((TerminalCausation)causation).print();
+                  System.out.println("terminal span=1");
+               }
             }
             else
             {
-               ystep              = null;
-               ycausation         = null;
-               yterminalCausation = null;
-            }
-            if (VERBOSE)
-            {
-               System.out.print("X: ");
-               xterminalCausation.print();
-               System.out.print("y: ");
-               if (yterminalCausation != null)
+               if (VERBOSE)
                {
-                  yterminalCausation.print();
+                  ((NonterminalCausation)causation).print();
                }
-               else
+               int root_min      = spanCausation(causation, 0);
+               int root_expected = spanCausation(causation, 1);
+               int root_max      = spanCausation(causation, 2);
+               int tier          = getTier(causation);
+               if (TIER_VALUE_DURATION_TYPE.equals("minimum"))
                {
-                  System.out.println("null");
+                  durationAccums[tier] += root_min;
                }
-            }
-            X_test_step = new ArrayList<Float>();
-            y_test_step = new ArrayList<Float>();
-            for (int t = 0; t < maxTiers; t++)
-            {
-               if (t == 0)
+               else if (TIER_VALUE_DURATION_TYPE.equals("expected"))
                {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     if (xterminalCausation.features.contains(q))
-                     {
-                        X_test_step.add(1.0f);
-                     }
-                     else
-                     {
-                        X_test_step.add(0.0f);
-                     }
-                  }
+                  durationAccums[tier] += root_expected;
                }
                else
                {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     X_test_step.add(0.0f);
-                  }
+                  durationAccums[tier] += root_max;
+               }
+               durationCounts[tier]++;
+               NonterminalCausation root  = (NonterminalCausation)causation;
+               Causation            cause = root.children.get(0);
+               int       cause_min        = spanCausation(cause, 0);
+               int       cause_expected   = spanCausation(cause, 1);
+               int       cause_max        = spanCausation(cause, 2);
+               Causation effect           = root.children.get(1);
+               int       effect_min       = spanCausation(effect, 0);
+               int       effect_expected  = spanCausation(effect, 1);
+               int       effect_max       = spanCausation(effect, 2);
+               if (VERBOSE)
+               {
+                  System.out.println("min span=" + root_min + ", expected span=" + root_expected + ", max span=" + root_max);
+                  System.out.println("cause min span=" + cause_min + ", expected span=" + cause_expected + ", max span=" + cause_max);
+                  System.out.println("effect min span=" + effect_min + ", expected span=" + effect_expected + ", max span=" + effect_max);
                }
             }
-            for (int t = 0; t < maxTiers; t++)
+         }
+      }
+      if (VERBOSE)
+      {
+         System.out.println("feature value durations:");
+      }
+      for (int i = 0; i <= maxTier; i++)
+      {
+         int duration = (int)((float)durationAccums[i] / (float)durationCounts[i]);
+         tierValueDurations.add(duration);
+         if (VERBOSE)
+         {
+            System.out.println("tier=" + i + ", duration=" + duration);
+         }
+      }
+   }
+
+
+   // Get causation tier.
+   public static int getTier(Causation causation)
+   {
+      if (causation instanceof TerminalCausation)
+      {
+         return(0);
+      }
+      else
+      {
+         NonterminalCausation nonterminalCausation = (NonterminalCausation)causation;
+         int cause_tier  = getTier(nonterminalCausation.children.get(0)) + 1;
+         int effect_tier = getTier(nonterminalCausation.children.get(1)) + 1;
+         if (cause_tier > effect_tier)
+         {
+            return(cause_tier);
+         }
+         else
+         {
+            return(effect_tier);
+         }
+      }
+   }
+
+
+   // Measure traversal span.
+   public static int spanCausation(Causation causation, int type)
+   {
+      int numTerminals = countTerminals(causation);
+
+      switch (type)
+      {
+      case 0:      // minimum.
+         return(numTerminals);
+
+      case 1:      // expected.
+         int count = 0;
+         for (int i = 0; i < 100; i++)
+         {
+            for (int j = 0, k = numTerminals / 2; j < k; j++)
             {
-               if (t == 0)
+               for (int n = 0; n < MAX_INTERSTITIAL_TERMINAL_SEQUENCE; n++)
                {
-                  if (yterminalCausation != null)
+                  if (NUM_INTERSTITIAL_TERMINALS == 0)
                   {
-                     for (int q = 0; q < NUM_DIMENSIONS; q++)
+                     if (randomizer.nextInt(NUM_TERMINALS) == 0)
                      {
-                        if (yterminalCausation.features.contains(q))
-                        {
-                           y_test_step.add(1.0f);
-                        }
-                        else
-                        {
-                           y_test_step.add(0.0f);
-                        }
+                        break;
                      }
                   }
                   else
                   {
-                     for (int q = 0; q < NUM_DIMENSIONS; q++)
+                     if (randomizer.nextInt(NUM_INTERSTITIAL_TERMINALS + 1) == 0)
                      {
-                        y_test_step.add(0.0f);
+                        break;
                      }
                   }
+                  count++;
                }
-               else
-               {
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     y_test_step.add(0.0f);
-                  }
-               }
-            }
-            X_test.add(X_test_step);
-            y_test.add(y_test_step);
-            step++;
-            testCount++;
-            if (k < path.steps.size() - 1)
-            {
-               pathIdxs.set(h, pathIdxs.get(h) + 1);
             }
          }
-         if (VERBOSE)
+         count /= 100;
+         return(numTerminals + count);
+
+      case 2:       // maximum.
+         return(numTerminals + ((numTerminals / 2) * MAX_INTERSTITIAL_TERMINAL_SEQUENCE));
+      }
+      return(0);
+   }
+
+
+   // Count terminals.
+   public static int countTerminals(Causation causation)
+   {
+      int count = 0;
+
+      if (causation instanceof TerminalCausation)
+      {
+         count = 1;
+      }
+      else
+      {
+         NonterminalCausation nonterminalCausation = (NonterminalCausation)causation;
+         count  = countTerminals(nonterminalCausation.children.get(0));
+         count += countTerminals(nonterminalCausation.children.get(1));
+      }
+      return(count);
+   }
+
+
+   // Export NN dataset.
+   public static void exportNNdataset(String filename, float trainFraction, int randomSeed)
+   {
+      exportDatasets(filename, null, trainFraction, randomSeed);
+   }
+
+
+   // Export NN and RNN datasets.
+   // Paths and the test interleaving schedule are traversed once: NN rows carry tier
+   // contexts, and RNN sequence steps are the terminal segment of the same rows.
+   // Either file name may be null.
+   // Paths are generated on DATASET_THREADS workers and written in path order. The random
+   // draws of each test path are made in path order and replayed by the workers, so the
+   // datasets do not depend on the number of threads.
+   // With a checkpoint file, the export is checkpointed every CHECKPOINT_PATHS paths and
+   // can resume from the last checkpoint: written paths are skipped, and the random
+   // draws of written test paths are replayed, so a resumed export is identical.
+   public static void exportDatasets(String NNfilename, String RNNfilename, float trainFraction, int randomSeed)
+   {
+      if (VERBOSE)
+      {
+         if (NNfilename != null)
          {
-            System.out.println("testing path length=" + step);
+            System.out.println("export NN dataset");
+         }
+         if (RNNfilename != null)
+         {
+            System.out.println("export RNN dataset");
          }
       }
+      SplittableRandom random   = new SplittableRandom(randomSeed);
+      int              maxTiers = getMaxTiers();
+      boolean       NN        = (NNfilename != null);
+      boolean       RNN       = (RNNfilename != null);
+      DatasetWriter NNwriter  = null;
+      DatasetWriter RNNwriter = null;
+
+      // Tokenize rows by terminal blocks.
+      DatasetWriter.TOKEN_WIDTH = NUM_DIMENSIONS;
+
+      // Preflight dataset sizes to choose spooling.
+      DatasetPreflight preflight = new DatasetPreflight(NN, RNN, trainFraction, randomSeed);
+      DatasetWriter.MEMORY_SPOOLS = preflight.memory;
+      if (VERBOSE)
+      {
+         preflight.print();
+      }
+
+      // Checkpoints keep spool files.
+      boolean checkpoint = (CHECKPOINT_FILENAME != null);
+      if (checkpoint)
+      {
+         DatasetWriter.MEMORY_SPOOLS = false;
+      }
+      DatasetWriter.PERSISTENT_SPOOLS = checkpoint;
 
+      // Verbose tracing and novelty detection depend on generation order.
+      // The trace shows each path once, with the rows of both datasets.
+      int threads = DATASET_THREADS;
+      if (VERBOSE || ContextMonitor.NOVELTY_ENABLED)
+      {
+         threads = 1;
+         if (VERBOSE && (DATASET_THREADS > 1))
+         {
+            System.out.println("dataset threads=1 for path order trace" + (ContextMonitor.NOVELTY_ENABLED ? " and novelty detection" : ""));
+         }
+      }
+      ExecutorService executor = null;
+      if (threads > 1)
+      {
+         executor = Executors.newFixedThreadPool(threads);
+      }
+      ArrayDeque < Future < DatasetWriter.Chunk >> pending = new ArrayDeque < Future < DatasetWriter.Chunk >> ();
       try
       {
-         System.setProperty("line.separator", "\n");
-         FileWriter  fileWriter  = new FileWriter(filename);
-         PrintWriter printWriter = new PrintWriter(fileWriter);
-         printWriter.println("X_train_shape = [ " + X_train.size() + ", " + (maxTiers * NUM_DIMENSIONS) + " ]");
-         printWriter.println("X_train = [");
-         for (int i = 0, j = X_train.size(); i < j; i++)
+         final DatasetGenerator generator = new DatasetGenerator(maxTiers, NN, new TerminalTemplates());
+         if (NN)
          {
-            ArrayList<Float> X_train_step = X_train.get(i);
-            for (int k = 0, q = X_train_step.size(); k < q; k++)
+            NNwriter                      = new DatasetWriter(NNfilename, DATASET_FORMAT);
+            generator.X_train             = NNwriter.addRows("X_train", maxTiers * NUM_DIMENSIONS);
+            generator.y_train             = NNwriter.addRows("y_train", maxTiers * NUM_DIMENSIONS);
+            generator.X_signature_train   = NNwriter.addRows("X_signature_train", NUM_DIMENSIONS);
+            generator.y_signature_train   = NNwriter.addRows("y_signature_train", PredictionSignatureLength);
+            generator.y_train_path_begin  = NNwriter.addIntList("y_train_path_begin");
+            generator.X_test              = NNwriter.addRows("X_test", maxTiers * NUM_DIMENSIONS);
+            generator.y_test              = NNwriter.addRows("y_test", maxTiers * NUM_DIMENSIONS);
+            generator.y_test_path_begin   = NNwriter.addIntList("y_test_path_begin");
+            generator.y_test_predictable  = NNwriter.addIntList("y_test_predictable");
+            generator.y_test_interstitial = NNwriter.addIntList("y_test_interstitial");
+            if (NN_DATASET_DEDUPLICATE)
             {
-               printWriter.print(X_train_step.get(k) + "");
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
+               NNwriter.deduplicate(generator.X_train, generator.y_train);
+               NNwriter.deduplicate(generator.X_signature_train, generator.y_signature_train);
             }
-            printWriter.println();
          }
-         printWriter.println("]");
-         printWriter.println("y_train_shape = [ " + y_train.size() + ", " + (maxTiers * NUM_DIMENSIONS) + " ]");
-         printWriter.println("y_train = [");
-         for (int i = 0, j = y_train.size(); i < j; i++)
+         if (RNN)
          {
-            ArrayList<Float> y_train_step = y_train.get(i);
-            for (int k = 0, q = y_train_step.size(); k < q; k++)
-            {
-               printWriter.print(y_train_step.get(k) + "");
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
-            }
-            printWriter.println();
+            RNNwriter                             = new DatasetWriter(RNNfilename, DATASET_FORMAT);
+            generator.X_train_sequence            = RNNwriter.addSequences("X_train", NUM_DIMENSIONS);
+            generator.y_train_sequence            = RNNwriter.addSequences("y_train", NUM_DIMENSIONS);
+            generator.X_test_sequence             = RNNwriter.addSequences("X_test", NUM_DIMENSIONS);
+            generator.y_test_sequence             = RNNwriter.addSequences("y_test", NUM_DIMENSIONS);
+            generator.y_test_predictable_sequence = RNNwriter.addIntLists("y_test_predictable");
          }
-         printWriter.println("]");
-         printWriter.println("X_signature_train_shape = [ " + X_signature_train.size() + ", " + NUM_DIMENSIONS + " ]");
-         printWriter.println("X_signature_train = [");
-         for (int i = 0, j = X_signature_train.size(); i < j; i++)
+         int trainPaths = (int)((float)NUM_CAUSATION_PATHS * trainFraction);
+         int numPaths   = NUM_CAUSATION_HIERARCHIES * trainPaths + (NUM_CAUSATION_PATHS - trainPaths);
+         long numSteps   = preflight.trainRows + preflight.testRows;
+         if (NN)
          {
-            ArrayList<Float> X_signature_train_step = X_signature_train.get(i);
-            for (int k = 0, q = X_signature_train_step.size(); k < q; k++)
-            {
-               printWriter.print(X_signature_train_step.get(k) + "");
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
-            }
-            printWriter.println();
+            NNwriter.setPaths(numPaths, numSteps);
          }
-         printWriter.println("]");
-         printWriter.println("y_signature_train_shape = [ " + y_signature_train.size() + ", " + PredictionSignatureLength + " ]");
-         printWriter.println("y_signature_train = [");
-         for (int i = 0, j = y_signature_train.size(); i < j; i++)
+         if (RNN)
          {
-            ArrayList<Float> y_signature_train_step = y_signature_train.get(i);
-            for (int k = 0, q = y_signature_train_step.size(); k < q; k++)
-            {
-               printWriter.print(y_signature_train_step.get(k) + "");
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
-            }
-            printWriter.println();
+            RNNwriter.setPaths(numPaths, numSteps);
          }
-         printWriter.println("]");
-         printWriter.print("y_train_path_begin = [");
-         for (int i = 0, j = y_train_path_begin.size(); i < j; i++)
+
+         // Resume from checkpoint.
+         String key          = null;
+         int    resumePaths  = 0;
+         int    pathsWritten = 0;
+         if (checkpoint)
          {
-            printWriter.print(y_train_path_begin.get(i) + "");
-            if (i < j - 1)
+            key = (checkpointKey != null ? checkpointKey : DatasetCache.getKey(null));
+            if (CHECKPOINT_RESUME && new File(CHECKPOINT_FILENAME).exists())
             {
-               printWriter.print(",");
+               resumePaths = loadCheckpoint(key, NNwriter, RNNwriter);
             }
          }
-         printWriter.println("]");
-         printWriter.println("X_test_shape = [ " + X_test.size() + ", " + (maxTiers * NUM_DIMENSIONS) + " ]");
-         printWriter.println("X_test = [");
-         for (int i = 0, j = X_test.size(); i < j; i++)
+         resumedPaths = resumePaths;
+
+         if (VERBOSE)
          {
-            ArrayList<Float> X_test_step = X_test.get(i);
-            for (int k = 0, q = X_test_step.size(); k < q; k++)
-            {
-               printWriter.print(X_test_step.get(k) + "");
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
-            }
-            printWriter.println();
+            System.out.println("train dataset:");
+         }
+         if (NN)
+         {
+            ContextMonitor.begin("NN train");
          }
-         printWriter.println("]");
-         printWriter.println("y_test_shape = [ " + y_test.size() + ", " + (maxTiers * NUM_DIMENSIONS) + " ]");
-         printWriter.println("y_test = [");
-         for (int i = 0, j = y_test.size(); i < j; i++)
+         for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
          {
-            ArrayList<Float> y_test_step = y_test.get(i);
-            for (int k = 0, q = y_test_step.size(); k < q; k++)
+            ArrayList<CausationPath> paths = causationPaths.get(i);
+            for (int j = 0, n = (int)((float)NUM_CAUSATION_PATHS * trainFraction); j < n; j++)
             {
-               printWriter.print(y_test_step.get(k) + "");
-               if ((i != j - 1) || (k != q - 1))
+               if (pathsWritten < resumePaths)
+               {
+                  pathsWritten++;
+                  continue;
+               }
+               final CausationPath path = paths.get(j);
+               if (executor == null)
+               {
+                  generator.trainPath(path).write();
+               }
+               else
                {
-                  printWriter.print(",");
+                  pending.add(executor.submit(new Callable<DatasetWriter.Chunk>()
+                                              {
+                                                 public DatasetWriter.Chunk call()
+                                                 {
+                                                    return(generator.trainPath(path));
+                                                 }
+                                              }));
+                  writeChunks(pending, threads * 2);
+               }
+               pathsWritten++;
+               if (checkpoint && checkpoint(key, pathsWritten, numPaths, pending, NNwriter, RNNwriter))
+               {
+                  return;
                }
             }
-            printWriter.println();
          }
-         printWriter.println("]");
-         printWriter.print("y_test_path_begin = [");
-         for (int i = 0, j = y_test_path_begin.size(); i < j; i++)
+         writeChunks(pending, 0);
+         if (NN)
          {
-            printWriter.print(y_test_path_begin.get(i) + "");
-            if (i < j - 1)
-            {
-               printWriter.print(",");
-            }
+            ContextMonitor.end();
          }
-         printWriter.println("]");
-         printWriter.print("y_test_predictable = [");
-         for (int i = 0, j = y_test_predictable.size(); i < j; i++)
+         if (VERBOSE)
          {
-            printWriter.print(y_test_predictable.get(i) + "");
-            if (i < j - 1)
-            {
-               printWriter.print(",");
-            }
+            System.out.println("testing dataset:");
          }
-         printWriter.println("]");
-         printWriter.print("y_test_interstitial = [");
-         for (int i = 0, j = y_test_interstitial.size(); i < j; i++)
+         for (int i = (int)((float)NUM_CAUSATION_PATHS * trainFraction); i < NUM_CAUSATION_PATHS; i++)
          {
-            printWriter.print(y_test_interstitial.get(i) + "");
-            if (i < j - 1)
+            final int       path  = i;
+            final PathDraws draws = new PathDraws(random);
+            if (pathsWritten < resumePaths)
+            {
+               // Replay the draws of a written path without tracing it.
+               boolean verbose = VERBOSE;
+               VERBOSE = false;
+               generator.testPath(path, draws, null);
+               VERBOSE = verbose;
+               pathsWritten++;
+               continue;
+            }
+            if (executor == null)
+            {
+               DatasetWriter.Chunk chunk = new DatasetWriter.Chunk();
+               generator.testPath(path, draws, chunk);
+               chunk.write();
+            }
+            else
+            {
+               generator.testPath(path, draws, null);
+               draws.replay();
+               pending.add(executor.submit(new Callable<DatasetWriter.Chunk>()
+                                           {
+                                              public DatasetWriter.Chunk call()
+                                              {
+                                                 DatasetWriter.Chunk chunk = new DatasetWriter.Chunk();
+                                                 generator.testPath(path, draws, chunk);
+                                                 return(chunk);
+                                              }
+                                           }));
+               writeChunks(pending, threads * 2);
+            }
+            pathsWritten++;
+            if (checkpoint && checkpoint(key, pathsWritten, numPaths, pending, NNwriter, RNNwriter))
             {
-               printWriter.print(",");
+               return;
             }
          }
-         printWriter.println("]");
-         if (tierValueDurations != null)
+         writeChunks(pending, 0);
+
+         if (NN)
          {
-            printWriter.print("context_tier_value_durations = [");
-            for (int i = 0, j = tierValueDurations.size(); i < j; i++)
+            if (tierValueDurations != null)
             {
-               printWriter.print(tierValueDurations.get(i) + "");
-               if (i < j - 1)
+               String durations = "context_tier_value_durations = [";
+               for (int i = 0, j = tierValueDurations.size(); i < j; i++)
                {
-                  printWriter.print(",");
+                  durations += tierValueDurations.get(i) + "";
+                  if (i < j - 1)
+                  {
+                     durations += ",";
+                  }
                }
+               NNwriter.addText(durations + "]\n");
+            }
+            else
+            {
+               NNwriter.addText("context_tier_value_durations = None");
             }
-            printWriter.println("]");
          }
-         else
+         DatasetWriter.close(NNwriter, RNNwriter);
+         if (checkpoint)
          {
-            printWriter.print("context_tier_value_durations = None");
+            new File(CHECKPOINT_FILENAME).delete();
          }
-         printWriter.close();
       }
       catch (IOException e)
       {
-         System.err.println("Cannot write NN dataset to file " + filename);
+         if (NN && RNN)
+         {
+            System.err.println("Cannot write NN dataset to file " + NNfilename + " or RNN dataset to file " + RNNfilename);
+         }
+         else
+         {
+            System.err.println("Cannot write NN dataset to file " + (NN ? NNfilename : RNNfilename));
+         }
          System.exit(1);
       }
+      finally
+      {
+         if (executor != null)
+         {
+            executor.shutdownNow();
+         }
+      }
    }
 
 
-   // Get tier feature context.
-   static ArrayList<Float> getTierContext(int tier)
+   // Checkpoint export every CHECKPOINT_PATHS paths, before the last, once written paths
+   // are drained. Returns true if halted, with spools kept for resuming.
+   static boolean checkpoint(String key, int paths, int numPaths, ArrayDeque < Future < DatasetWriter.Chunk >> pending,
+                             DatasetWriter NNwriter, DatasetWriter RNNwriter) throws IOException
    {
-      ArrayList<Float> features = new ArrayList<Float>();
-      for (int i = 0; i < NUM_DIMENSIONS; i++)
+      if ((paths % CHECKPOINT_PATHS == 0) && (paths < numPaths))
       {
-         features.add(0.0f);
+         writeChunks(pending, 0);
+         saveCheckpoint(key, paths, NNwriter, RNNwriter);
       }
-      ContextFeatures contextFeatures = contextTiers.get(tier);
-      if (contextFeatures != null)
+      if (paths == CHECKPOINT_HALT_PATHS)
       {
-         if (VERBOSE)
+         writeChunks(pending, 0);
+         if (NNwriter != null)
          {
-            contextFeatures.print();
+            NNwriter.suspend();
          }
-         for (int i : contextFeatures.features)
+         if (RNNwriter != null)
          {
-            features.set(i, contextFeatures.value);
+            RNNwriter.suspend();
          }
+         return(true);
       }
-      return(features);
+      return(false);
    }
 
 
-   // Update feature contexts.
-   static void updateContexts(TerminalCausation causation)
+   // Get maximum number of tiers in causation path steps.
+   static int getMaxTiers()
    {
-      // Expire contexts.
-      for (int i = 0, j = contextTiers.size(); i < j; i++)
+      int maxTiers = 0;
+
+      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
       {
-         ContextFeatures contextFeatures = contextTiers.get(i);
-         if (contextFeatures != null)
+         ArrayList<CausationPath> paths = causationPaths.get(i);
+         for (int j = 0; j < NUM_CAUSATION_PATHS; j++)
          {
-            if (!contextFeatures.expire())
+            CausationPath path = paths.get(j);
+            for (int k = 0; k < path.steps.size(); k++)
             {
-               contextTiers.set(i, null);
+               ArrayList<CausationTier> step = path.steps.get(k);
+               if (step.size() > maxTiers)
+               {
+                  maxTiers = step.size();
+               }
             }
          }
       }
+      return(maxTiers);
+   }
 
-      // Add contexts.
-      ContextFeatures contextFeatures1 = new ContextFeatures(causation, 0);
-      for (int i = 0, j = contextTiers.size(); i < j && i <= MAX_CONTEXT_TIER; i++)
+
+   // Write generated chunks in order until at most the given number are pending.
+   static void writeChunks(ArrayDeque < Future < DatasetWriter.Chunk >> pending, int maxPending) throws IOException
+   {
+      while (pending.size() > maxPending)
       {
-         ContextFeatures contextFeatures2 = contextTiers.get(i);
-         if (contextFeatures2 != null)
+         try
          {
-            contextTiers.set(i, null);
-            contextFeatures1 = new ContextFeatures(contextFeatures1, contextFeatures2, i + 1);
+            pending.remove().get().write();
          }
-         else
+         catch (InterruptedException e)
          {
-            contextTiers.set(i, contextFeatures1);
-            break;
+            throw new IOException("Interrupted generating dataset");
+         }
+         catch (ExecutionException e)
+         {
+            throw new RuntimeException(e.getCause());
          }
       }
    }
 
 
-   // Export RNN dataset.
-   public static void exportRNNdataset(String filename, float trainFraction, int randomSeed)
+   // Random draws of a path: recorded in path order, then replayed.
+   static class PathDraws
    {
-      if (VERBOSE)
+      SplittableRandom random;
+      int[]            draws;
+      int              count;
+
+      PathDraws(SplittableRandom random)
       {
-         System.out.println("export RNN dataset");
-         System.out.println("train dataset:");
+         this.random = random;
+         draws       = new int[16];
+         count       = 0;
       }
-      SplittableRandom random = new SplittableRandom(randomSeed);
-      ArrayList < ArrayList < Float >> X_train = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Float >> y_train = new ArrayList < ArrayList < Float >> ();
-      int maxPathLength = 0;
-      for (int i = 0; i < NUM_CAUSATION_HIERARCHIES; i++)
+
+
+      int nextInt(int bound)
       {
-         ArrayList<CausationPath> paths = causationPaths.get(i);
-         for (int j = 0, n = (int)((float)NUM_CAUSATION_PATHS * RNN_DATASET_TRAIN_FRACTION); j < n; j++)
+         if (random == null)
          {
-            CausationPath path = paths.get(j);
+            return(draws[count++]);
+         }
+         int value = random.nextInt(bound);
+         if (count == draws.length)
+         {
+            draws = Arrays.copyOf(draws, count * 2);
+         }
+         draws[count++] = value;
+         return(value);
+      }
+
+
+      // Replay recorded draws.
+      void replay()
+      {
+         random = null;
+         count  = 0;
+      }
+   };
+
+   // Test path interleaver: a stream of hierarchies whose path steps are interleaved.
+   // Each hierarchy is drawn uniformly from the unfinished hierarchies in index order.
+   // Unfinished hierarchies are counted in a Fenwick tree, so drawing and finishing
+   // are O(log H) and make the same selections as a list of unfinished hierarchies.
+   static class PathInterleaver
+   {
+      int[] cursors;
+      int[] limits;
+      int[] tree;
+      int   active;
+      int   top;
+
+      // Hierarchy paths have given numbers of steps to interleave.
+      PathInterleaver(int[] limits)
+      {
+         int n = limits.length;
+
+         this.limits = limits;
+         cursors     = new int[n];
+         tree        = new int[n + 1];
+         active      = 0;
+         for (int i = 1; i <= n; i++)
+         {
+            if (limits[i - 1] > 0)
+            {
+               tree[i]++;
+               active++;
+            }
+            int j = i + (i & -i);
+            if (j <= n)
+            {
+               tree[j] += tree[i];
+            }
+         }
+         top = (n > 0 ? Integer.highestOneBit(n) : 0);
+      }
+
+
+      // Draw next hierarchy, or -1 when all are finished.
+      int next(PathDraws random)
+      {
+         if (active == 0)
+         {
+            return(-1);
+         }
+         int k = random.nextInt(active);
+         int h = 0;
+         for (int step = top; step > 0; step >>= 1)
+         {
+            if ((h + step < tree.length) && (tree[h + step] <= k))
+            {
+               h += step;
+               k -= tree[h];
+            }
+         }
+         return(h);
+      }
+
+
+      // Advance hierarchy cursor, finishing the hierarchy at its limit.
+      void advance(int h)
+      {
+         cursors[h]++;
+         if (cursors[h] == limits[h])
+         {
+            for (int i = h + 1; i < tree.length; i += i & -i)
+            {
+               tree[i]--;
+            }
+            active--;
+         }
+      }
+   };
+
+   // Dataset path generator.
+   // Sections are null for datasets not being exported.
+   static class DatasetGenerator
+   {
+      int     maxTiers;
+      boolean contexts;
+
+      // Terminal row templates, null if not generating rows.
+      TerminalTemplates templates;
+
+      DatasetWriter.Section X_train;
+      DatasetWriter.Section y_train;
+      DatasetWriter.Section X_signature_train;
+      DatasetWriter.Section y_signature_train;
+      DatasetWriter.Section y_train_path_begin;
+      DatasetWriter.Section X_test;
+      DatasetWriter.Section y_test;
+      DatasetWriter.Section y_test_path_begin;
+      DatasetWriter.Section y_test_predictable;
+      DatasetWriter.Section y_test_interstitial;
+      DatasetWriter.Section X_train_sequence;
+      DatasetWriter.Section y_train_sequence;
+      DatasetWriter.Section X_test_sequence;
+      DatasetWriter.Section y_test_sequence;
+      DatasetWriter.Section y_test_predictable_sequence;
+
+      DatasetGenerator(int maxTiers, boolean contexts, TerminalTemplates templates)
+      {
+         this.maxTiers  = maxTiers;
+         this.contexts  = contexts;
+         this.templates = templates;
+      }
+
+
+      // Generate train path.
+      DatasetWriter.Chunk trainPath(CausationPath path)
+      {
+         DatasetWriter.Chunk chunk = new DatasetWriter.Chunk();
+
+         if (VERBOSE)
+         {
+            path.print();
+            System.out.println("data:");
+         }
+         ArrayList<ContextFeatures> tiers = null;
+         if (contexts)
+         {
+            tiers = new ArrayList<ContextFeatures> ();
+            for (int k = 0, q = maxTiers - 1; k < q; k++)
+            {
+               tiers.add(null);
+            }
+         }
+         int step = 0;
+         for (int k = 0, p = path.steps.size() - 1; k < p; k++)
+         {
+            ArrayList<CausationTier> xstep              = path.steps.get(k);
+            ArrayList<CausationTier> ystep              = path.steps.get(k + 1);
+            Causation                xcausation         = xstep.get(0).causation;
+            TerminalCausation        xterminalCausation = (TerminalCausation)xcausation;
+            Causation                ycausation         = ystep.get(0).causation;
+            TerminalCausation        yterminalCausation = (TerminalCausation)ycausation;
+            if (k == 0)
+            {
+               chunk.addIndex(y_train_path_begin, X_train, 0);
+            }
             if (VERBOSE)
             {
-               path.print();
-               System.out.println("data:");
+               System.out.print("X: ");
+               xterminalCausation.print();
+               System.out.print("y: ");
+               yterminalCausation.print();
             }
-            ArrayList<Float> X_train_path = new ArrayList<Float> ();
-            ArrayList<Float> y_train_path = new ArrayList<Float> ();
-            for (int k = 0, p = path.steps.size() - 1; k < p; k++)
+            float[] X_train_step = new float[maxTiers * NUM_DIMENSIONS];
+            float[] y_train_step = new float[maxTiers * NUM_DIMENSIONS];
+            templates.copy(X_train_step, 0, xterminalCausation.hierarchy, xterminalCausation.id);
+            templates.copy(y_train_step, 0, yterminalCausation.hierarchy, yterminalCausation.id);
+            chunk.add(X_train_sequence, X_train_step);
+            chunk.add(y_train_sequence, y_train_step);
+            if (contexts)
             {
-               ArrayList<CausationTier> xstep              = path.steps.get(k);
-               ArrayList<CausationTier> ystep              = path.steps.get(k + 1);
-               Causation                xcausation         = xstep.get(0).causation;
-               TerminalCausation        xterminalCausation = (TerminalCausation)xcausation;
-               Causation                ycausation         = ystep.get(0).causation;
-               TerminalCausation        yterminalCausation = (TerminalCausation)ycausation;
-               if (VERBOSE)
-               {
-                  System.out.print("X: ");
-                  xterminalCausation.print();
-                  System.out.print("y: ");
-                  yterminalCausation.print();
-               }
-               for (int q = 0; q < NUM_DIMENSIONS; q++)
+               float[] X_signature_train_step = new float[NUM_DIMENSIONS];
+               float[] y_signature_train_step = new float[PredictionSignatureLength];
+               DatasetRows.copy(X_train_step, 0, X_signature_train_step, 0, NUM_DIMENSIONS);
+               for (int t = 1; t < maxTiers; t++)
                {
-                  if (xterminalCausation.features.contains(q))
-                  {
-                     X_train_path.add(1.0f);
-                  }
-                  else
+                  if (VERBOSE)
                   {
-                     X_train_path.add(0.0f);
+                     System.out.println("get tier context for X, terminal id=" + xterminalCausation.id + ", tier=" + (t - 1) + ", step=" + step);
                   }
+                  getTierContext(tiers, t - 1, X_train_step, t * NUM_DIMENSIONS);
                }
-               for (int q = 0; q < NUM_DIMENSIONS; q++)
+               updateContexts(tiers, xterminalCausation);
+               Arrays.fill(y_signature_train_step, -1.0f);
+               for (int q = 0, r = xterminalCausation.features.size(); q < r; q++)
                {
-                  if (yterminalCausation.features.contains(q))
-                  {
-                     y_train_path.add(1.0f);
-                  }
-                  else
+                  y_signature_train_step[xterminalCausation.features.get(q) % PredictionSignatureLength] = 1.0f;
+               }
+               for (int t = 1; t < maxTiers; t++)
+               {
+                  if (VERBOSE)
                   {
-                     y_train_path.add(0.0f);
+                     System.out.println("get tier context for y, terminal id=" + xterminalCausation.id + ", tier=" + (t - 1) + ", step=" + step);
                   }
+                  getTierContext(tiers, t - 1, y_train_step, t * NUM_DIMENSIONS);
+                  DatasetRows.subtract(y_train_step, t * NUM_DIMENSIONS, X_train_step, t * NUM_DIMENSIONS, NUM_DIMENSIONS);
                }
+               chunk.add(X_train, X_train_step);
+               chunk.add(y_train, y_train_step);
+               chunk.add(X_signature_train, X_signature_train_step);
+               chunk.add(y_signature_train, y_signature_train_step);
             }
-            X_train.add(X_train_path);
-            y_train.add(y_train_path);
-            int pathLength = X_train_path.size() / NUM_DIMENSIONS;
-            if (pathLength > maxPathLength)
-            {
-               maxPathLength = pathLength;
-            }
-            if (VERBOSE)
-            {
-               System.out.println("train path length=" + pathLength);
-            }
+            step++;
          }
+         chunk.end(X_train_sequence);
+         chunk.end(y_train_sequence);
+         if (VERBOSE)
+         {
+            System.out.println("train path length=" + step);
+         }
+         return(chunk);
       }
-      if (VERBOSE)
-      {
-         System.out.println("testing dataset:");
-      }
-      ArrayList < ArrayList < Float >> X_test = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Float >> y_test = new ArrayList < ArrayList < Float >> ();
-      ArrayList < ArrayList < Integer >> y_test_predictable = new ArrayList < ArrayList < Integer >> ();
-      for (int i = (int)((float)NUM_CAUSATION_PATHS * RNN_DATASET_TRAIN_FRACTION); i < NUM_CAUSATION_PATHS; i++)
+
+
+      // Generate test path by interleaving the hierarchy paths at index.
+      // A null chunk only makes the random draws.
+      // Returns path length.
+      int testPath(int i, PathDraws random, DatasetWriter.Chunk chunk)
       {
          if (VERBOSE)
          {
             System.out.println("path=" + i);
          }
-         ArrayList<Integer> pathIdxs = new ArrayList<Integer>();
+         if (chunk != null)
+         {
+            chunk.addIndex(y_test_path_begin, X_test, 0);
+         }
+         int[] limits = new int[NUM_CAUSATION_HIERARCHIES];
          for (int j = 0; j < NUM_CAUSATION_HIERARCHIES; j++)
          {
-            pathIdxs.add(0);
+            limits[j] = causationPaths.get(j).get(i).steps.size() - 1;
          }
-         ArrayList<Float>   X_test_path        = new ArrayList<Float> ();
-         ArrayList<Float>   y_test_path        = new ArrayList<Float> ();
-         ArrayList<Integer> y_predictable_path = new ArrayList<Integer>();
-         int                step = 0;
+         PathInterleaver interleaver = new PathInterleaver(limits);
+         int             step        = 0;
          while (true)
          {
-            ArrayList<Integer> available = new ArrayList<Integer>();
-            for (int j = 0; j < NUM_CAUSATION_HIERARCHIES; j++)
-            {
-               if (pathIdxs.get(j) < causationPaths.get(j).get(i).steps.size() - 1)
-               {
-                  available.add(j);
-               }
-            }
-            if (available.size() == 0)
+            int h = interleaver.next(random);
+            if (h == -1)
             {
                break;
             }
-            int           h    = available.get(random.nextInt(available.size()));
             CausationPath path = causationPaths.get(h).get(i);
-            int           k    = pathIdxs.get(h);
+            int           k    = interleaver.cursors[h];
             if (VERBOSE)
             {
                System.out.println("destination step=" + step + ", source path: hierarchy=" + h + ", step=" + k);
@@ -2768,7 +3228,6 @@ public class Mandala
                int max = MAX_INTERSTITIAL_TERMINAL_SEQUENCE / NUM_CAUSATION_HIERARCHIES;
                for (int n = 0; xid != xcausation.id && n < max; n++)
                {
-                  TerminalCausation xrandomCausation = new TerminalCausation(NUM_CAUSATION_HIERARCHIES, xid);
                   if (NUM_INTERSTITIAL_TERMINALS == 0)
                   {
                      yid = random.nextInt(NUM_TERMINALS);
@@ -2785,65 +3244,52 @@ public class Mandala
                         yid += (NUM_TERMINALS - 1);
                      }
                   }
-                  TerminalCausation yrandomCausation = new TerminalCausation(NUM_CAUSATION_HIERARCHIES, yid);
-                  if (VERBOSE)
-                  {
-                     System.out.print("X: *");
-                     xrandomCausation.print();
-                     System.out.print("y: *");
-                     yrandomCausation.print();
-                  }
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
+                  if (chunk != null)
                   {
-                     if (xrandomCausation.features.contains(q))
-                     {
-                        X_test_path.add(1.0f);
-                     }
-                     else
+                     if (VERBOSE)
                      {
-                        X_test_path.add(0.0f);
+                        TerminalCausation xrandomCausation = new TerminalCausation(NUM_CAUSATION_HIERARCHIES, xid);
+                        TerminalCausation yrandomCausation = new TerminalCausation(NUM_CAUSATION_HIERARCHIES, yid);
+                        System.out.print("X: *");
+                        xrandomCausation.print();
+                        System.out.print("y: *");
+                        yrandomCausation.print();
                      }
-                  }
-                  for (int q = 0; q < NUM_DIMENSIONS; q++)
-                  {
-                     y_test_path.add(0.0f);
+                     float[] X_test_step = new float[maxTiers * NUM_DIMENSIONS];
+                     float[] y_test_step = new float[maxTiers * NUM_DIMENSIONS];
+                     templates.copy(X_test_step, 0, NUM_CAUSATION_HIERARCHIES, xid);
+                     chunk.add(X_test, X_test_step);
+                     chunk.add(y_test, y_test_step);
+                     chunk.addIndex(y_test_interstitial, X_test, step);
+                     chunk.add(X_test_sequence, X_test_step);
+                     chunk.add(y_test_sequence, y_test_step);
                   }
                   step++;
                   xid = yid;
                }
             }
-            if (VERBOSE)
-            {
-               System.out.print("X: ");
-               xterminalCausation.print();
-               System.out.print("y: ");
-               yterminalCausation.print();
-            }
-            for (int q = 0; q < NUM_DIMENSIONS; q++)
-            {
-               if (xterminalCausation.features.contains(q))
-               {
-                  X_test_path.add(1.0f);
-               }
-               else
-               {
-                  X_test_path.add(0.0f);
-               }
-            }
-            for (int q = 0; q < NUM_DIMENSIONS; q++)
+            if (chunk != null)
             {
-               if (yterminalCausation.features.contains(q))
-               {
-                  y_test_path.add(1.0f);
-               }
-               else
+               if (VERBOSE)
                {
-                  y_test_path.add(0.0f);
+                  System.out.print("X: ");
+                  xterminalCausation.print();
+                  System.out.print("y: ");
+                  yterminalCausation.print();
                }
+               float[] X_test_step = new float[maxTiers * NUM_DIMENSIONS];
+               float[] y_test_step = new float[maxTiers * NUM_DIMENSIONS];
+               templates.copy(X_test_step, 0, xterminalCausation.hierarchy, xterminalCausation.id);
+               templates.copy(y_test_step, 0, yterminalCausation.hierarchy, yterminalCausation.id);
+               chunk.add(X_test, X_test_step);
+               chunk.add(y_test, y_test_step);
+               chunk.addIndex(y_test_predictable, X_test, step);
+               chunk.add(X_test_sequence, X_test_step);
+               chunk.add(y_test_sequence, y_test_step);
+               chunk.add(y_test_predictable_sequence, step);
             }
-            y_predictable_path.add(step);
             step++;
-            pathIdxs.set(h, pathIdxs.get(h) + 1);
+            interleaver.advance(h);
             k++;
             if (VERBOSE)
             {
@@ -2864,197 +3310,259 @@ public class Mandala
                ycausation         = null;
                yterminalCausation = null;
             }
-            if (VERBOSE)
-            {
-               System.out.print("X: ");
-               xterminalCausation.print();
-               System.out.print("y: ");
-               if (yterminalCausation != null)
-               {
-                  yterminalCausation.print();
-               }
-               else
-               {
-                  System.out.println("null");
-               }
-            }
-            for (int q = 0; q < NUM_DIMENSIONS; q++)
-            {
-               if (xterminalCausation.features.contains(q))
-               {
-                  X_test_path.add(1.0f);
-               }
-               else
-               {
-                  X_test_path.add(0.0f);
-               }
-            }
-            for (int q = 0; q < NUM_DIMENSIONS; q++)
+            if (chunk != null)
             {
-               if (yterminalCausation != null)
+               if (VERBOSE)
                {
-                  if (yterminalCausation.features.contains(q))
+                  System.out.print("X: ");
+                  xterminalCausation.print();
+                  System.out.print("y: ");
+                  if (yterminalCausation != null)
                   {
-                     y_test_path.add(1.0f);
+                     yterminalCausation.print();
                   }
                   else
                   {
-                     y_test_path.add(0.0f);
+                     System.out.println("null");
                   }
                }
-               else
+               float[] X_test_step = new float[maxTiers * NUM_DIMENSIONS];
+               float[] y_test_step = new float[maxTiers * NUM_DIMENSIONS];
+               templates.copy(X_test_step, 0, xterminalCausation.hierarchy, xterminalCausation.id);
+               if (yterminalCausation != null)
                {
-                  y_test_path.add(0.0f);
+                  templates.copy(y_test_step, 0, yterminalCausation.hierarchy, yterminalCausation.id);
                }
+               chunk.add(X_test, X_test_step);
+               chunk.add(y_test, y_test_step);
+               chunk.add(X_test_sequence, X_test_step);
+               chunk.add(y_test_sequence, y_test_step);
             }
             step++;
             if (k < path.steps.size() - 1)
             {
-               pathIdxs.set(h, pathIdxs.get(h) + 1);
+               interleaver.advance(h);
             }
          }
-         X_test.add(X_test_path);
-         y_test.add(y_test_path);
-         y_test_predictable.add(y_predictable_path);
-         int pathLength = X_test_path.size() / NUM_DIMENSIONS;
-         if (pathLength > maxPathLength)
+         if (chunk != null)
          {
-            maxPathLength = pathLength;
+            chunk.end(X_test_sequence);
+            chunk.end(y_test_sequence);
+            chunk.end(y_test_predictable_sequence);
          }
          if (VERBOSE)
          {
-            System.out.println("testing path length=" + pathLength);
+            System.out.println("testing path length=" + step);
          }
+         return(step);
       }
+   };
 
-      try
+
+   // Get tier feature context into row segment.
+   static void getTierContext(ArrayList<ContextFeatures> contextTiers, int tier, float[] row, int offset)
+   {
+      ContextFeatures contextFeatures = contextTiers.get(tier);
+      if (contextFeatures != null)
       {
-         System.setProperty("line.separator", "\n");
-         FileWriter  fileWriter  = new FileWriter(filename);
-         PrintWriter printWriter = new PrintWriter(fileWriter);
-         printWriter.println("X_train_shape = [ " + X_train.size() + ", " + maxPathLength + ", " + NUM_DIMENSIONS + " ]");
-         printWriter.println("X_train = [");
-         for (int i = 0, j = X_train.size(); i < j; i++)
+         if (VERBOSE)
          {
-            ArrayList<Float> X_train_path = X_train.get(i);
-            for (int k = 0, p = X_train_path.size(), q = (maxPathLength * NUM_DIMENSIONS); k < q; k++)
-            {
-               if (k < p)
-               {
-                  printWriter.print(X_train_path.get(k) + "");
-               }
-               else
-               {
-                  printWriter.print("0.0");
-               }
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
-            }
-            printWriter.println();
+            contextFeatures.print();
          }
-         printWriter.println("]");
-         printWriter.println("y_train_shape = [ " + y_train.size() + ", " + maxPathLength + ", " + NUM_DIMENSIONS + " ]");
-         printWriter.println("y_train = [");
-         for (int i = 0, j = y_train.size(); i < j; i++)
+         DatasetRows.scatter(row, offset, NUM_DIMENSIONS, contextFeatures.features, contextFeatures.value);
+      }
+      else
+      {
+         DatasetRows.clear(row, offset, NUM_DIMENSIONS);
+      }
+   }
+
+
+   // Update feature contexts.
+   static void updateContexts(ArrayList<ContextFeatures> contextTiers, TerminalCausation causation)
+   {
+      // Expire contexts.
+      for (int i = 0, j = contextTiers.size(); i < j; i++)
+      {
+         ContextFeatures contextFeatures = contextTiers.get(i);
+         if (contextFeatures != null)
          {
-            ArrayList<Float> y_train_path = y_train.get(i);
-            for (int k = 0, p = y_train_path.size(), q = (maxPathLength * NUM_DIMENSIONS); k < q; k++)
+            if (!contextFeatures.expire())
             {
-               if (k < p)
-               {
-                  printWriter.print(y_train_path.get(k) + "");
-               }
-               else
-               {
-                  printWriter.print("0.0");
-               }
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
+               contextTiers.set(i, null);
             }
-            printWriter.println();
          }
-         printWriter.println("]");
-         printWriter.println("X_test_shape = [ " + X_test.size() + ", " + maxPathLength + ", " + NUM_DIMENSIONS + " ]");
-         printWriter.println("X_test = [");
-         for (int i = 0, j = X_test.size(); i < j; i++)
+      }
+
+      // Add contexts.
+      ContextFeatures contextFeatures1 = new ContextFeatures(causation, 0);
+      for (int i = 0, j = contextTiers.size(); i < j && i <= MAX_CONTEXT_TIER; i++)
+      {
+         ContextFeatures contextFeatures2 = contextTiers.get(i);
+         if (contextFeatures2 != null)
+         {
+            contextTiers.set(i, null);
+            contextFeatures1 = new ContextFeatures(contextFeatures1, contextFeatures2, i + 1);
+         }
+         else
          {
-            ArrayList<Float> X_test_path = X_test.get(i);
-            for (int k = 0, p = X_test_path.size(), q = (maxPathLength * NUM_DIMENSIONS); k < q; k++)
-            {
-               if (k < p)
-               {
-                  printWriter.print(X_test_path.get(k) + "");
-               }
-               else
-               {
-                  printWriter.print("0.0");
-               }
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
-            }
-            printWriter.println();
+            contextTiers.set(i, contextFeatures1);
+            break;
+         }
+      }
+      ContextMonitor.update(contextTiers);
+   }
+
+
+   // Save context tiers snapshot.
+   // Position identifies where the replay stands, e.g. path and step indexes.
+   public static void saveContextTiers(DataOutputStream writer, ArrayList<ContextFeatures> contextTiers, int[] position) throws IOException
+   {
+      Utility.saveInt(writer, CONTEXT_TIERS_SNAPSHOT_ID);
+      Utility.saveInt(writer, NUM_DIMENSIONS);
+      Utility.saveInt(writer, position.length);
+      for (int i : position)
+      {
+         Utility.saveInt(writer, i);
+      }
+      Utility.saveInt(writer, contextTiers.size());
+      for (ContextFeatures contextFeatures : contextTiers)
+      {
+         if (contextFeatures == null)
+         {
+            Utility.saveInt(writer, 0);
+         }
+         else
+         {
+            Utility.saveInt(writer, 1);
+            contextFeatures.save(writer);
+         }
+      }
+   }
+
+
+   // Load context tiers snapshot into given tiers, replacing their contents.
+   // Returns saved position.
+   public static int[] loadContextTiers(DataInputStream reader, ArrayList<ContextFeatures> contextTiers) throws IOException
+   {
+      if (Utility.loadInt(reader) != CONTEXT_TIERS_SNAPSHOT_ID)
+      {
+         throw new IOException("not a context tiers snapshot");
+      }
+      if (Utility.loadInt(reader) != NUM_DIMENSIONS)
+      {
+         throw new IOException("snapshot dimensions do not match NUM_DIMENSIONS=" + NUM_DIMENSIONS);
+      }
+      int[] position = new int[Utility.loadInt(reader)];
+      for (int i = 0; i < position.length; i++)
+      {
+         position[i] = Utility.loadInt(reader);
+      }
+      ArrayList<ContextFeatures> tiers = new ArrayList<ContextFeatures>();
+      for (int i = 0, j = Utility.loadInt(reader); i < j; i++)
+      {
+         if (Utility.loadInt(reader) == 0)
+         {
+            tiers.add(null);
+         }
+         else
+         {
+            tiers.add(ContextFeatures.load(reader));
          }
-         printWriter.println("]");
-         printWriter.println("y_test_shape = [ " + y_test.size() + ", " + maxPathLength + ", " + NUM_DIMENSIONS + " ]");
-         printWriter.println("y_test = [");
-         for (int i = 0, j = y_test.size(); i < j; i++)
+      }
+      contextTiers.clear();
+      contextTiers.addAll(tiers);
+      return(position);
+   }
+
+
+   // Save export checkpoint: parameters key, paths written, and the dataset writers.
+   // Written to a temporary file and renamed, so an interrupted save leaves the
+   // previous checkpoint.
+   static void saveCheckpoint(String key, int paths, DatasetWriter NNwriter, DatasetWriter RNNwriter) throws IOException
+   {
+      File             file   = new File(CHECKPOINT_FILENAME);
+      File             temp   = new File(CHECKPOINT_FILENAME + ".tmp");
+      DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+      try
+      {
+         Utility.saveInt(writer, CHECKPOINT_ID);
+         Utility.saveString(writer, key);
+         Utility.saveInt(writer, paths);
+         for (DatasetWriter datasetWriter : new DatasetWriter[] { NNwriter, RNNwriter })
          {
-            ArrayList<Float> y_test_path = y_test.get(i);
-            for (int k = 0, p = y_test_path.size(), q = (maxPathLength * NUM_DIMENSIONS); k < q; k++)
+            if (datasetWriter != null)
             {
-               if (k < p)
-               {
-                  printWriter.print(y_test_path.get(k) + "");
-               }
-               else
-               {
-                  printWriter.print("0.0");
-               }
-               if ((i != j - 1) || (k != q - 1))
-               {
-                  printWriter.print(",");
-               }
+               Utility.saveInt(writer, 1);
+               datasetWriter.checkpoint(writer);
+            }
+            else
+            {
+               Utility.saveInt(writer, 0);
             }
-            printWriter.println();
          }
-         printWriter.println("]");
-         printWriter.println("y_test_predictable = [");
-         for (int i = 0, j = y_test_predictable.size(); i < j; i++)
+      }
+      finally
+      {
+         writer.close();
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (VERBOSE)
+      {
+         System.out.println("checkpoint: file=" + CHECKPOINT_FILENAME + ", paths=" + paths);
+      }
+   }
+
+
+   // Load export checkpoint, restoring the dataset writers.
+   // Returns paths written.
+   static int loadCheckpoint(String key, DatasetWriter NNwriter, DatasetWriter RNNwriter) throws IOException
+   {
+      DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(CHECKPOINT_FILENAME)));
+
+      try
+      {
+         if (Utility.loadInt(reader) != CHECKPOINT_ID)
+         {
+            throw new IOException("not a dataset export checkpoint");
+         }
+         if (!Utility.loadString(reader).equals(key))
+         {
+            throw new IOException("checkpoint parameters differ from this run");
+         }
+         int paths = Utility.loadInt(reader);
+         for (DatasetWriter datasetWriter : new DatasetWriter[] { NNwriter, RNNwriter })
          {
-            ArrayList<Integer> y_predictable_path = y_test_predictable.get(i);
-            printWriter.print("[");
-            for (int k = 0, q = y_predictable_path.size(); k < q; k++)
+            if ((Utility.loadInt(reader) == 1) != (datasetWriter != null))
             {
-               printWriter.print(y_predictable_path.get(k) + "");
-               if (k != q - 1)
-               {
-                  printWriter.print(",");
-               }
+               throw new IOException("checkpoint datasets differ from this run");
             }
-            printWriter.print("]");
-            if (i < j - 1)
+            if (datasetWriter != null)
             {
-               printWriter.print(",");
+               datasetWriter.resume(reader);
             }
-            printWriter.println();
          }
-         printWriter.println("]");
-         printWriter.close();
+         if (VERBOSE)
+         {
+            System.out.println("resume: file=" + CHECKPOINT_FILENAME + ", paths=" + paths);
+         }
+         return(paths);
       }
-      catch (IOException e)
+      finally
       {
-         System.err.println("Cannot write NN dataset to file " + filename);
-         System.exit(1);
+         reader.close();
       }
    }
 
 
+   // Export RNN dataset.
+   public static void exportRNNdataset(String filename, float trainFraction, int randomSeed)
+   {
+      exportDatasets(null, filename, trainFraction, randomSeed);
+   }
+
+
    // Learn causations with NN.
    public static LearningResults learnCausationsNN(String filename)
    {
@@ -9,7 +9,6 @@ import java.io.FileReader;
 import java.util.Collections;
 import java.util.List;
 import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
-import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.inputs.InputType;
@@ -18,6 +17,7 @@ import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.nd4j.evaluation.classification.Evaluation;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
@@ -476,7 +476,7 @@ public class MandalaCoderNN
       }
       List<DataSet>                list     = trainDataset.asList();
       ListDataSetIterator<DataSet> iterator = new ListDataSetIterator<DataSet>(list);
-      Evaluation eval = causationModel.evaluate(iterator);
+      Evaluation eval = causationModel.doEvaluation(iterator, new Evaluation())[0];
       System.out.println(eval.stats());
    }
 
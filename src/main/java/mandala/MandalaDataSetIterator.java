@@ -0,0 +1,236 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Mandala dataset iterator.
+// Minibatches of NN dataset X/y rows are generated in-process from the causation
+// paths, in the order they are exported, without dataset files. Train rows carry
+// tier contexts. Test rows interleave the hierarchy paths with interstitial noise
+// drawn from the random seed, or from a fresh seed each epoch.
+// Minibatches are prefetched on a background thread by an AsyncDataSetIterator,
+// which MultiLayerNetwork.fit also wraps around iterators supporting it.
+
+package mandala;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import org.nd4j.linalg.dataset.AsyncDataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class MandalaDataSetIterator implements DataSetIterator
+{
+   private static final long serialVersionUID = 1L;
+
+   // Minibatch size.
+   public int batchSize;
+
+   // Test rows, otherwise train rows.
+   public boolean test;
+
+   // Random seed of interstitial noise, and fresh noise each epoch.
+   public int     randomSeed;
+   public boolean freshNoise;
+
+   // Epoch.
+   public int epoch;
+
+   private Mandala.DatasetGenerator generator;
+   private DatasetWriter.Section    X;
+   private DatasetWriter.Section    y;
+   private int                      width;
+   private int                      trainPaths;
+   private int                      path;
+   private int                      numPaths;
+   private SplittableRandom         random;
+   private ArrayDeque<float[]>      Xrows;
+   private ArrayDeque<float[]>      yrows;
+   private DataSetPreProcessor      preProcessor;
+
+   // Constructor: causation paths must be generated.
+   public MandalaDataSetIterator(int batchSize, float trainFraction, boolean test, int randomSeed, boolean freshNoise)
+   {
+      if (Mandala.causationPaths == null)
+      {
+         throw new IllegalStateException("Causation paths not generated");
+      }
+      this.batchSize  = batchSize;
+      this.test       = test;
+      this.randomSeed = randomSeed;
+      this.freshNoise = freshNoise;
+      int maxTiers = Mandala.getMaxTiers();
+      width     = maxTiers * Mandala.NUM_DIMENSIONS;
+      generator = new Mandala.DatasetGenerator(maxTiers, true, new TerminalTemplates());
+      try
+      {
+         DatasetWriter writer = new DatasetWriter();
+         if (test)
+         {
+            generator.X_test = X = writer.addRows("X_test", width);
+            generator.y_test = y = writer.addRows("y_test", width);
+         }
+         else
+         {
+            generator.X_train = X = writer.addRows("X_train", width);
+            generator.y_train = y = writer.addRows("y_train", width);
+         }
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException("Cannot create dataset sections: " + e.getMessage());
+      }
+      trainPaths = (int)((float)Mandala.NUM_CAUSATION_PATHS * trainFraction);
+      if (test)
+      {
+         numPaths = Mandala.NUM_CAUSATION_PATHS - trainPaths;
+      }
+      else
+      {
+         numPaths = Mandala.NUM_CAUSATION_HIERARCHIES * trainPaths;
+      }
+      Xrows = new ArrayDeque<float[]>();
+      yrows = new ArrayDeque<float[]>();
+      epoch = -1;
+      reset();
+   }
+
+
+   // Iterator that prefetches minibatches on a background thread.
+   public DataSetIterator prefetching(int queueSize)
+   {
+      return(new AsyncDataSetIterator(this, queueSize));
+   }
+
+
+   @Override
+   public boolean hasNext()
+   {
+      return(fill());
+   }
+
+
+   @Override
+   public DataSet next()
+   {
+      return(next(batchSize));
+   }
+
+
+   @Override
+   public DataSet next(int num)
+   {
+      if (!fill())
+      {
+         throw new NoSuchElementException();
+      }
+      ArrayList<float[]> features = new ArrayList<float[]>();
+      ArrayList<float[]> labels   = new ArrayList<float[]>();
+      while ((features.size() < num) && fill())
+      {
+         features.add(Xrows.remove());
+         labels.add(yrows.remove());
+      }
+      DataSet dataset = new DataSet(Nd4j.create(features.toArray(new float[features.size()][])),
+                                    Nd4j.create(labels.toArray(new float[labels.size()][])));
+      if (preProcessor != null)
+      {
+         preProcessor.preProcess(dataset);
+      }
+      return(dataset);
+   }
+
+
+   @Override
+   public int inputColumns()
+   {
+      return(width);
+   }
+
+
+   @Override
+   public int totalOutcomes()
+   {
+      return(width);
+   }
+
+
+   @Override
+   public boolean resetSupported()
+   {
+      return(true);
+   }
+
+
+   @Override
+   public boolean asyncSupported()
+   {
+      return(true);
+   }
+
+
+   // Begin next epoch.
+   @Override
+   public void reset()
+   {
+      epoch++;
+      path = 0;
+      Xrows.clear();
+      yrows.clear();
+      random = new SplittableRandom(freshNoise ? (long)randomSeed + epoch : randomSeed);
+   }
+
+
+   @Override
+   public int batch()
+   {
+      return(batchSize);
+   }
+
+
+   @Override
+   public void setPreProcessor(DataSetPreProcessor preProcessor)
+   {
+      this.preProcessor = preProcessor;
+   }
+
+
+   @Override
+   public DataSetPreProcessor getPreProcessor()
+   {
+      return(preProcessor);
+   }
+
+
+   @Override
+   public List<String> getLabels()
+   {
+      return(null);
+   }
+
+
+   // Generate paths until rows are available.
+   private boolean fill()
+   {
+      while (Xrows.isEmpty() && (path < numPaths))
+      {
+         DatasetWriter.Chunk chunk;
+         if (test)
+         {
+            chunk = new DatasetWriter.Chunk();
+            generator.testPath(trainPaths + path, new Mandala.PathDraws(random), chunk);
+         }
+         else
+         {
+            chunk = generator.trainPath(Mandala.causationPaths.get(path / trainPaths).get(path % trainPaths));
+         }
+         Xrows.addAll(chunk.getRows(X));
+         yrows.addAll(chunk.getRows(y));
+         path++;
+      }
+      return(!Xrows.isEmpty());
+   }
+}
@@ -0,0 +1,346 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Uncompressed NumPy .npz writer.
+// Each array is stored as a .npy entry of an uncompressed zip archive, with its
+// data aligned in the file so that it can be memory-mapped from Python.
+// Sizes and offsets beyond 4 GB are written in ZIP64 extra fields and records.
+
+package mandala;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+public class NpzWriter
+{
+   // Array data types.
+   public static final String FLOAT32 = "<f4";
+   public static final String INT32   = "<i4";
+   public static final String UINT8   = "|u1";
+
+   // Array data file alignment.
+   public static final int ALIGNMENT = 64;
+
+   // Write buffer size.
+   public static int BUFFER_SIZE = 1 << 16;
+
+   // Sizes and offsets beyond this limit are written as ZIP64.
+   public static long ZIP64_LIMIT = 0xffffffffL;
+
+   // Zip signatures and extra field identifiers.
+   private static final int LOCAL_HEADER_SIGNATURE           = 0x04034b50;
+   private static final int CENTRAL_HEADER_SIGNATURE         = 0x02014b50;
+   private static final int END_OF_DIRECTORY_SIGNATURE       = 0x06054b50;
+   private static final int ZIP64_END_OF_DIRECTORY_SIGNATURE = 0x06064b50;
+   private static final int ZIP64_LOCATOR_SIGNATURE          = 0x07064b50;
+   private static final int LOCAL_HEADER_SIZE                = 30;
+   private static final int ZIP64_EXTRA_ID                   = 0x0001;
+   private static final int ALIGNMENT_EXTRA_ID               = 0xd935;
+   private static final int ZIP_VERSION   = 20;
+   private static final int ZIP64_VERSION = 45;
+   private static final int DOS_DATE      = (1 << 5) | 1;
+
+   // Zero bytes, duplicated to put zeros in bulk.
+   private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1 << 12);
+
+   // Entry.
+   private static class Entry
+   {
+      byte[] name;
+      long   headerOffset;
+      long   dataOffset;
+      long   size;
+      long   crc;
+   };
+
+   public String                filename;
+   private FileChannel          channel;
+   private ByteBuffer           buffer;
+   private long                 position;
+   private CRC32                crc;
+   private ArrayList<Entry>     entries;
+   private Entry                entry;
+
+   // Constructor.
+   public NpzWriter(String filename) throws IOException
+   {
+      this.filename = filename;
+      channel       = new FileOutputStream(filename).getChannel();
+      buffer        = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      position      = 0;
+      crc           = new CRC32();
+      entries       = new ArrayList<Entry>();
+      entry         = null;
+   }
+
+
+   // Begin array of given data type and shape.
+   // Returns file offset of array data.
+   public long beginArray(String name, String type, long[] shape) throws IOException
+   {
+      if (entry != null)
+      {
+         throw new IOException("Array not ended in " + filename);
+      }
+      String header = "{'descr': '" + type + "', 'fortran_order': False, 'shape': (";
+      long   length = (type.equals(UINT8) ? 1 : 4);
+      for (int i = 0; i < shape.length; i++)
+      {
+         header += shape[i] + (shape.length == 1 ? "," : (i < shape.length - 1 ? ", " : ""));
+         length *= shape[i];
+      }
+      header += "), }";
+      int headerLength = 10 + header.length() + 1;
+      while ((headerLength % ALIGNMENT) != 0)
+      {
+         header += " ";
+         headerLength++;
+      }
+      header += "\n";
+
+      entry = new Entry();
+      entry.name         = (name + ".npy").getBytes(StandardCharsets.UTF_8);
+      entry.headerOffset = position + buffer.position();
+      entry.size         = headerLength + length;
+      boolean zip64      = (entry.size > ZIP64_LIMIT);
+      int     extra      = (zip64 ? 20 : 0);
+      long    dataOffset = entry.headerOffset + LOCAL_HEADER_SIZE + entry.name.length + extra + headerLength;
+      int  padding    = (int)((ALIGNMENT - (dataOffset % ALIGNMENT)) % ALIGNMENT);
+      if ((padding > 0) && (padding < 4))
+      {
+         padding += ALIGNMENT;
+      }
+      dataOffset += padding;
+
+      // Local file header: checksum is patched when the array ends.
+      reserve(LOCAL_HEADER_SIZE + entry.name.length + extra + padding);
+      buffer.putInt(LOCAL_HEADER_SIGNATURE);
+      buffer.putShort((short)(zip64 ? ZIP64_VERSION : ZIP_VERSION));
+      buffer.putShort((short)0);
+      buffer.putShort((short)0);
+      buffer.putShort((short)0);
+      buffer.putShort((short)DOS_DATE);
+      buffer.putInt(0);
+      buffer.putInt(zip64 ? -1 : (int)entry.size);
+      buffer.putInt(zip64 ? -1 : (int)entry.size);
+      buffer.putShort((short)entry.name.length);
+      buffer.putShort((short)(extra + padding));
+      buffer.put(entry.name);
+      if (zip64)
+      {
+         buffer.putShort((short)ZIP64_EXTRA_ID);
+         buffer.putShort((short)16);
+         buffer.putLong(entry.size);
+         buffer.putLong(entry.size);
+      }
+      if (padding > 0)
+      {
+         buffer.putShort((short)ALIGNMENT_EXTRA_ID);
+         buffer.putShort((short)(padding - 4));
+         for (int i = 4; i < padding; i++)
+         {
+            buffer.put((byte)0);
+         }
+      }
+      flush(false);
+      entry.dataOffset = position;
+
+      // Array header.
+      crc.reset();
+      reserve(headerLength);
+      buffer.put((byte)0x93);
+      buffer.put("NUMPY".getBytes(StandardCharsets.US_ASCII));
+      buffer.put((byte)1);
+      buffer.put((byte)0);
+      buffer.putShort((short)(headerLength - 10));
+      buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+      return(dataOffset);
+   }
+
+
+   public void putFloat(float value) throws IOException
+   {
+      reserve(4);
+      buffer.putFloat(value);
+   }
+
+
+   public void putInt(int value) throws IOException
+   {
+      reserve(4);
+      buffer.putInt(value);
+   }
+
+
+   // Put little-endian bytes.
+   public void put(ByteBuffer src) throws IOException
+   {
+      while (src.hasRemaining())
+      {
+         if (!buffer.hasRemaining())
+         {
+            flush(true);
+         }
+         int        n     = Math.min(src.remaining(), buffer.remaining());
+         ByteBuffer chunk = src.duplicate();
+         chunk.limit(chunk.position() + n);
+         buffer.put(chunk);
+         src.position(src.position() + n);
+      }
+   }
+
+
+   // Put zero bytes.
+   public void putZeros(long count) throws IOException
+   {
+      while (count > 0)
+      {
+         if (!buffer.hasRemaining())
+         {
+            flush(true);
+         }
+         ByteBuffer zeros = ZEROS.duplicate();
+         int        n     = (int)Math.min(count, Math.min(buffer.remaining(), zeros.capacity()));
+         zeros.limit(n);
+         buffer.put(zeros);
+         count -= n;
+      }
+   }
+
+
+   // End array.
+   public void endArray() throws IOException
+   {
+      flush(true);
+      if ((position - entry.dataOffset) != entry.size)
+      {
+         throw new IOException("Array size mismatch in " + filename);
+      }
+      entry.crc = crc.getValue();
+      ByteBuffer checksum = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      checksum.putInt((int)entry.crc);
+      checksum.flip();
+      while (checksum.hasRemaining())
+      {
+         channel.write(checksum, entry.headerOffset + 14 + checksum.position());
+      }
+      entries.add(entry);
+      entry = null;
+   }
+
+
+   // Write central directory and close.
+   public void close() throws IOException
+   {
+      long directoryOffset = position + buffer.position();
+
+      for (Entry e : entries)
+      {
+         // ZIP64 extra field holds the sizes and header offset beyond the limit.
+         boolean zip64Size   = (e.size > ZIP64_LIMIT);
+         boolean zip64Offset = (e.headerOffset > ZIP64_LIMIT);
+         int     extra       = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+         if (extra > 0)
+         {
+            extra += 4;
+         }
+         reserve(46 + e.name.length + extra);
+         buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+         buffer.putShort((short)(extra > 0 ? ZIP64_VERSION : ZIP_VERSION));
+         buffer.putShort((short)(extra > 0 ? ZIP64_VERSION : ZIP_VERSION));
+         buffer.putShort((short)0);
+         buffer.putShort((short)0);
+         buffer.putShort((short)0);
+         buffer.putShort((short)DOS_DATE);
+         buffer.putInt((int)e.crc);
+         buffer.putInt(zip64Size ? -1 : (int)e.size);
+         buffer.putInt(zip64Size ? -1 : (int)e.size);
+         buffer.putShort((short)e.name.length);
+         buffer.putShort((short)extra);
+         buffer.putShort((short)0);
+         buffer.putShort((short)0);
+         buffer.putShort((short)0);
+         buffer.putInt(0);
+         buffer.putInt(zip64Offset ? -1 : (int)e.headerOffset);
+         buffer.put(e.name);
+         if (extra > 0)
+         {
+            buffer.putShort((short)ZIP64_EXTRA_ID);
+            buffer.putShort((short)(extra - 4));
+            if (zip64Size)
+            {
+               buffer.putLong(e.size);
+               buffer.putLong(e.size);
+            }
+            if (zip64Offset)
+            {
+               buffer.putLong(e.headerOffset);
+            }
+         }
+      }
+      long    directorySize = position + buffer.position() - directoryOffset;
+      boolean zip64         = ((directoryOffset > ZIP64_LIMIT) || (directorySize > ZIP64_LIMIT) || (entries.size() >= 0xffff));
+      if (zip64)
+      {
+         // ZIP64 end of central directory record, and its locator.
+         long recordOffset = position + buffer.position();
+         reserve(76);
+         buffer.putInt(ZIP64_END_OF_DIRECTORY_SIGNATURE);
+         buffer.putLong(44);
+         buffer.putShort((short)ZIP64_VERSION);
+         buffer.putShort((short)ZIP64_VERSION);
+         buffer.putInt(0);
+         buffer.putInt(0);
+         buffer.putLong(entries.size());
+         buffer.putLong(entries.size());
+         buffer.putLong(directorySize);
+         buffer.putLong(directoryOffset);
+         buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+         buffer.putInt(0);
+         buffer.putLong(recordOffset);
+         buffer.putInt(1);
+      }
+      reserve(22);
+      buffer.putInt(END_OF_DIRECTORY_SIGNATURE);
+      buffer.putShort((short)0);
+      buffer.putShort((short)0);
+      buffer.putShort((short)(zip64 ? 0xffff : entries.size()));
+      buffer.putShort((short)(zip64 ? 0xffff : entries.size()));
+      buffer.putInt(zip64 ? -1 : (int)directorySize);
+      buffer.putInt(zip64 ? -1 : (int)directoryOffset);
+      buffer.putShort((short)0);
+      flush(false);
+      channel.close();
+   }
+
+
+   // Ensure buffer space.
+   private void reserve(int count) throws IOException
+   {
+      if (buffer.remaining() < count)
+      {
+         flush(entry != null);
+      }
+   }
+
+
+   // Flush buffer, updating array checksum.
+   private void flush(boolean checksum) throws IOException
+   {
+      buffer.flip();
+      if (checksum)
+      {
+         crc.update(buffer.duplicate());
+      }
+      while (buffer.hasRemaining())
+      {
+         position += channel.write(buffer);
+      }
+      buffer.clear();
+   }
+}
@@ -0,0 +1,60 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Terminal one-hot row templates.
+// Dense one-hot feature blocks of the hierarchy terminals and of the interstitial
+// terminals, encoded in the extra hierarchy, are built once by the dataset generator
+// owning them, so a terminal row segment is an array copy. Templates are built
+// before generation threads start and are read-only.
+
+package mandala;
+
+public class TerminalTemplates
+{
+   // Templates indexed by hierarchy and terminal id.
+   private final float[][][] templates;
+   private final int         dimensions;
+
+   // Constructor: build templates for current parameters.
+   public TerminalTemplates()
+   {
+      int hierarchies = Mandala.NUM_CAUSATION_HIERARCHIES + 1;
+      int terminals   = Mandala.NUM_TERMINALS + Mandala.NUM_INTERSTITIAL_TERMINALS;
+
+      templates  = new float[hierarchies][terminals][];
+      dimensions = Mandala.NUM_DIMENSIONS;
+      for (int i = 0; i < hierarchies; i++)
+      {
+         for (int j = 0; j < terminals; j++)
+         {
+            templates[i][j] = encode(i, j);
+         }
+      }
+   }
+
+
+   // Get template of terminal.
+   public float[] get(int hierarchy, int id)
+   {
+      if ((hierarchy < 0) || (hierarchy >= templates.length) || (id < 0) || (id >= templates[hierarchy].length))
+      {
+         throw new IllegalArgumentException("No template of terminal hierarchy=" + hierarchy + ", id=" + id);
+      }
+      return(templates[hierarchy][id]);
+   }
+
+
+   // Copy terminal template into row segment.
+   public void copy(float[] row, int offset, int hierarchy, int id)
+   {
+      DatasetRows.copy(get(hierarchy, id), 0, row, offset, dimensions);
+   }
+
+
+   private float[] encode(int hierarchy, int id)
+   {
+      float[] template = new float[dimensions];
+
+      DatasetRows.oneHot(template, 0, dimensions, Mandala.Causation.encodeFeatures(hierarchy, id));
+      return(template);
+   }
+}
@@ -0,0 +1,334 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// ASCII text writer on a file channel.
+// Numbers are formatted directly into a reusable byte buffer. Float text is
+// looked up in a byte table holding common values, such as 0.0, 1.0 and -1.0,
+// and filled on demand with Float.toString text, so output is identical to
+// string concatenation of the values.
+// Compressed text is written as gzip by a compression thread, which deflates
+// filled buffers while formatting continues in buffers recycled back to it.
+
+package mandala;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+public class TextChannelWriter
+{
+   // Buffer size.
+   public static int BUFFER_SIZE = 1 << 16;
+
+   // Float table size (power of 2).
+   public static final int FLOAT_TABLE_BITS = 10;
+
+   // Common float values.
+   public static final float[] COMMON_FLOATS = { 0.0f, 1.0f, -1.0f, -0.0f, 0.5f, -0.5f, 2.0f, -2.0f };
+
+   // Compression buffers in flight to the compression thread.
+   public static int COMPRESSION_BUFFERS = 4;
+
+   // Compression thread.
+   private static class Compressor extends Thread
+   {
+      // Filled buffer.
+      private static class Block
+      {
+         byte[] bytes;
+         int    count;
+
+         Block(byte[] bytes, int count)
+         {
+            this.bytes = bytes;
+            this.count = count;
+         }
+      };
+
+      private GZIPOutputStream             output;
+      private ArrayBlockingQueue<Block>    filled;
+      private ArrayBlockingQueue<byte[]>   free;
+      private volatile IOException         error;
+
+      public Compressor(String filename, final int level) throws IOException
+      {
+         super("TextChannelWriter");
+         setDaemon(true);
+         output = new GZIPOutputStream(new FileOutputStream(filename), BUFFER_SIZE)
+         {
+            {
+               def.setLevel(level);
+            }
+         };
+         filled = new ArrayBlockingQueue<Block>(COMPRESSION_BUFFERS + 1);
+         free   = new ArrayBlockingQueue<byte[]>(COMPRESSION_BUFFERS);
+         for (int i = 0; i < COMPRESSION_BUFFERS; i++)
+         {
+            free.add(new byte[BUFFER_SIZE]);
+         }
+         error = null;
+      }
+
+
+      // Compress filled buffers, recycling them.
+      @Override
+      public void run()
+      {
+         try
+         {
+            while (true)
+            {
+               Block block = filled.take();
+               if (block.bytes == null)
+               {
+                  break;
+               }
+               try
+               {
+                  if (error == null)
+                  {
+                     output.write(block.bytes, 0, block.count);
+                  }
+               }
+               catch (IOException e)
+               {
+                  error = e;
+               }
+               free.put(block.bytes);
+            }
+            output.close();
+         }
+         catch (IOException e)
+         {
+            if (error == null)
+            {
+               error = e;
+            }
+         }
+         catch (InterruptedException e) {}
+      }
+
+
+      // Queue filled buffer for compression, returning an empty buffer.
+      public byte[] write(byte[] bytes, int count) throws IOException
+      {
+         if (error != null)
+         {
+            throw error;
+         }
+         try
+         {
+            filled.put(new Block(bytes, count));
+            return(free.take());
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("Interrupted compressing text");
+         }
+      }
+
+
+      // Compress queued buffers and close.
+      public void finish() throws IOException
+      {
+         try
+         {
+            filled.put(new Block(null, 0));
+            join();
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("Interrupted compressing text");
+         }
+         if (error != null)
+         {
+            throw error;
+         }
+      }
+   };
+
+   private FileChannel channel;
+   private Compressor  compressor;
+   private byte[]      bytes;
+   private ByteBuffer  buffer;
+   private int         count;
+   private int[]       floatBits;
+   private byte[][]    floatText;
+   private byte[]      digits;
+
+   // Constructors.
+   public TextChannelWriter(String filename) throws IOException
+   {
+      this(filename, 0);
+   }
+
+
+   // Compression level 1-9 writes gzip text, 0 plain text.
+   public TextChannelWriter(String filename, int compressionLevel) throws IOException
+   {
+      if (compressionLevel > 0)
+      {
+         channel    = null;
+         compressor = new Compressor(filename, compressionLevel);
+         compressor.start();
+      }
+      else
+      {
+         channel    = new FileOutputStream(filename).getChannel();
+         compressor = null;
+      }
+      bytes     = new byte[BUFFER_SIZE];
+      buffer    = ByteBuffer.wrap(bytes);
+      count     = 0;
+      floatBits = new int[1 << FLOAT_TABLE_BITS];
+      floatText = new byte[1 << FLOAT_TABLE_BITS][];
+      digits    = new byte[11];
+      for (float value : COMMON_FLOATS)
+      {
+         floatText(value);
+      }
+   }
+
+
+   // Print ASCII string.
+   public void print(String text) throws IOException
+   {
+      for (int i = 0, j = text.length(); i < j; i++)
+      {
+         if (count == bytes.length)
+         {
+            flush();
+         }
+         bytes[count++] = (byte)text.charAt(i);
+      }
+   }
+
+
+   // Print character.
+   public void print(char c) throws IOException
+   {
+      if (count == bytes.length)
+      {
+         flush();
+      }
+      bytes[count++] = (byte)c;
+   }
+
+
+   // Print float.
+   public void print(float value) throws IOException
+   {
+      put(floatText(value));
+   }
+
+
+   // Print integer.
+   public void print(int value) throws IOException
+   {
+      if (value == Integer.MIN_VALUE)
+      {
+         print(Integer.toString(value));
+         return;
+      }
+      if (value < 0)
+      {
+         print('-');
+         value = -value;
+      }
+      int n = digits.length;
+      do
+      {
+         digits[--n] = (byte)('0' + (value % 10));
+         value      /= 10;
+      } while (value > 0);
+      put(digits, n, digits.length - n);
+   }
+
+
+   // Print line.
+   public void println(String text) throws IOException
+   {
+      print(text);
+      println();
+   }
+
+
+   public void println() throws IOException
+   {
+      print('\n');
+   }
+
+
+   // Flush buffer.
+   public void flush() throws IOException
+   {
+      if (compressor != null)
+      {
+         if (count > 0)
+         {
+            bytes = compressor.write(bytes, count);
+            count = 0;
+         }
+         return;
+      }
+      buffer.clear();
+      buffer.limit(count);
+      while (buffer.hasRemaining())
+      {
+         channel.write(buffer);
+      }
+      count = 0;
+   }
+
+
+   // Flush and close.
+   public void close() throws IOException
+   {
+      flush();
+      if (compressor != null)
+      {
+         compressor.finish();
+      }
+      else
+      {
+         channel.close();
+      }
+   }
+
+
+   // Get float text from table.
+   private byte[] floatText(float value)
+   {
+      int    bits = Float.floatToRawIntBits(value);
+      int    slot = (bits * 0x9e3779b9) >>> (32 - FLOAT_TABLE_BITS);
+      byte[] text = floatText[slot];
+
+      if ((text == null) || (floatBits[slot] != bits))
+      {
+         text            = Float.toString(value).getBytes(StandardCharsets.US_ASCII);
+         floatText[slot] = text;
+         floatBits[slot] = bits;
+      }
+      return(text);
+   }
+
+
+   private void put(byte[] text) throws IOException
+   {
+      put(text, 0, text.length);
+   }
+
+
+   private void put(byte[] text, int offset, int length) throws IOException
+   {
+      if (bytes.length - count < length)
+      {
+         flush();
+      }
+      System.arraycopy(text, offset, bytes, count, length);
+      count += length;
+   }
+}
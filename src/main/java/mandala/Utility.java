@@ -19,6 +19,13 @@ public abstract class Utility
    }
 
 
+   // Load long.
+   public static long loadLong(DataInputStream in) throws IOException
+   {
+      return(in.readLong());
+   }
+
+
    // Load float.
    public static float loadFloat(DataInputStream in) throws IOException
    {
@@ -89,6 +96,13 @@ public abstract class Utility
    }
 
 
+   // Save long.
+   public static void saveLong(DataOutputStream out, long value) throws IOException
+   {
+      out.writeLong(value);
+   }
+
+
    // Save float.
    public static void saveFloat(DataOutputStream out, float value) throws IOException
    {
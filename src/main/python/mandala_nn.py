@@ -84,6 +84,9 @@ if n_epochs < 0:
 
 # Import dataset
 from mandala_nn_dataset import X_train_shape, y_train_shape, X_train, y_train, X_signature_train_shape, y_signature_train_shape, X_signature_train, y_signature_train, y_train_path_begin, X_test_shape, y_test_shape, X_test, y_test, y_test_path_begin, y_test_predictable, y_test_interstitial, context_tier_value_durations
+import mandala_nn_dataset
+y_train_weights = getattr(mandala_nn_dataset, 'y_train_weights', None)
+y_signature_train_weights = getattr(mandala_nn_dataset, 'y_signature_train_weights', None)
 if X_train_shape[0] == 0:
     print('Empty train dataset')
     sys.exit(1)
@@ -120,7 +123,10 @@ seq = array(X_train)
 X_train_seq = seq.reshape(X_train_shape[0], X_train_shape[1])
 seq = array(y_train)
 y_train_seq = seq.reshape(y_train_shape[0], y_train_shape[1])
-prediction_model.fit(X_train_seq, y_train_seq, epochs=n_epochs, batch_size=X_train_shape[0], verbose=int(verbose))
+train_weights = None
+if y_train_weights is not None:
+    train_weights = array(y_train_weights, dtype='float32')
+prediction_model.fit(X_train_seq, y_train_seq, sample_weight=train_weights, epochs=n_epochs, batch_size=X_train_shape[0], verbose=int(verbose))
 
 # Train signature model
 if verbose:
@@ -129,7 +135,10 @@ seq = array(X_signature_train)
 X_signature_seq = seq.reshape(X_signature_train_shape[0], X_signature_train_shape[1])
 seq = array(y_signature_train)
 y_signature_seq = seq.reshape(y_signature_train_shape[0], y_signature_train_shape[1])
-signature_model.fit(X_signature_seq, y_signature_seq, epochs=n_epochs, batch_size=X_signature_train_shape[0], verbose=int(verbose))
+signature_weights = None
+if y_signature_train_weights is not None:
+    signature_weights = array(y_signature_train_weights, dtype='float32')
+signature_model.fit(X_signature_seq, y_signature_seq, sample_weight=signature_weights, epochs=n_epochs, batch_size=X_signature_train_shape[0], verbose=int(verbose))
 
 # Summarize features
 def summarize_features(title, vals):
@@ -269,16 +278,19 @@ for i in range(X_train_shape[0]):
         pstr,pidxs = summarize_features('prediction', predictions[i].copy())
         print('validate: path = ',pathnum,', step = ',stepnum,', ',xstr,', signature: ',sstr,', ',ystr,', ',pstr,sep='',end='')
     stepnum += 1
-    trainTotal += 1
+    weight = 1
+    if y_train_weights is not None:
+        weight = int(y_train_weights[i])
+    trainTotal += weight
     if signature_valid(sxvals, signature_prediction.copy()[0]) == False:
-        trainErrors += 1
+        trainErrors += weight
         if verbose:
             print(', invalid')
     else:
         start = 0
         end = n_dimensions
         if tier_max_prediction(y_train_seq[i].copy()[start:end], predictions[i].copy()[start:end]) == False:
-            trainErrors += 1
+            trainErrors += weight
             if verbose:
                 print(', error')
         else:
@@ -288,11 +300,11 @@ for i in range(X_train_shape[0]):
                 start = (n_dimensions * (j + 1))
                 end = start + n_dimensions
                 if tier_max_prediction(y_train_seq[i].copy()[start:end], predictions[i].copy()[start:end]) == False:
-                    trainErrors += 1
+                    trainErrors += weight
                     error = True
                     break
                 if tier_min_prediction(y_train_seq[i].copy()[start:end], predictions[i].copy()[start:end]) == False:
-                    trainErrors += 1
+                    trainErrors += weight
                     error = True
                     break
             if verbose:
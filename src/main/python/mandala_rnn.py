@@ -74,85 +74,233 @@ if X_test_shape[0] == 0:
     print('Empty test dataset')
     sys.exit(1)
 
+# Ragged and bucketed layouts store sequences back to back with their lengths;
+# batches group sequences of equal padded length and padding is masked.
+# Windowed sequences are windows of the paths, mapped back by their sequence and starting step.
+# Windows that directly continue the previous window of their path carry LSTM state
+# (truncated BPTT): they are run in rounds of the n-th window of each path, each window
+# starting from the final states of the previous window of its path.
+import mandala_rnn_dataset
+layout = getattr(mandala_rnn_dataset, 'X_train_layout', 'padded')
+masked = hasattr(mandala_rnn_dataset, 'X_train_lengths')
+carry = any(getattr(mandala_rnn_dataset, 'X_train_window_carry', []))
+
+# Get batches of (sequence indexes, sequence lengths, X, y) for a dataset section.
+def get_batches(name, X_flat, y_flat, X_shape, y_shape):
+    from numpy import array
+    lengths = getattr(mandala_rnn_dataset, name + '_lengths')
+    if layout == 'bucketed':
+        groups = getattr(mandala_rnn_dataset, name + '_buckets')
+        padded = getattr(mandala_rnn_dataset, name + '_bucket_lengths')
+    elif layout == 'padded':
+        groups = [list(range(X_shape[0]))]
+        padded = [X_shape[1]]
+    else:
+        groups = [[i] for i in range(len(lengths))]
+        padded = lengths
+    X_rows = array(X_flat).reshape(-1, X_shape[2])
+    y_rows = array(y_flat).reshape(-1, y_shape[2])
+    batches = []
+    row = 0
+    for group, length in zip(groups, padded):
+        if len(group) == 0 or length == 0:
+            continue
+        n = len(group) * length
+        batches.append((group, [lengths[i] for i in group],
+                        X_rows[row:row + n].reshape(len(group), length, X_shape[2]),
+                        y_rows[row:row + n].reshape(len(group), length, y_shape[2])))
+        row += n
+    return batches
+
+# Get (sequence, starting step, first scored step) of a sequence or window.
+# Overlapping windows score only the steps not covered by the previous window.
+def get_window(name, index):
+    sequences = getattr(mandala_rnn_dataset, name + '_window_sequences', None)
+    if sequences is None:
+        return index, 0, 0
+    start = getattr(mandala_rnn_dataset, name + '_window_starts')[index]
+    first = 0
+    if start > 0:
+        first = max(0, getattr(mandala_rnn_dataset, name + '_window') - getattr(mandala_rnn_dataset, name + '_stride'))
+    return sequences[index], start, first
+
+# Get rounds of (window indexes, lengths, X, y) of a windowed section from its batches.
+# Round n holds the n-th window of each path, padded to the window length.
+def get_rounds(name, batches, X_shape, y_shape):
+    from numpy import zeros
+    sequences = getattr(mandala_rnn_dataset, name + '_window_sequences')
+    starts = getattr(mandala_rnn_dataset, name + '_window_starts')
+    window = getattr(mandala_rnn_dataset, name + '_window')
+    windows = {}
+    for indexes, lengths, X, y in batches:
+        for k in range(len(indexes)):
+            windows[indexes[k]] = (lengths[k], X[k], y[k])
+    groups = []
+    ranks = {}
+    for index in sorted(windows, key=lambda i: (sequences[i], starts[i])):
+        rank = ranks.get(sequences[index], 0)
+        ranks[sequences[index]] = rank + 1
+        if rank == len(groups):
+            groups.append([])
+        groups[rank].append(index)
+    rounds = []
+    for group in groups:
+        X = zeros((len(group), window, X_shape[2]), dtype='float32')
+        y = zeros((len(group), window, y_shape[2]), dtype='float32')
+        for k in range(len(group)):
+            length, X_window, y_window = windows[group[k]]
+            X[k, :length] = X_window[:length]
+            y[k, :length] = y_window[:length]
+        rounds.append((group, [windows[i][0] for i in group], X, y))
+    return rounds
+
+# Run rounds of a windowed section, training or predicting.
+# Returns the last loss, and the predictions of each round.
+def run_rounds(name, rounds, train):
+    from numpy import zeros
+    sequences = getattr(mandala_rnn_dataset, name + '_window_sequences')
+    carries = getattr(mandala_rnn_dataset, name + '_window_carry')
+    finals = {}
+    loss = None
+    predictions = []
+    for indexes, lengths, X, y in rounds:
+        states = []
+        for s in range(len(state_units)):
+            state = zeros((len(indexes), state_units[s]), dtype='float32')
+            for k in range(len(indexes)):
+                if carries[indexes[k]] and sequences[indexes[k]] in finals:
+                    state[k] = finals[sequences[indexes[k]]][s]
+            states.append(state)
+        inputs = [X] + states
+        outputs = state_model.predict(inputs, batch_size=len(indexes), verbose=0)
+        if train:
+            loss = rnn_model.train_on_batch(inputs, y)
+        else:
+            predictions.append(rnn_model.predict(inputs, batch_size=len(indexes), verbose=0))
+        for k in range(len(indexes)):
+            finals[sequences[indexes[k]]] = [output[k] for output in outputs]
+    return loss, predictions
+
 # Create model.
 from tensorflow.keras.models import Sequential
-from tensorflow.keras.layers import LSTM, Dense
+from tensorflow.keras.layers import LSTM, Dense, Masking
 import warnings
 warnings.filterwarnings("ignore", category=UserWarning, message="Do not pass an `input_shape`/`input_dim` argument to a layer.*")
-rnn_model=Sequential()
-rnn_model.add(LSTM(input_shape=(X_train_shape[1], X_train_shape[2]), units=n_hidden[0], return_sequences=True))
-for i in range(1, len(n_hidden)):
-    rnn_model.add(LSTM(units=n_hidden[i], return_sequences=True))
-rnn_model.add(Dense(y_train_shape[2]))
+if carry:
+    # Initial states are inputs, and the state model gives the final states.
+    from tensorflow.keras.models import Model
+    from tensorflow.keras.layers import Input
+    X_input = Input(shape=(None, X_train_shape[2]))
+    layer = Masking(mask_value=0.0)(X_input)
+    state_inputs = []
+    state_outputs = []
+    state_units = []
+    for units in n_hidden:
+        h = Input(shape=(units,))
+        c = Input(shape=(units,))
+        layer, h_final, c_final = LSTM(units=units, return_sequences=True, return_state=True)(layer, initial_state=[h, c])
+        state_inputs += [h, c]
+        state_outputs += [h_final, c_final]
+        state_units += [units, units]
+    rnn_model = Model([X_input] + state_inputs, Dense(y_train_shape[2])(layer))
+    state_model = Model([X_input] + state_inputs, state_outputs)
+else:
+    rnn_model=Sequential()
+    if not masked:
+        rnn_model.add(LSTM(input_shape=(X_train_shape[1], X_train_shape[2]), units=n_hidden[0], return_sequences=True))
+    else:
+        rnn_model.add(Masking(mask_value=0.0, input_shape=(None, X_train_shape[2])))
+        rnn_model.add(LSTM(units=n_hidden[0], return_sequences=True))
+    for i in range(1, len(n_hidden)):
+        rnn_model.add(LSTM(units=n_hidden[i], return_sequences=True))
+    rnn_model.add(Dense(y_train_shape[2]))
 rnn_model.compile(loss='mean_squared_error',optimizer='adam')
 if verbose:
     rnn_model.summary()
 
+# Get significant features of target and prediction.
+def get_features(yvals, pvals):
+    ymax = []
+    pmax = []
+    for j in range(n_features):
+        yidx = argmax(yvals)
+        if yvals[yidx] >= threshold:
+            ymax.append(yidx)
+        yvals[yidx] = 0.0
+        pidx = argmax(pvals)
+        if pvals[pidx] >= threshold:
+            pmax.append(pidx)
+        pvals[pidx] = 0.0
+    ymax.sort()
+    pmax.sort()
+    return ymax, pmax
+
 # Train.
 from numpy import array, argmax
-seq = array(X_train)
-X = seq.reshape(X_train_shape[0], X_train_shape[1], X_train_shape[2])
-seq = array(y_train)
-y = seq.reshape(y_train_shape[0], y_train_shape[1], y_train_shape[2])
-rnn_model.fit(X, y, epochs=n_epochs, batch_size=X_train_shape[0], verbose=int(verbose))
+if not masked:
+    seq = array(X_train)
+    X = seq.reshape(X_train_shape[0], X_train_shape[1], X_train_shape[2])
+    seq = array(y_train)
+    y = seq.reshape(y_train_shape[0], y_train_shape[1], y_train_shape[2])
+    rnn_model.fit(X, y, epochs=n_epochs, batch_size=X_train_shape[0], verbose=int(verbose))
+    train_batches = [(list(range(X_train_shape[0])), [X_train_shape[1]] * X_train_shape[0], X, y)]
+else:
+    train_batches = get_batches('X_train', X_train, y_train, X_train_shape, y_train_shape)
+    if carry:
+        train_batches = get_rounds('X_train', train_batches, X_train_shape, y_train_shape)
+    for epoch in range(n_epochs):
+        if carry:
+            loss = run_rounds('X_train', train_batches, True)[0]
+        else:
+            for indexes, lengths, X, y in train_batches:
+                loss = rnn_model.train_on_batch(X, y)
+        if verbose:
+            print('Epoch ', epoch + 1, '/', n_epochs, ': loss=', loss, sep='')
 
 # Validate.
-predictions = rnn_model.predict(X, batch_size=X_train_shape[0], verbose=0)
+if carry:
+    train_predictions = run_rounds('X_train', train_batches, False)[1]
+else:
+    train_predictions = [rnn_model.predict(X, batch_size=len(indexes), verbose=0) for indexes, lengths, X, y in train_batches]
 trainErrors = 0
 trainTotal = 0
-for path in range(X_train_shape[0]):
-    for step in range(X_train_shape[1]):
-        yvals = y[path][step]
-        pvals = predictions[path][step]
-        ymax = []
-        pmax = []
-        for j in range(n_features):
-            yidx = argmax(yvals)
-            if yvals[yidx] >= threshold:
-                ymax.append(yidx)
-            yvals[yidx] = 0.0
-            pidx = argmax(pvals)
-            if pvals[pidx] >= threshold:
-                pmax.append(pidx)
-            pvals[pidx] = 0.0
-        ymax.sort()
-        pmax.sort()
-        trainTotal += 1
-        if ymax != pmax:
-            trainErrors += 1
+for (indexes, lengths, X, y), predictions in zip(train_batches, train_predictions):
+    for path in range(len(indexes)):
+        sequence, start, first = get_window('X_train', indexes[path]) if masked else (indexes[path], 0, 0)
+        for step in range(first, lengths[path]):
+            ymax, pmax = get_features(array(y[path][step]), predictions[path][step])
+            trainTotal += 1
+            if ymax != pmax:
+                trainErrors += 1
 trainErrorPct = 0
 if trainTotal > 0:
     trainErrorPct = (float(trainErrors) / float(trainTotal)) * 100.0
 
 # Predict.
-seq = array(X_test)
-X = seq.reshape(X_test_shape[0], X_test_shape[1], X_test_shape[2])
-seq = array(y_test)
-y = seq.reshape(y_test_shape[0], y_test_shape[1], y_test_shape[2])
-predictions = rnn_model.predict(X, batch_size=X_test_shape[0], verbose=0)
+if not masked:
+    seq = array(X_test)
+    X = seq.reshape(X_test_shape[0], X_test_shape[1], X_test_shape[2])
+    seq = array(y_test)
+    y = seq.reshape(y_test_shape[0], y_test_shape[1], y_test_shape[2])
+    test_batches = [(list(range(X_test_shape[0])), [X_test_shape[1]] * X_test_shape[0], X, y)]
+else:
+    test_batches = get_batches('X_test', X_test, y_test, X_test_shape, y_test_shape)
+if carry:
+    test_batches = get_rounds('X_test', test_batches, X_test_shape, y_test_shape)
+    test_predictions = run_rounds('X_test', test_batches, False)[1]
+else:
+    test_predictions = [rnn_model.predict(X, batch_size=len(indexes), verbose=0) for indexes, lengths, X, y in test_batches]
 testErrors = 0
 testTotal = 0
-for path in range(X_test_shape[0]):
-    for step in range(X_test_shape[1]):
-        if step in y_test_predictable[path]:
-            yvals = y[path][step]
-            pvals = predictions[path][step]
-            ymax = []
-            pmax = []
-            for j in range(n_features):
-                yidx = argmax(yvals)
-                if yvals[yidx] >= threshold:
-                    ymax.append(yidx)
-                yvals[yidx] = 0.0
-                pidx = argmax(pvals)
-                if pvals[pidx] >= threshold:
-                    pmax.append(pidx)
-                pvals[pidx] = 0.0
-            ymax.sort()
-            pmax.sort()
-            testTotal += 1
-            if ymax != pmax:
-                testErrors += 1
+for (indexes, lengths, X, y), predictions in zip(test_batches, test_predictions):
+    for path in range(len(indexes)):
+        sequence, start, first = get_window('X_test', indexes[path]) if masked else (indexes[path], 0, 0)
+        for step in range(first, lengths[path]):
+            if start + step in y_test_predictable[sequence]:
+                ymax, pmax = get_features(array(y[path][step]), predictions[path][step])
+                testTotal += 1
+                if ymax != pmax:
+                    testErrors += 1
 testErrorPct = 0
 if testTotal > 0:
     testErrorPct = (float(testErrors) / float(testTotal)) * 100.0
@@ -0,0 +1,114 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset export checkpoint tests: an export halted at a checkpoint and resumed
+// writes the same datasets as an uninterrupted export.
+
+package mandala;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   // Export halted after paths and resumed, compared with an uninterrupted export.
+   // Paths written after the last checkpoint before the halt are discarded on resuming.
+   private void assertResumeIdentical(int haltPaths) throws IOException
+   {
+      File expected = folder.newFolder();
+      DatasetTestSupport.export(expected);
+
+      File actual     = folder.newFolder();
+      File checkpoint = new File(folder.getRoot(), "checkpoint_" + actual.getName());
+      Mandala.CHECKPOINT_FILENAME   = checkpoint.getPath();
+      Mandala.CHECKPOINT_PATHS      = 3;
+      Mandala.CHECKPOINT_HALT_PATHS = haltPaths;
+      DatasetTestSupport.export(actual);
+      assertTrue(checkpoint.exists());
+      assertFalse(new File(actual, DatasetTestSupport.NN_DATASET).exists());
+
+      Mandala.CHECKPOINT_HALT_PATHS = 0;
+      Mandala.CHECKPOINT_RESUME     = true;
+      DatasetTestSupport.export(actual);
+      assertEquals(haltPaths / 3 * 3, Mandala.resumedPaths);
+      assertFalse(checkpoint.exists());
+      DatasetTestSupport.assertSameDatasets(expected, actual);
+   }
+
+
+   @Test
+   public void resumeInTrainPaths() throws IOException
+   {
+      assertResumeIdentical(7);
+   }
+
+
+   @Test
+   public void resumeInTestPaths() throws IOException
+   {
+      assertResumeIdentical(14);
+   }
+
+
+   @Test
+   public void resumeThreadedDeduplicatedTokens() throws IOException
+   {
+      Mandala.DATASET_THREADS        = 4;
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      Mandala.DATASET_FORMAT         = DatasetWriter.TOKEN_FORMAT;
+      assertResumeIdentical(7);
+   }
+
+
+   @Test
+   public void resumeSparseWindows() throws IOException
+   {
+      Mandala.DATASET_FORMAT        = DatasetWriter.SPARSE_FORMAT;
+      DatasetWriter.SEQUENCE_WINDOW = 4;
+      assertResumeIdentical(14);
+   }
+
+
+   @Test
+   public void contextTiersRoundTrip() throws IOException
+   {
+      ArrayList<Mandala.ContextFeatures> tiers = new ArrayList<Mandala.ContextFeatures>();
+      Mandala.Causation                  causation = Mandala.causationHierarchies.get(0).get(0);
+      tiers.add(new Mandala.ContextFeatures(causation, 0));
+      tiers.add(null);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream      out   = new DataOutputStream(bytes);
+      Mandala.saveContextTiers(out, tiers, new int[] { 5, 2 });
+      out.close();
+
+      ArrayList<Mandala.ContextFeatures> loaded = new ArrayList<Mandala.ContextFeatures>();
+      int[] position = Mandala.loadContextTiers(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), loaded);
+      assertTrue(position[0] == 5 && position[1] == 2);
+      assertTrue(loaded.size() == 2 && loaded.get(1) == null);
+      assertTrue(loaded.get(0).featuresEqual(tiers.get(0)));
+   }
+}
@@ -0,0 +1,129 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset compression tests: gzip text written by the compression thread
+// decompresses to the uncompressed dataset, and only the python format compresses.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressionTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Decompress file.
+   private static byte[] decompress(File file) throws IOException
+   {
+      InputStream input = new GZIPInputStream(new FileInputStream(file));
+
+      try
+      {
+         ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+         byte[]                buffer = new byte[8192];
+         int                   n;
+         while ((n = input.read(buffer)) > 0)
+         {
+            bytes.write(buffer, 0, n);
+         }
+         return(bytes.toByteArray());
+      }
+      finally
+      {
+         input.close();
+      }
+   }
+
+
+   // Assert compressed datasets decompress to the uncompressed datasets.
+   private void assertDecompressesIdentical(String... datasets) throws IOException
+   {
+      File expected = folder.newFolder();
+      DatasetTestSupport.export(expected);
+      File actual = folder.newFolder();
+      DatasetWriter.COMPRESSION_LEVEL = 6;
+      DatasetTestSupport.export(actual);
+      for (String dataset : datasets)
+      {
+         File compressed = new File(actual, DatasetWriter.getCompressedFilename(dataset));
+         assertTrue(compressed.length() < new File(expected, dataset).length());
+         assertArrayEquals(dataset, Files.readAllBytes(new File(expected, dataset).toPath()), decompress(compressed));
+      }
+   }
+
+
+   @Test
+   public void compressedDatasets() throws IOException
+   {
+      TextChannelWriter.BUFFER_SIZE = 512;
+      try
+      {
+         assertDecompressesIdentical(DatasetTestSupport.NN_DATASET, DatasetTestSupport.RNN_DATASET);
+      }
+      finally
+      {
+         TextChannelWriter.BUFFER_SIZE = 1 << 16;
+      }
+   }
+
+
+   @Test
+   public void compressedShards() throws IOException
+   {
+      DatasetWriter.SHARDS = 2;
+      assertDecompressesIdentical(DatasetWriter.getShardFilename(DatasetTestSupport.NN_DATASET, 0),
+                                  DatasetWriter.getShardFilename(DatasetTestSupport.NN_DATASET, 1),
+                                  DatasetWriter.getShardFilename(DatasetTestSupport.RNN_DATASET, 1));
+   }
+
+
+   @Test
+   public void uncompressedNumpy() throws IOException
+   {
+      File          file   = new File(folder.getRoot(), DatasetTestSupport.NN_DATASET);
+      DatasetWriter writer = new DatasetWriter(file.getPath(), DatasetWriter.NUMPY_FORMAT);
+      writer.addRows("X_test", 4).add(new float[] { 0.0f, 1.0f, 0.0f, -1.0f });
+      DatasetWriter.COMPRESSION_LEVEL = 6;
+      try
+      {
+         writer.close();
+         fail("numpy dataset compressed");
+      }
+      catch (IOException e)
+      {
+         assertFalse(new File(DatasetWriter.getNumpyFilename(file.getPath())).exists());
+      }
+   }
+}
@@ -0,0 +1,95 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Context features tests: equal feature sets are equal whether interned by the
+// same thread, by another thread, or before the features cache was cleared.
+
+package mandala;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContextFeaturesTest
+{
+   private Mandala.Causation causation;
+   private Mandala.Causation other;
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+      causation = Mandala.causationPaths.get(0).get(0).steps.get(0).get(0).causation;
+      other     = Mandala.causationPaths.get(1).get(0).steps.get(0).get(0).causation;
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Context features of causation interned by a new thread.
+   private static Mandala.ContextFeatures threadFeatures(final Mandala.Causation causation) throws InterruptedException
+   {
+      final Mandala.ContextFeatures[] features = new Mandala.ContextFeatures[1];
+      Thread thread = new Thread()
+      {
+         @Override
+         public void run()
+         {
+            features[0] = new Mandala.ContextFeatures(causation, 0);
+         }
+      };
+
+      thread.start();
+      thread.join();
+      return(features[0]);
+   }
+
+
+   @Test
+   public void sameThread()
+   {
+      Mandala.ContextFeatures features1 = new Mandala.ContextFeatures(causation, 0);
+      Mandala.ContextFeatures features2 = new Mandala.ContextFeatures(causation, 1);
+
+      assertSame(features1.features, features2.features);
+      assertTrue(features1.featuresEqual(features2));
+      assertTrue(features1.duplicate(features2));
+      assertFalse(features1.featuresEqual(new Mandala.ContextFeatures(other, 0)));
+   }
+
+
+   @Test
+   public void otherThread() throws InterruptedException
+   {
+      Mandala.ContextFeatures features1 = new Mandala.ContextFeatures(causation, 0);
+      Mandala.ContextFeatures features2 = threadFeatures(causation);
+
+      assertNotSame(features1.features, features2.features);
+      assertTrue(features1.featuresEqual(features2));
+      assertTrue(features2.duplicate(features1));
+      assertFalse(features1.featuresEqual(threadFeatures(other)));
+   }
+
+
+   @Test
+   public void clearedCache()
+   {
+      Mandala.ContextFeatures features1 = new Mandala.ContextFeatures(causation, 0);
+
+      FeaturesCache.clear();
+      Mandala.ContextFeatures features2 = new Mandala.ContextFeatures(causation, 0);
+      assertNotSame(features1.features, features2.features);
+      assertTrue(features1.featuresEqual(features2));
+      assertTrue(features1.featuresEqual(features2.features));
+   }
+}
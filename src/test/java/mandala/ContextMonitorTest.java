@@ -0,0 +1,56 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Context monitor tests: novel contexts are flagged on their features.
+
+package mandala;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContextMonitorTest
+{
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+      ContextMonitor.NOVELTY_ENABLED = true;
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   @Test
+   public void flagsNovelContexts()
+   {
+      Mandala.Causation                  causation1 = Mandala.causationHierarchies.get(0).get(0);
+      Mandala.Causation                  causation2 = Mandala.causationHierarchies.get(1).get(0);
+      ArrayList<Mandala.ContextFeatures> tiers      = new ArrayList<Mandala.ContextFeatures>();
+      tiers.add(new Mandala.ContextFeatures(causation1, 0));
+      ContextMonitor.update(tiers);
+      assertTrue(tiers.get(0).novel);
+
+      // A surviving context keeps its flag; a recurring context is not novel.
+      tiers.get(0).age++;
+      tiers.add(new Mandala.ContextFeatures(causation2, 1));
+      ContextMonitor.update(tiers);
+      assertTrue(tiers.get(0).novel);
+      assertTrue(tiers.get(1).novel);
+      tiers.get(1).age++;
+      tiers.set(0, new Mandala.ContextFeatures(causation1, 0));
+      ContextMonitor.update(tiers);
+      assertFalse(tiers.get(0).novel);
+      assertTrue(tiers.get(1).novel);
+   }
+}
@@ -0,0 +1,184 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset loader tests: the loaders emitted into numpy format dataset modules,
+// run by python3 with numpy, decode the python format values. Tests are skipped
+// when python3 or numpy is unavailable.
+
+package mandala;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DatasetLoaderTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   // Output of the compare script without numpy.
+   private static final String NO_NUMPY = "numpy unavailable";
+
+   // Print the public names of a python format dataset module whose values differ
+   // in a numpy format dataset module. Arrays are compared flattened, as python
+   // format rows are, and numbers are compared as float32.
+   private static final String COMPARE =
+      "import importlib.util, sys\n" +
+      "try:\n" +
+      "    import numpy as np\n" +
+      "except ImportError:\n" +
+      "    print('" + NO_NUMPY + "')\n" +
+      "    sys.exit(0)\n" +
+      "def load(name, path):\n" +
+      "    spec = importlib.util.spec_from_file_location(name, path)\n" +
+      "    module = importlib.util.module_from_spec(spec)\n" +
+      "    spec.loader.exec_module(module)\n" +
+      "    return module\n" +
+      "def plain(value):\n" +
+      "    if isinstance(value, np.ndarray):\n" +
+      "        return value.reshape(-1).tolist()\n" +
+      "    if isinstance(value, np.generic):\n" +
+      "        return value.tolist()\n" +
+      "    if isinstance(value, (list, tuple)):\n" +
+      "        return [plain(item) for item in value]\n" +
+      "    return value\n" +
+      "def same(value1, value2):\n" +
+      "    if isinstance(value1, list) and isinstance(value2, list):\n" +
+      "        return len(value1) == len(value2) and all(same(item1, item2) for item1, item2 in zip(value1, value2))\n" +
+      "    if isinstance(value1, (int, float)) and isinstance(value2, (int, float)):\n" +
+      "        return np.float32(value1) == np.float32(value2)\n" +
+      "    return value1 == value2\n" +
+      "expected = load('expected', sys.argv[1])\n" +
+      "actual = load('actual', sys.argv[2])\n" +
+      "names = [name for name, value in vars(expected).items() if not name.startswith('_') and not callable(value)]\n" +
+      "if not names:\n" +
+      "    print('no values')\n" +
+      "for name in names:\n" +
+      "    if not hasattr(actual, name) or not same(plain(getattr(expected, name)), plain(getattr(actual, name))):\n" +
+      "        print('differs: ' + name)\n";
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Run compare script on dataset modules, returning its output, or null if python3 is unavailable.
+   private String compare(File expected, File actual) throws IOException
+   {
+      File script = new File(folder.getRoot(), "compare.py");
+      Files.write(script.toPath(), COMPARE.getBytes(StandardCharsets.UTF_8));
+      try
+      {
+         Process               process = new ProcessBuilder("python3", script.getPath(), expected.getPath(),
+                                                            actual.getPath()).redirectErrorStream(true).start();
+         InputStream           input   = process.getInputStream();
+         ByteArrayOutputStream bytes   = new ByteArrayOutputStream();
+         byte[]                buffer  = new byte[8192];
+         int                   n;
+         while ((n = input.read(buffer)) > 0)
+         {
+            bytes.write(buffer, 0, n);
+         }
+         process.waitFor();
+         return(bytes.toString("UTF-8").trim());
+      }
+      catch (IOException e)
+      {
+         return(null);
+      }
+      catch (InterruptedException e)
+      {
+         throw new IOException(e);
+      }
+   }
+
+
+   // Export datasets in format into new directory.
+   private File export(String format) throws IOException
+   {
+      File dir = folder.newFolder();
+
+      Mandala.DATASET_FORMAT = format;
+      DatasetTestSupport.export(dir);
+      Mandala.DATASET_FORMAT = DatasetWriter.PYTHON_FORMAT;
+      return(dir);
+   }
+
+
+   // Assert datasets of format, decoded by loader, hold the python format values.
+   private void assertLoaderDecodes(String format, String loader) throws IOException
+   {
+      File   expected = export(DatasetWriter.PYTHON_FORMAT);
+      File   actual   = export(format);
+      String modules  = "";
+
+      for (String dataset : new String[] { DatasetTestSupport.NN_DATASET, DatasetTestSupport.RNN_DATASET })
+      {
+         modules += new String(Files.readAllBytes(new File(actual, dataset).toPath()), StandardCharsets.UTF_8);
+      }
+      assertTrue(format + " " + loader, modules.contains(" = " + loader + "("));
+      for (String dataset : new String[] { DatasetTestSupport.NN_DATASET, DatasetTestSupport.RNN_DATASET })
+      {
+         String output = compare(new File(expected, dataset), new File(actual, dataset));
+         assumeTrue("python3 unavailable", output != null);
+         assumeTrue(NO_NUMPY, !output.equals(NO_NUMPY));
+         assertEquals(format + " " + dataset, "", output);
+      }
+   }
+
+
+   @Test
+   public void expandedTokens() throws IOException
+   {
+      assertLoaderDecodes(DatasetWriter.TOKEN_FORMAT, "_expand");
+   }
+
+
+   @Test
+   public void expandedTokenWindows() throws IOException
+   {
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      DatasetWriter.SEQUENCE_LAYOUT  = DatasetWriter.BUCKETED_SEQUENCES;
+      DatasetWriter.SEQUENCE_WINDOW  = 5;
+      assertLoaderDecodes(DatasetWriter.TOKEN_FORMAT, "_expand");
+   }
+
+
+   @Test
+   public void unpackedTernary() throws IOException
+   {
+      assertLoaderDecodes(DatasetWriter.TERNARY_FORMAT, "_unpack");
+   }
+
+
+   @Test
+   public void unpackedTernaryWindows() throws IOException
+   {
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      DatasetWriter.SEQUENCE_LAYOUT  = DatasetWriter.BUCKETED_SEQUENCES;
+      DatasetWriter.SEQUENCE_WINDOW  = 5;
+      assertLoaderDecodes(DatasetWriter.TERNARY_FORMAT, "_unpack");
+   }
+}
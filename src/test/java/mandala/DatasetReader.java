@@ -0,0 +1,414 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset reader: the public values of a dataset module, evaluated in Java.
+// Python format literals are read as written, and the .npz arrays of the numpy
+// formats are decoded as the module decodes them, so datasets of every format
+// can be compared with the python format.
+
+package mandala;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class DatasetReader
+{
+   // Dataset value: flattened numbers and their list lengths, if a list of lists,
+   // a string, or the items of a tuple.
+   static class Value
+   {
+      float[] numbers;
+      int[]   lengths;
+      String  string;
+      Value[] items;
+
+      // Value as integers.
+      int[] ints()
+      {
+         int[] values = new int[numbers.length];
+
+         for (int i = 0; i < values.length; i++)
+         {
+            values[i] = (int)numbers[i];
+         }
+         return(values);
+      }
+
+
+      @Override
+      public boolean equals(Object object)
+      {
+         if (!(object instanceof Value))
+         {
+            return(false);
+         }
+         Value value = (Value)object;
+         return(Arrays.equals(numbers, value.numbers) && Arrays.equals(lengths, value.lengths) &&
+                ((string != null) ? string.equals(value.string) : (value.string == null)) &&
+                Arrays.equals(items, value.items));
+      }
+
+
+      @Override
+      public int hashCode()
+      {
+         return(Arrays.hashCode(numbers));
+      }
+
+
+      @Override
+      public String toString()
+      {
+         if (string != null)
+         {
+            return("'" + string + "'");
+         }
+         if (items != null)
+         {
+            return(Arrays.toString(items));
+         }
+         String text = Arrays.toString(numbers);
+         return((text.length() > 200 ? text.substring(0, 200) + "..." : text) +
+                (lengths != null ? " lengths=" + Arrays.toString(lengths) : ""));
+      }
+   };
+
+   // Module assignment.
+   private static final Pattern ASSIGNMENT = Pattern.compile("^([A-Za-z_]\\w*) = (.*)$");
+
+   // Numpy module arrays file.
+   private static final Pattern NPZ = Pattern.compile("^_npz = .*'([^']+)'\\)$");
+
+   // Values by name, in module order.
+   LinkedHashMap<String, Value> values;
+
+   private File       npz;
+   private ByteBuffer arrays;
+   private String     text;
+   private int        position;
+
+   // Read dataset module file.
+   DatasetReader(File file) throws IOException
+   {
+      List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+
+      values = new LinkedHashMap<String, Value>();
+      for (int i = 0; i < lines.size(); i++)
+      {
+         Matcher matcher = NPZ.matcher(lines.get(i));
+         if (matcher.matches())
+         {
+            npz = new File(file.getParentFile(), matcher.group(1));
+            continue;
+         }
+         matcher = ASSIGNMENT.matcher(lines.get(i));
+         if (!matcher.matches() || lines.get(i).startsWith("_"))
+         {
+            continue;
+         }
+         String expression = matcher.group(2);
+         if (expression.equals("["))
+         {
+            StringBuilder builder = new StringBuilder("[");
+            for (i++; !lines.get(i).equals("]"); i++)
+            {
+               builder.append(lines.get(i));
+            }
+            expression = builder.append("]").toString();
+         }
+         text     = expression;
+         position = 0;
+         Value value = expression();
+         if (position != text.length())
+         {
+            throw new IOException("Cannot read " + matcher.group(1) + " = " + expression);
+         }
+         values.put(matcher.group(1), value);
+      }
+      text = null;
+   }
+
+
+   // Get named value.
+   Value get(String name)
+   {
+      Value value = values.get(name);
+
+      if (value == null)
+      {
+         throw new AssertionError("No dataset value " + name);
+      }
+      return(value);
+   }
+
+
+   private Value expression() throws IOException
+   {
+      char c = text.charAt(position);
+
+      if (c == '[')
+      {
+         return(list(']'));
+      }
+      if (c == '(')
+      {
+         return(list(')'));
+      }
+      if (c == '\'')
+      {
+         int   end   = text.indexOf('\'', position + 1);
+         Value value = new Value();
+         value.string = text.substring(position + 1, end);
+         position     = end + 1;
+         return(value);
+      }
+      if ((c == '-') || Character.isDigit(c))
+      {
+         int end = position;
+         while ((end < text.length()) && "+-.0123456789eE".indexOf(text.charAt(end)) >= 0)
+         {
+            end++;
+         }
+         Value value = new Value();
+         value.numbers = new float[] { Float.parseFloat(text.substring(position, end)) };
+         position      = end;
+         return(value);
+      }
+      if (c == '*')
+      {
+         position++;
+         return(expression());
+      }
+      int end = position;
+      while ((end < text.length()) && (Character.isLetterOrDigit(text.charAt(end)) || (text.charAt(end) == '_')))
+      {
+         end++;
+      }
+      String name = text.substring(position, end);
+      position = end;
+      if ((position < text.length()) && (text.charAt(position) == '('))
+      {
+         return(call(name, list(')').items));
+      }
+      return(get(name));
+   }
+
+
+   // List of numbers or of lists, or tuple of values, ending at close.
+   private Value list(char close) throws IOException
+   {
+      ArrayList<Value> items   = new ArrayList<Value>();
+      float[]          numbers = new float[16];
+      int              count   = 0;
+      boolean          nested  = false;
+
+      position++;
+      while (true)
+      {
+         skipSpaces();
+         if (text.charAt(position) == close)
+         {
+            position++;
+            break;
+         }
+         if ((close == ']') && (text.charAt(position) != '['))
+         {
+            // Flat numbers.
+            int end = position;
+            while ((text.charAt(end) != ',') && (text.charAt(end) != close))
+            {
+               end++;
+            }
+            if (count == numbers.length)
+            {
+               numbers = Arrays.copyOf(numbers, count * 2);
+            }
+            numbers[count++] = Float.parseFloat(text.substring(position, end).trim());
+            position         = end;
+         }
+         else
+         {
+            Value item = expression();
+            items.add(item);
+            nested = true;
+         }
+         skipSpaces();
+         if (text.charAt(position) == ',')
+         {
+            position++;
+         }
+      }
+      Value value = new Value();
+      if (close == ')')
+      {
+         value.items = items.toArray(new Value[items.size()]);
+      }
+      else if (nested)
+      {
+         value.lengths = new int[items.size()];
+         int total = 0;
+         for (int i = 0; i < items.size(); i++)
+         {
+            value.lengths[i] = items.get(i).numbers.length;
+            total           += value.lengths[i];
+         }
+         value.numbers = new float[total];
+         for (int i = 0, j = 0; i < items.size(); j += value.lengths[i], i++)
+         {
+            System.arraycopy(items.get(i).numbers, 0, value.numbers, j, value.lengths[i]);
+         }
+      }
+      else
+      {
+         value.numbers = Arrays.copyOf(numbers, count);
+      }
+      return(value);
+   }
+
+
+   private void skipSpaces()
+   {
+      while (text.charAt(position) == ' ')
+      {
+         position++;
+      }
+   }
+
+
+   // Evaluate dataset module function.
+   private Value call(String name, Value[] args) throws IOException
+   {
+      Value value = new Value();
+
+      // Unpacked tuple argument.
+      if ((args.length == 1) && (args[0].items != null))
+      {
+         args = args[0].items;
+      }
+      if (name.equals("_array"))
+      {
+         value.numbers = array(args[0].string, (long)args[1].numbers[0], size(args[2]));
+      }
+      else if (name.equals("_lists"))
+      {
+         value.numbers = args[0].numbers;
+         value.lengths = args[1].ints();
+      }
+      else if (name.equals("_dense"))
+      {
+         // Rows of sparse values and feature indices, with row offsets.
+         int[] indices = args[1].ints();
+         int[] indptr  = args[2].ints();
+         int   width   = (int)args[3].items[args[3].items.length - 1].numbers[0];
+         value.numbers = new float[size(args[3])];
+         for (int r = 0; r < indptr.length - 1; r++)
+         {
+            for (int i = indptr[r]; i < indptr[r + 1]; i++)
+            {
+               value.numbers[r * width + indices[i]] = args[0].numbers[i];
+            }
+         }
+      }
+      else if (name.equals("_expand"))
+      {
+         // Token blocks of the feature codebook.
+         int[]   tokens  = args[0].ints();
+         int     width   = (int)args[1].numbers[0];
+         float[] data    = get("codebook_values").numbers;
+         int[]   indices = get("codebook_indices").ints();
+         int[]   indptr  = get("codebook_indptr").ints();
+         value.numbers = new float[size(args[2])];
+         for (int t = 0; t < tokens.length; t++)
+         {
+            for (int i = indptr[tokens[t]]; i < indptr[tokens[t] + 1]; i++)
+            {
+               value.numbers[t * width + indices[i]] = data[i];
+            }
+         }
+      }
+      else if (name.equals("_unpack"))
+      {
+         // Packed 2-bit ternary codes, 4 per byte, with padded rows.
+         float[] codes   = new float[] { 0.0f, 1.0f, -1.0f, 0.0f };
+         float[] packed  = args[0].numbers;
+         int     width   = (int)args[1].items[args[1].items.length - 1].numbers[0];
+         int     size    = size(args[1]);
+         int     rowSize = (size > 0 ? packed.length / (size / width) : 0);
+         value.numbers = new float[size];
+         for (int i = 0; i < size; i++)
+         {
+            int bits = (int)packed[(i / width) * rowSize + (i % width) / 4];
+            value.numbers[i] = codes[(bits >> (((i % width) % 4) * 2)) & 3];
+         }
+      }
+      else
+      {
+         throw new IOException("Unknown dataset function " + name);
+      }
+      return(value);
+   }
+
+
+   // Values of array in npz file.
+   private float[] array(String type, long offset, int size) throws IOException
+   {
+      float[] numbers = new float[size];
+
+      if (size == 0)
+      {
+         return(numbers);
+      }
+      if (arrays == null)
+      {
+         FileChannel channel = new RandomAccessFile(npz, "r").getChannel();
+         try
+         {
+            arrays = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+         }
+         finally
+         {
+            channel.close();
+         }
+      }
+      for (int i = 0; i < size; i++)
+      {
+         if (type.equals(NpzWriter.FLOAT32))
+         {
+            numbers[i] = arrays.getFloat((int)offset + i * 4);
+         }
+         else if (type.equals(NpzWriter.INT32))
+         {
+            numbers[i] = arrays.getInt((int)offset + i * 4);
+         }
+         else
+         {
+            numbers[i] = arrays.get((int)offset + i) & 0xff;
+         }
+      }
+      return(numbers);
+   }
+
+
+   // Size of array shape.
+   private static int size(Value shape)
+   {
+      int size = 1;
+
+      for (Value dimension : shape.items)
+      {
+         size *= (int)dimension.numbers[0];
+      }
+      return(size);
+   }
+}
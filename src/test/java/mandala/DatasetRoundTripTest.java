@@ -0,0 +1,371 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset round trip tests against the python format: every format decodes to
+// the python format values, ragged, bucketed and windowed sequence layouts hold
+// the padded sequences, and shards concatenate to the unsharded datasets.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DatasetRoundTripTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   // Binary formats.
+   private static final String[] FORMATS =
+   {
+      DatasetWriter.NUMPY_FORMAT, DatasetWriter.SPARSE_FORMAT, DatasetWriter.TOKEN_FORMAT, DatasetWriter.TERNARY_FORMAT
+   };
+
+   // Sections of NN dataset rows, and of RNN dataset sequences.
+   private static final String[] ROWS =
+   {
+      "X_train", "y_train", "X_signature_train", "y_signature_train", "X_test", "y_test"
+   };
+   private static final String[] SEQUENCES = { "X_train", "y_train", "X_test", "y_test" };
+
+   // NN dataset index lists, and the row sections they index.
+   private static final String[][] INDEXES =
+   {
+      { "y_train_path_begin", "X_train" },
+      { "y_test_path_begin", "X_test" },
+      { "y_test_predictable", "X_test" },
+      { "y_test_interstitial", "X_test" }
+   };
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Export datasets in format, returning readers of the NN and RNN datasets.
+   private DatasetReader[] export(String format) throws IOException
+   {
+      File dir = folder.newFolder();
+
+      Mandala.DATASET_FORMAT = format;
+      DatasetTestSupport.export(dir);
+      Mandala.DATASET_FORMAT = DatasetWriter.PYTHON_FORMAT;
+      return(new DatasetReader[]
+             {
+                new DatasetReader(new File(dir, DatasetTestSupport.NN_DATASET)),
+                new DatasetReader(new File(dir, DatasetTestSupport.RNN_DATASET))
+             });
+   }
+
+
+   // Assert datasets of every binary format decode to the python format values.
+   private void assertFormatsDecode() throws IOException
+   {
+      DatasetReader[] expected = export(DatasetWriter.PYTHON_FORMAT);
+
+      for (String format : FORMATS)
+      {
+         DatasetReader[] actual = export(format);
+         for (int i = 0; i < expected.length; i++)
+         {
+            assertTrue(expected[i].values.size() > 0);
+            for (String name : expected[i].values.keySet())
+            {
+               assertEquals(format + " " + name, expected[i].get(name), actual[i].get(name));
+            }
+         }
+      }
+   }
+
+
+   // Sequences of RNN section, or windows when windowed, decoded from the layout.
+   // Padding is asserted to be zero.
+   private static List<float[]> sequences(DatasetReader reader, String name)
+   {
+      int[]   shape   = reader.get(name + "_shape").ints();
+      int     width   = shape[2];
+      float[] rows    = reader.get(name).numbers;
+      String  layout  = (reader.values.containsKey(name + "_layout") ? reader.get(name + "_layout").string : DatasetWriter.PADDED_SEQUENCES);
+      int[]   lengths = new int[shape[0]];
+      Arrays.fill(lengths, shape[1]);
+      if (reader.values.containsKey(name + "_lengths"))
+      {
+         lengths = reader.get(name + "_lengths").ints();
+      }
+
+      // Groups of sequences with their padded length.
+      List<int[]> groups = new ArrayList<int[]>();
+      int[]       padded;
+      if (layout.equals(DatasetWriter.BUCKETED_SEQUENCES))
+      {
+         DatasetReader.Value buckets = reader.get(name + "_buckets");
+         int[]               members = buckets.ints();
+         for (int b = 0, i = 0; b < buckets.lengths.length; i += buckets.lengths[b], b++)
+         {
+            groups.add(Arrays.copyOfRange(members, i, i + buckets.lengths[b]));
+         }
+         padded = reader.get(name + "_bucket_lengths").ints();
+      }
+      else if (layout.equals(DatasetWriter.RAGGED_SEQUENCES))
+      {
+         for (int i = 0; i < lengths.length; i++)
+         {
+            groups.add(new int[] { i });
+         }
+         padded = lengths;
+      }
+      else
+      {
+         int[] members = new int[lengths.length];
+         for (int i = 0; i < members.length; i++)
+         {
+            members[i] = i;
+         }
+         groups.add(members);
+         padded = new int[] { shape[1] };
+      }
+      float[][] units = new float[lengths.length][];
+      int       row   = 0;
+      for (int g = 0; g < groups.size(); g++)
+      {
+         for (int i : groups.get(g))
+         {
+            units[i] = Arrays.copyOfRange(rows, row * width, (row + lengths[i]) * width);
+            for (int j = (row + lengths[i]) * width, k = (row + padded[g]) * width; j < k; j++)
+            {
+               assertEquals(name + " padding", 0.0f, rows[j], 0.0f);
+            }
+            row += padded[g];
+         }
+      }
+      assertEquals(name + " rows", rows.length, row * width);
+      return(Arrays.asList(units));
+   }
+
+
+   // Assert RNN sequence layout holds the padded sequences.
+   private void assertLayout(String layout, int window, int stride) throws IOException
+   {
+      DatasetWriter.SEQUENCE_LAYOUT = DatasetWriter.PADDED_SEQUENCES;
+      DatasetWriter.SEQUENCE_WINDOW = 0;
+      DatasetWriter.SEQUENCE_STRIDE = 0;
+      DatasetReader expected = export(DatasetWriter.PYTHON_FORMAT)[1];
+      DatasetWriter.SEQUENCE_LAYOUT = layout;
+      DatasetWriter.SEQUENCE_WINDOW = window;
+      DatasetWriter.SEQUENCE_STRIDE = stride;
+      DatasetReader actual = export(DatasetWriter.PYTHON_FORMAT)[1];
+      for (String name : SEQUENCES)
+      {
+         List<float[]> sequences = sequences(expected, name);
+         List<float[]> units     = sequences(actual, name);
+         int[]         owners    = new int[units.size()];
+         int[]         starts    = new int[units.size()];
+         if (window > 0)
+         {
+            owners = actual.get(name + "_window_sequences").ints();
+            starts = actual.get(name + "_window_starts").ints();
+         }
+         else
+         {
+            for (int i = 0; i < owners.length; i++)
+            {
+               owners[i] = i;
+            }
+         }
+         assertTrue(units.size() >= sequences.size());
+         int[] previous = new int[sequences.size()];
+         int[] ends     = new int[sequences.size()];
+         Arrays.fill(previous, -1);
+         for (int i = 0; i < units.size(); i++)
+         {
+            float[] sequence = sequences.get(owners[i]);
+            float[] unit     = units.get(i);
+            int     width    = sequence.length / expected.get(name + "_shape").ints()[1];
+            int     start    = starts[i] * width;
+            assertTrue(name, (window == 0) || (unit.length <= window * width));
+            assertArrayEquals(name + " " + i, Arrays.copyOfRange(sequence, start, start + unit.length), unit, 0.0f);
+            if (window > 0)
+            {
+               // Windows of a sequence start a stride apart.
+               assertEquals(name + " " + i + " start", previous[owners[i]] >= 0 ? previous[owners[i]] + stride : 0, starts[i]);
+            }
+            previous[owners[i]] = starts[i];
+            ends[owners[i]]     = starts[i] + unit.length / width;
+         }
+         for (int i = 0; i < sequences.size(); i++)
+         {
+            // Padded sequence beyond the units is padding.
+            int     width    = sequences.get(i).length / expected.get(name + "_shape").ints()[1];
+            float[] sequence = sequences.get(i);
+            for (int j = (window > 0 ? ends[i] : units.get(i).length / width) * width; j < sequence.length; j++)
+            {
+               assertEquals(name + " " + i + " padding", 0.0f, sequence[j], 0.0f);
+            }
+         }
+      }
+   }
+
+
+   @Test
+   public void formats() throws IOException
+   {
+      assertFormatsDecode();
+   }
+
+
+   @Test
+   public void deduplicatedFormats() throws IOException
+   {
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      assertFormatsDecode();
+   }
+
+
+   @Test
+   public void windowedBucketedFormats() throws IOException
+   {
+      DatasetWriter.SEQUENCE_LAYOUT = DatasetWriter.BUCKETED_SEQUENCES;
+      DatasetWriter.SEQUENCE_WINDOW = 6;
+      DatasetWriter.SEQUENCE_STRIDE = 4;
+      assertFormatsDecode();
+   }
+
+
+   @Test
+   public void raggedSequences() throws IOException
+   {
+      assertLayout(DatasetWriter.RAGGED_SEQUENCES, 0, 0);
+   }
+
+
+   @Test
+   public void bucketedSequences() throws IOException
+   {
+      assertLayout(DatasetWriter.BUCKETED_SEQUENCES, 0, 0);
+   }
+
+
+   @Test
+   public void windowedSequences() throws IOException
+   {
+      assertLayout(DatasetWriter.PADDED_SEQUENCES, 6, 4);
+      assertLayout(DatasetWriter.RAGGED_SEQUENCES, 6, 6);
+      assertLayout(DatasetWriter.BUCKETED_SEQUENCES, 5, 2);
+   }
+
+
+   @Test
+   public void concatenatedShards() throws IOException
+   {
+      DatasetReader[] expected = export(DatasetWriter.PYTHON_FORMAT);
+
+      DatasetWriter.SEQUENCE_LAYOUT = DatasetWriter.RAGGED_SEQUENCES;
+      DatasetReader ragged = export(DatasetWriter.PYTHON_FORMAT)[1];
+      DatasetWriter.SHARDS = 3;
+      for (String format : new String[] { DatasetWriter.PYTHON_FORMAT, DatasetWriter.NUMPY_FORMAT, DatasetWriter.TOKEN_FORMAT })
+      {
+         File dir = folder.newFolder();
+         Mandala.DATASET_FORMAT = format;
+         DatasetTestSupport.export(dir);
+         Mandala.DATASET_FORMAT = DatasetWriter.PYTHON_FORMAT;
+         List<DatasetReader> NNshards  = new ArrayList<DatasetReader>();
+         List<DatasetReader> RNNshards = new ArrayList<DatasetReader>();
+         for (int i = 0; i < DatasetWriter.SHARDS; i++)
+         {
+            NNshards.add(new DatasetReader(new File(dir, DatasetWriter.getShardFilename(DatasetTestSupport.NN_DATASET, i))));
+            RNNshards.add(new DatasetReader(new File(dir, DatasetWriter.getShardFilename(DatasetTestSupport.RNN_DATASET, i))));
+         }
+
+         // NN rows, and indexes offset by the rows of preceding shards.
+         for (String name : ROWS)
+         {
+            float[] rows = new float[0];
+            for (DatasetReader shard : NNshards)
+            {
+               float[] shardRows = shard.get(name).numbers;
+               rows = Arrays.copyOf(rows, rows.length + shardRows.length);
+               System.arraycopy(shardRows, 0, rows, rows.length - shardRows.length, shardRows.length);
+            }
+            assertArrayEquals(format + " " + name, expected[0].get(name).numbers, rows, 0.0f);
+         }
+         for (String[] index : INDEXES)
+         {
+            int[] values = new int[0];
+            int   base   = 0;
+            for (DatasetReader shard : NNshards)
+            {
+               int[] shardValues = shard.get(index[0]).ints();
+               values = Arrays.copyOf(values, values.length + shardValues.length);
+               for (int i = 0; i < shardValues.length; i++)
+               {
+                  values[values.length - shardValues.length + i] = base + shardValues[i];
+               }
+               base += shard.get(index[1] + "_shape").ints()[0];
+            }
+            assertArrayEquals(format + " " + index[0], expected[0].get(index[0]).ints(), values);
+         }
+
+         // RNN ragged sequences.
+         for (String name : SEQUENCES)
+         {
+            List<float[]> sequences = new ArrayList<float[]>();
+            for (DatasetReader shard : RNNshards)
+            {
+               sequences.addAll(sequences(shard, name));
+            }
+            List<float[]> unsharded = sequences(ragged, name);
+            assertEquals(format + " " + name, unsharded.size(), sequences.size());
+            for (int i = 0; i < sequences.size(); i++)
+            {
+               assertArrayEquals(format + " " + name + " " + i, unsharded.get(i), sequences.get(i), 0.0f);
+            }
+         }
+      }
+   }
+
+
+   @Test
+   public void deduplicatedShardWeights() throws IOException
+   {
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      DatasetWriter.SHARDS           = 3;
+      File dir = folder.newFolder();
+      DatasetTestSupport.export(dir);
+      DatasetPreflight preflight = new DatasetPreflight(true, false, Mandala.NN_DATASET_TRAIN_FRACTION, Mandala.RANDOM_SEED);
+      for (String name : new String[] { "y_train_weights", "y_signature_train_weights" })
+      {
+         int sum = 0;
+         for (int i = 0; i < DatasetWriter.SHARDS; i++)
+         {
+            DatasetReader shard = new DatasetReader(new File(dir, DatasetWriter.getShardFilename(DatasetTestSupport.NN_DATASET, i)));
+            for (int weight : shard.get(name).ints())
+            {
+               sum += weight;
+            }
+         }
+         assertEquals(name, preflight.trainRows, sum);
+      }
+   }
+}
@@ -0,0 +1,188 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset store tests: values appended across small segments read back by
+// index, from the truncated file and through an .npz archive. Datasets exported
+// through mapped and memory stores with small segments are identical to those
+// exported through file spools.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DatasetStoreTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   // Small segments: 4 KB, or 1024 values.
+   private static final int SEGMENT_BITS = 12;
+
+   // Value count, crossing several segments at an unaligned end.
+   private static final int COUNT = 5000;
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetStore.SEGMENT_BITS        = SEGMENT_BITS;
+      DatasetStore.MEMORY_SEGMENT_BITS = SEGMENT_BITS;
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Store values: alternating floats and integers.
+   private static byte[] fill(DatasetStore store) throws IOException
+   {
+      ByteBuffer bytes = ByteBuffer.allocate(COUNT * 4).order(ByteOrder.LITTLE_ENDIAN);
+      float[]    row   = new float[3];
+
+      for (int i = 0; i < COUNT; )
+      {
+         if ((i % 2) == 0)
+         {
+            store.putFloat(i * 0.5f);
+            bytes.putFloat(i * 0.5f);
+            i++;
+         }
+         else if (i + row.length <= COUNT)
+         {
+            for (int j = 0; j < row.length; j++)
+            {
+               row[j] = -(i + j);
+               bytes.putFloat(row[j]);
+            }
+            store.putFloats(row, 0, row.length);
+            i += row.length;
+         }
+         else
+         {
+            store.putInt(i);
+            bytes.putInt(i);
+            i++;
+         }
+      }
+      return(bytes.array());
+   }
+
+
+   // Assert store values read back by index and through an .npz archive.
+   private void assertStore(DatasetStore store) throws IOException
+   {
+      byte[]     expected = fill(store);
+      ByteBuffer values   = ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN);
+
+      assertEquals(COUNT, store.count);
+      for (int i = 0; i < COUNT; i++)
+      {
+         assertEquals(values.getInt(i * 4), store.getInt(i));
+         assertEquals(Float.floatToRawIntBits(values.getFloat(i * 4)), Float.floatToRawIntBits(store.getFloat(i)));
+      }
+
+      // Transfers starting and ending within segments.
+      File      file   = folder.newFile();
+      NpzWriter npz    = new NpzWriter(file.getPath());
+      int       from   = 1000;
+      int       length = COUNT - 1500;
+      long      offset = npz.beginArray("values", NpzWriter.INT32, new long[] { length });
+      store.transferTo(npz, from, length);
+      npz.endArray();
+      npz.close();
+      byte[] archive = Files.readAllBytes(file.toPath());
+      assertArrayEquals(Arrays.copyOfRange(expected, from * 4, (from + length) * 4),
+                        Arrays.copyOfRange(archive, (int)offset, (int)offset + length * 4));
+   }
+
+
+   @Test
+   public void mappedStore() throws IOException
+   {
+      File         file  = folder.newFile();
+      DatasetStore store = new DatasetStore(file);
+
+      assertStore(store);
+      store.close();
+      byte[] expected = fill(new DatasetStore(null));
+      assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+   }
+
+
+   @Test
+   public void memoryStore() throws IOException
+   {
+      assertStore(new DatasetStore(null));
+   }
+
+
+   @Test
+   public void deletedStore() throws IOException
+   {
+      File         file  = folder.newFile();
+      DatasetStore store = new DatasetStore(file);
+
+      fill(store);
+      store.delete();
+      assertFalse(file.exists());
+   }
+
+
+   // Export with spooling into new directory.
+   private File export(String spooling, boolean mapped) throws IOException
+   {
+      File dir = folder.newFolder();
+
+      DatasetWriter.SPOOLING      = spooling;
+      DatasetWriter.MAPPED_SPOOLS = mapped;
+      FeaturesCache.clear();
+      DatasetTestSupport.export(dir);
+      return(dir);
+   }
+
+
+   // Assert mapped and memory spools export the datasets of file spools.
+   private void assertSpools() throws IOException
+   {
+      Mandala.NUM_CAUSATION_PATHS = 16;
+      DatasetTestSupport.generate();
+      File expected = export(DatasetWriter.FILE_SPOOLING, false);
+      DatasetTestSupport.assertSameDatasets(expected, export(DatasetWriter.FILE_SPOOLING, true));
+      DatasetTestSupport.assertSameDatasets(expected, export(DatasetWriter.MEMORY_SPOOLING, false));
+   }
+
+
+   @Test
+   public void pythonSpools() throws IOException
+   {
+      assertSpools();
+   }
+
+
+   @Test
+   public void numpySpools() throws IOException
+   {
+      Mandala.DATASET_FORMAT         = DatasetWriter.NUMPY_FORMAT;
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      DatasetWriter.SEQUENCE_LAYOUT  = DatasetWriter.BUCKETED_SEQUENCES;
+      assertSpools();
+   }
+}
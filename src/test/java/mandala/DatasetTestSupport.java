@@ -0,0 +1,171 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset test support: a small quiet configuration, generated causations,
+// exports into a directory, dataset file comparison, and python format parsing.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+class DatasetTestSupport
+{
+   // Dataset file names.
+   static final String NN_DATASET  = "mandala_nn_dataset.py";
+   static final String RNN_DATASET = "mandala_rnn_dataset.py";
+
+   // Reset configuration to defaults of a small quiet run.
+   static void configure()
+   {
+      Mandala.VERBOSE = false;
+      Mandala.NUM_CAUSATION_HIERARCHIES          = 3;
+      Mandala.NUM_NONTERMINALS                   = 10;
+      Mandala.NUM_TERMINALS                      = 20;
+      Mandala.NUM_INTERSTITIAL_TERMINALS         = 10;
+      Mandala.MAX_INTERSTITIAL_TERMINAL_SEQUENCE = 10;
+      Mandala.TERMINAL_PRODUCTION_PROBABILITY    = 0.25f;
+      Mandala.NUM_DIMENSIONS             = 64;
+      Mandala.NUM_FEATURES               = 3;
+      Mandala.NUM_CAUSATION_PATHS        = 8;
+      Mandala.MAX_CONTEXT_TIER           = 5;
+      Mandala.TIER_VALUE_DURATION_TYPE   = "maximum";
+      Mandala.NN_DATASET_TRAIN_FRACTION  = 0.5f;
+      Mandala.NN_DATASET_DEDUPLICATE     = false;
+      Mandala.RNN_DATASET_TRAIN_FRACTION = 0.5f;
+      Mandala.DATASET_FORMAT             = DatasetWriter.PYTHON_FORMAT;
+      Mandala.DATASET_THREADS            = 1;
+      Mandala.RANDOM_SEED                = 45;
+      Mandala.CHECKPOINT_FILENAME        = null;
+      Mandala.CHECKPOINT_PATHS           = 100;
+      Mandala.CHECKPOINT_RESUME          = false;
+      Mandala.CHECKPOINT_HALT_PATHS      = 0;
+      Mandala.checkpointKey              = null;
+      DatasetWriter.SEQUENCE_LAYOUT      = DatasetWriter.PADDED_SEQUENCES;
+      DatasetWriter.SEQUENCE_BUCKETS     = 4;
+      DatasetWriter.SEQUENCE_WINDOW      = 0;
+      DatasetWriter.SEQUENCE_STRIDE      = 0;
+      DatasetWriter.COMPRESSION_LEVEL    = 0;
+      DatasetWriter.SHARDS               = 1;
+      DatasetWriter.SHARD_ROWS           = 0;
+      DatasetWriter.WRITE_BUFFERS        = 4;
+      DatasetWriter.MAPPED_SPOOLS        = false;
+      DatasetWriter.SPOOLING             = DatasetWriter.AUTO_SPOOLING;
+      DatasetStore.SEGMENT_BITS          = 28;
+      DatasetStore.MEMORY_SEGMENT_BITS   = 18;
+      FeaturesCache.CAPACITY             = 4096;
+      FeaturesCache.clear();
+      ContextMonitor.ENABLED             = false;
+      ContextMonitor.NOVELTY_ENABLED     = false;
+      ContextMonitor.resetNovelty();
+   }
+
+
+   // Generate causations and their paths.
+   static void generate()
+   {
+      Mandala.generateCausations();
+      Mandala.randomizer = new SplittableRandom(Mandala.RANDOM_SEED);
+      Mandala.generateCausationPaths();
+      Mandala.analyzeCausations();
+   }
+
+
+   // Export NN and RNN datasets into directory.
+   static void export(File dir)
+   {
+      Mandala.exportDatasets(new File(dir, NN_DATASET).getPath(), new File(dir, RNN_DATASET).getPath(),
+                             Mandala.NN_DATASET_TRAIN_FRACTION, Mandala.RANDOM_SEED);
+   }
+
+
+   // Assert directories contain identical dataset files, and no spools.
+   static void assertSameDatasets(File expected, File actual) throws IOException
+   {
+      File[] files = expected.listFiles();
+      assertTrue(files.length > 0);
+      for (File file : files)
+      {
+         assertArrayEquals(file.getName(), Files.readAllBytes(file.toPath()),
+                           Files.readAllBytes(new File(actual, file.getName()).toPath()));
+      }
+      for (File file : actual.listFiles())
+      {
+         assertTrue(file.getName(), new File(expected, file.getName()).exists());
+      }
+   }
+
+
+   // Lines of dataset file in directory.
+   static List<String> lines(File dir, String dataset) throws IOException
+   {
+      return(Files.readAllLines(new File(dir, dataset).toPath(), StandardCharsets.UTF_8));
+   }
+
+
+   // Rows of python format section, one line each.
+   static List<String> rows(List<String> lines, String name)
+   {
+      List<String> rows = new ArrayList<String>();
+      int          i    = lines.indexOf(name + " = [") + 1;
+
+      assertTrue(name, i > 0);
+      for ( ; !lines.get(i).equals("]"); i++)
+      {
+         String row = lines.get(i);
+         rows.add(row.endsWith(",") ? row.substring(0, row.length() - 1) : row);
+      }
+      return(rows);
+   }
+
+
+   // Values of python format section rows.
+   static float[][] floatRows(List<String> lines, String name)
+   {
+      List<String> rows   = rows(lines, name);
+      float[][]    values = new float[rows.size()][];
+
+      for (int i = 0; i < values.length; i++)
+      {
+         String[] row = rows.get(i).split(",");
+         values[i] = new float[row.length];
+         for (int j = 0; j < row.length; j++)
+         {
+            values[i][j] = Float.parseFloat(row[j]);
+         }
+      }
+      return(values);
+   }
+
+
+   // Values of python format integer list.
+   static List<Integer> ints(List<String> lines, String name)
+   {
+      List<Integer> values = new ArrayList<Integer>();
+
+      for (String line : lines)
+      {
+         if (line.startsWith(name + " = ["))
+         {
+            String list = line.substring(name.length() + 4, line.length() - 1);
+            for (String value : list.isEmpty() ? new String[0] : list.split(","))
+            {
+               values.add(Integer.valueOf(value.trim()));
+            }
+            return(values);
+         }
+      }
+      throw new AssertionError(name);
+   }
+
+
+   // Prevent instantiation.
+   private DatasetTestSupport() {}
+}
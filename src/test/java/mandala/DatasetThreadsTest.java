@@ -0,0 +1,106 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset thread tests: datasets and context monitor estimates do not depend
+// on the number of dataset threads.
+
+package mandala;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DatasetThreadsTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      Mandala.NUM_CAUSATION_PATHS = 16;
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Export with threads into directory, returning the printed output.
+   private String export(int threads, File dir)
+   {
+      PrintStream           out   = System.out;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+      Mandala.DATASET_THREADS = threads;
+      FeaturesCache.clear();
+      System.setOut(new PrintStream(bytes, true));
+      try
+      {
+         DatasetTestSupport.export(dir);
+      }
+      finally
+      {
+         System.setOut(out);
+      }
+      return(bytes.toString());
+   }
+
+
+   // Returns the printed output.
+   private String assertThreadsIndependent() throws IOException
+   {
+      File   expected       = folder.newFolder();
+      String expectedOutput = export(1, expected);
+
+      for (int threads : new int[] { 2, 4 })
+      {
+         File actual = folder.newFolder();
+         assertEquals(expectedOutput, export(threads, actual));
+         DatasetTestSupport.assertSameDatasets(expected, actual);
+      }
+      return(expectedOutput);
+   }
+
+
+   @Test
+   public void monitoredContexts() throws IOException
+   {
+      ContextMonitor.ENABLED = true;
+      assertTrue(assertThreadsIndependent().contains("distinct contexts"));
+   }
+
+
+   @Test
+   public void evictedContextEncodings() throws IOException
+   {
+      FeaturesCache.CAPACITY = 4;
+      assertThreadsIndependent();
+      assertTrue(FeaturesCache.getHits() + FeaturesCache.getMisses() > 0);
+   }
+
+
+   @Test
+   public void deduplicatedNumpyWindows() throws IOException
+   {
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      Mandala.DATASET_FORMAT         = DatasetWriter.NUMPY_FORMAT;
+      DatasetWriter.SEQUENCE_WINDOW  = 5;
+      DatasetWriter.SEQUENCE_LAYOUT  = DatasetWriter.BUCKETED_SEQUENCES;
+      assertThreadsIndependent();
+   }
+}
@@ -0,0 +1,137 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// NN dataset deduplication tests: deduplicated rows are the distinct first
+// occurrence row pairs of the undeduplicated dataset, weighted by occurrences,
+// and path begins are the first distinct rows at or after the path starts.
+
+package mandala;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static mandala.DatasetTestSupport.ints;
+import static mandala.DatasetTestSupport.rows;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeduplicationTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Export NN dataset, returning its lines.
+   private List<String> export(boolean deduplicate) throws IOException
+   {
+      File dir = folder.newFolder();
+      Mandala.NN_DATASET_DEDUPLICATE = deduplicate;
+      DatasetTestSupport.export(dir);
+      return(DatasetTestSupport.lines(dir, DatasetTestSupport.NN_DATASET));
+   }
+
+
+   // Assert deduplicated section pair is the undeduplicated pair reduced to distinct rows.
+   private static void assertDeduplicated(List<String> expected, List<String> actual, String x, String y)
+   {
+      List<String>                  xRows    = rows(expected, x);
+      List<String>                  yRows    = rows(expected, y);
+      LinkedHashMap<String, Integer> weights = new LinkedHashMap<String, Integer>();
+      List<String>                  distinct = new ArrayList<String>();
+      List<Integer>                 sums     = new ArrayList<Integer>();
+
+      for (int i = 0; i < xRows.size(); i++)
+      {
+         String  pair   = xRows.get(i) + " -> " + yRows.get(i);
+         Integer weight = weights.get(pair);
+         weights.put(pair, weight != null ? weight + 1 : 1);
+      }
+      for (String pair : weights.keySet())
+      {
+         distinct.add(pair);
+         sums.add(weights.get(pair));
+      }
+      List<String> xDistinct = rows(actual, x);
+      List<String> yDistinct = rows(actual, y);
+      assertEquals(distinct.size(), xDistinct.size());
+      for (int i = 0; i < distinct.size(); i++)
+      {
+         assertEquals(distinct.get(i), xDistinct.get(i) + " -> " + yDistinct.get(i));
+      }
+      assertEquals(sums, ints(actual, y + "_weights"));
+   }
+
+
+   @Test
+   public void deduplicatedRows() throws IOException
+   {
+      List<String>     expected  = export(false);
+      List<String>     actual    = export(true);
+      DatasetPreflight preflight = new DatasetPreflight(true, false, Mandala.NN_DATASET_TRAIN_FRACTION, Mandala.RANDOM_SEED);
+
+      assertDeduplicated(expected, actual, "X_train", "y_train");
+      assertDeduplicated(expected, actual, "X_signature_train", "y_signature_train");
+      for (String name : new String[] { "y_train_weights", "y_signature_train_weights" })
+      {
+         int sum = 0;
+         for (int weight : ints(actual, name))
+         {
+            sum += weight;
+         }
+         assertEquals(name, preflight.trainRows, sum);
+      }
+      assertTrue(rows(actual, "X_train").size() < preflight.trainRows);
+   }
+
+
+   @Test
+   public void orderedPathBegins() throws IOException
+   {
+      List<String>  expected = export(false);
+      List<String>  actual   = export(true);
+      List<String>  xRows    = rows(expected, "X_train");
+      List<String>  yRows    = rows(expected, "y_train");
+      List<Integer> starts   = ints(expected, "y_train_path_begin");
+      List<Integer> begins   = ints(actual, "y_train_path_begin");
+      int           count    = rows(actual, "X_train").size();
+
+      // Begin is the number of distinct rows preceding the path start.
+      List<Integer>                 distinctBefore = new ArrayList<Integer>();
+      LinkedHashMap<String, Boolean> seen          = new LinkedHashMap<String, Boolean>();
+      for (int i = 0; i < xRows.size(); i++)
+      {
+         distinctBefore.add(seen.size());
+         seen.put(xRows.get(i) + " -> " + yRows.get(i), true);
+      }
+      distinctBefore.add(seen.size());
+      assertEquals(starts.size(), begins.size());
+      for (int i = 0; i < begins.size(); i++)
+      {
+         assertEquals(distinctBefore.get(starts.get(i)), begins.get(i));
+         assertTrue((begins.get(i) >= 0) && (begins.get(i) <= count));
+         assertTrue((i == 0) || (begins.get(i) >= begins.get(i - 1)));
+      }
+   }
+}
@@ -0,0 +1,102 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Dataset iterator tests: every epoch of minibatches generated in-process
+// reproduces the exported NN dataset train and test rows.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+public class MandalaDataSetIteratorTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   // Minibatch size, not dividing the row counts.
+   private static final int BATCH_SIZE = 7;
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Assert minibatch matrix rows, starting at row, equal dataset rows.
+   private static void assertRows(float[][] expected, int row, INDArray actual)
+   {
+      for (int i = 0; i < actual.rows(); i++)
+      {
+         assertArrayEquals("row " + (row + i), expected[row + i], actual.getRow(i).toFloatVector(), 0.0f);
+      }
+   }
+
+
+   // Assert two epochs of iterator reproduce dataset rows.
+   private void assertEpochs(boolean test) throws IOException
+   {
+      File dir = folder.newFolder();
+
+      DatasetTestSupport.export(dir);
+      List<String>           lines    = DatasetTestSupport.lines(dir, DatasetTestSupport.NN_DATASET);
+      float[][]              X        = DatasetTestSupport.floatRows(lines, test ? "X_test" : "X_train");
+      float[][]              y        = DatasetTestSupport.floatRows(lines, test ? "y_test" : "y_train");
+      MandalaDataSetIterator iterator = new MandalaDataSetIterator(BATCH_SIZE, Mandala.NN_DATASET_TRAIN_FRACTION,
+                                                                   test, Mandala.RANDOM_SEED, false);
+      assertTrue(X.length > BATCH_SIZE);
+      for (int epoch = 0; epoch < 2; epoch++)
+      {
+         int row = 0;
+         while (iterator.hasNext())
+         {
+            DataSet batch = iterator.next();
+            assertTrue(batch.numExamples() <= BATCH_SIZE);
+            assertEquals(iterator.inputColumns(), batch.getFeatures().columns());
+            assertRows(X, row, batch.getFeatures());
+            assertRows(y, row, batch.getLabels());
+            row += batch.numExamples();
+         }
+         assertEquals(X.length, row);
+         assertFalse(iterator.hasNext());
+         iterator.reset();
+      }
+      assertEquals(2, iterator.epoch);
+   }
+
+
+   @Test
+   public void trainEpochs() throws IOException
+   {
+      assertEpochs(false);
+   }
+
+
+   @Test
+   public void testEpochs() throws IOException
+   {
+      assertEpochs(true);
+   }
+}
@@ -0,0 +1,151 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// NumPy .npz writer tests: archives read back with their array data at the
+// returned offsets, with and without ZIP64 records. A lowered ZIP64 limit puts
+// every size and offset beyond it. Archives are also checked by python3 zipfile,
+// when available.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NpzWriterTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   // Array count, and length of each array.
+   private static final int ARRAYS = 5;
+   private static final int LENGTH = 3000;
+
+   @After
+   public void tearDown()
+   {
+      NpzWriter.ZIP64_LIMIT = 0xffffffffL;
+      NpzWriter.BUFFER_SIZE = 1 << 16;
+   }
+
+
+   // Array data: integers, with zeros after the first third.
+   private static byte[] data(int array)
+   {
+      ByteBuffer data = ByteBuffer.allocate(LENGTH * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+      for (int i = 0; i < LENGTH; i++)
+      {
+         data.putInt(i < LENGTH / 3 ? array * LENGTH + i + 1 : 0);
+      }
+      return(data.array());
+   }
+
+
+   private static byte[] read(InputStream input) throws IOException
+   {
+      ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+      byte[]                buffer = new byte[8192];
+      int                   n;
+
+      while ((n = input.read(buffer)) > 0)
+      {
+         bytes.write(buffer, 0, n);
+      }
+      input.close();
+      return(bytes.toByteArray());
+   }
+
+
+   // Write archive, and assert it reads back, with ZIP64 records or without.
+   private void assertArchive(boolean zip64) throws IOException
+   {
+      NpzWriter.BUFFER_SIZE = 1000;
+      File      file    = folder.newFile("arrays.npz");
+      NpzWriter npz     = new NpzWriter(file.getPath());
+      long[]    offsets = new long[ARRAYS];
+
+      for (int a = 0; a < ARRAYS; a++)
+      {
+         offsets[a] = npz.beginArray("array" + a, NpzWriter.INT32, new long[] { LENGTH });
+         for (int i = 0; i < LENGTH / 3; i++)
+         {
+            npz.putInt(a * LENGTH + i + 1);
+         }
+         npz.putZeros((LENGTH - LENGTH / 3) * 4);
+         npz.endArray();
+      }
+      npz.close();
+
+      // Entries, and memory-mapped array data.
+      byte[]  bytes = Files.readAllBytes(file.toPath());
+      ZipFile zip   = new ZipFile(file);
+      try
+      {
+         assertEquals(ARRAYS, zip.size());
+         for (int a = 0; a < ARRAYS; a++)
+         {
+            ZipEntry entry = zip.getEntry("array" + a + ".npy");
+            byte[]   npy   = read(zip.getInputStream(entry));
+            assertEquals(0, offsets[a] % NpzWriter.ALIGNMENT);
+            assertEquals((byte)0x93, npy[0]);
+            assertArrayEquals(data(a), Arrays.copyOfRange(npy, npy.length - LENGTH * 4, npy.length));
+            assertArrayEquals(data(a), Arrays.copyOfRange(bytes, (int)offsets[a], (int)offsets[a] + LENGTH * 4));
+         }
+      }
+      finally
+      {
+         zip.close();
+      }
+      assertEquals(zip64, new String(bytes, "ISO-8859-1").indexOf("PK\u0006\u0006") >= 0);
+
+      // Python zipfile checks entry checksums.
+      try
+      {
+         Process process = new ProcessBuilder("python3", "-c",
+                                              "import sys, zipfile; print(zipfile.ZipFile(sys.argv[1]).testzip())",
+                                              file.getPath()).redirectErrorStream(true).start();
+         String output = new String(read(process.getInputStream()), "UTF-8").trim();
+         process.waitFor();
+         assertEquals("None", output);
+      }
+      catch (IOException e)
+      {
+         assumeTrue("python3 unavailable", false);
+      }
+      catch (InterruptedException e)
+      {
+         throw new IOException(e);
+      }
+   }
+
+
+   @Test
+   public void archive() throws IOException
+   {
+      assertArchive(false);
+   }
+
+
+   @Test
+   public void zip64Archive() throws IOException
+   {
+      NpzWriter.ZIP64_LIMIT = 64;
+      assertArchive(true);
+   }
+}
@@ -0,0 +1,97 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Path interleaver tests: the Fenwick tree interleaver makes the same hierarchy
+// selections as drawing from a list of unfinished hierarchies rebuilt each step.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class PathInterleaverTest
+{
+   // Hierarchies drawn by linear selection from unfinished hierarchies.
+   private static int[] linearSelections(int[] limits, long seed)
+   {
+      SplittableRandom   random     = new SplittableRandom(seed);
+      int[]              cursors    = new int[limits.length];
+      ArrayList<Integer> selections = new ArrayList<Integer>();
+
+      while (true)
+      {
+         ArrayList<Integer> available = new ArrayList<Integer>();
+         for (int j = 0; j < limits.length; j++)
+         {
+            if (cursors[j] < limits[j])
+            {
+               available.add(j);
+            }
+         }
+         if (available.size() == 0)
+         {
+            break;
+         }
+         int h = available.get(random.nextInt(available.size()));
+         selections.add(h);
+         cursors[h]++;
+      }
+      int[] values = new int[selections.size()];
+      for (int i = 0; i < values.length; i++)
+      {
+         values[i] = selections.get(i);
+      }
+      return(values);
+   }
+
+
+   // Hierarchies drawn by interleaver.
+   private static int[] interleaverSelections(int[] limits, long seed)
+   {
+      Mandala.PathInterleaver interleaver = new Mandala.PathInterleaver(limits.clone());
+      Mandala.PathDraws       random      = new Mandala.PathDraws(new SplittableRandom(seed));
+      ArrayList<Integer>      selections  = new ArrayList<Integer>();
+
+      for (int h = interleaver.next(random); h != -1; h = interleaver.next(random))
+      {
+         selections.add(h);
+         interleaver.advance(h);
+      }
+      int[] values = new int[selections.size()];
+      for (int i = 0; i < values.length; i++)
+      {
+         values[i] = selections.get(i);
+      }
+      return(values);
+   }
+
+
+   @Test
+   public void linearSelections()
+   {
+      SplittableRandom random = new SplittableRandom(45);
+
+      for (int hierarchies : new int[] { 0, 1, 2, 7, 37, 100 })
+      {
+         for (int trial = 0; trial < 5; trial++)
+         {
+            // Path lengths, with some empty paths.
+            int[] limits = new int[hierarchies];
+            int   steps  = 0;
+            for (int i = 0; i < hierarchies; i++)
+            {
+               limits[i] = (random.nextInt(4) == 0 ? 0 : random.nextInt(1, 30));
+               steps    += limits[i];
+            }
+            long  seed     = random.nextLong();
+            int[] expected = linearSelections(limits, seed);
+            assertEquals(steps, expected.length);
+            assertArrayEquals(hierarchies + " hierarchies", expected, interleaverSelections(limits, seed));
+         }
+      }
+   }
+}
@@ -0,0 +1,192 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Shard manifest tests: shards by path are balanced by path steps, and the
+// manifest presents the concatenated sections of the unsharded datasets.
+// Manifests are imported with python3, when available.
+
+package mandala;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardManifestTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   // Print the public names of an unsharded dataset module differing in a manifest
+   // module, or the sums of manifest weights.
+   private static final String COMPARE =
+      "import importlib.util, sys\n" +
+      "def load(name, path):\n" +
+      "    spec = importlib.util.spec_from_file_location(name, path)\n" +
+      "    module = importlib.util.module_from_spec(spec)\n" +
+      "    spec.loader.exec_module(module)\n" +
+      "    return module\n" +
+      "actual = load('actual', sys.argv[1])\n" +
+      "if sys.argv[2] == '-weights':\n" +
+      "    print(' '.join([str(sum(getattr(actual, name))) for name in sys.argv[3:]]))\n" +
+      "    sys.exit(0)\n" +
+      "expected = load('expected', sys.argv[2])\n" +
+      "for name, value in vars(expected).items():\n" +
+      "    if not name.startswith('_') and not callable(value) and value != getattr(actual, name, None):\n" +
+      "        print('differs: ' + name)\n";
+
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   // Run compare script with arguments, returning its output, or null if python3 is unavailable.
+   private String compare(String... args) throws IOException
+   {
+      File script = new File(folder.getRoot(), "compare.py");
+      Files.write(script.toPath(), COMPARE.getBytes(StandardCharsets.UTF_8));
+      String[] command = new String[args.length + 2];
+      command[0] = "python3";
+      command[1] = script.getPath();
+      System.arraycopy(args, 0, command, 2, args.length);
+      try
+      {
+         Process               process = new ProcessBuilder(command).redirectErrorStream(true).start();
+         InputStream           input   = process.getInputStream();
+         ByteArrayOutputStream bytes   = new ByteArrayOutputStream();
+         byte[]                buffer  = new byte[8192];
+         int                   n;
+         while ((n = input.read(buffer)) > 0)
+         {
+            bytes.write(buffer, 0, n);
+         }
+         process.waitFor();
+         return(bytes.toString("UTF-8").trim());
+      }
+      catch (IOException e)
+      {
+         return(null);
+      }
+      catch (InterruptedException e)
+      {
+         throw new IOException(e);
+      }
+   }
+
+
+   // Export unsharded and sharded datasets, returning their directories.
+   private File[] exportSharded(int shards) throws IOException
+   {
+      File unsharded = folder.newFolder();
+      DatasetTestSupport.export(unsharded);
+      File sharded = folder.newFolder();
+      DatasetWriter.SHARDS = shards;
+      DatasetTestSupport.export(sharded);
+      DatasetWriter.SHARDS = 1;
+      return(new File[] { unsharded, sharded });
+   }
+
+
+   // Assert sharded manifests present the unsharded datasets.
+   private void assertManifestsConcatenate(int shards) throws IOException
+   {
+      File[] dirs = exportSharded(shards);
+      for (String dataset : new String[] { DatasetTestSupport.NN_DATASET, DatasetTestSupport.RNN_DATASET })
+      {
+         assertTrue(new File(dirs[1], DatasetWriter.getShardFilename(dataset, shards - 1)).exists());
+         String output = compare(new File(dirs[1], dataset).getPath(), new File(dirs[0], dataset).getPath());
+         assumeTrue(output != null);
+         assertEquals(dataset, "", output);
+      }
+   }
+
+
+   @Test
+   public void balancedShards() throws IOException
+   {
+      DatasetWriter.SHARDS = 3;
+      File dir = folder.newFolder();
+      DatasetTestSupport.export(dir);
+      DatasetPreflight preflight = new DatasetPreflight(true, false, Mandala.NN_DATASET_TRAIN_FRACTION, Mandala.RANDOM_SEED);
+      String           manifest  = new String(Files.readAllBytes(new File(dir, DatasetTestSupport.NN_DATASET).toPath()), StandardCharsets.UTF_8);
+      String[]         shards    = manifest.split("\\{ 'files'");
+      Pattern          pattern   = Pattern.compile("'X_(train|test)': \\{ 'shape': \\[ (\\d+)");
+      long             steps     = 0;
+      assertEquals(4, shards.length);
+      for (int i = 1; i < shards.length; i++)
+      {
+         long    shardSteps = 0;
+         Matcher matcher    = pattern.matcher(shards[i]);
+         while (matcher.find())
+         {
+            shardSteps += Long.parseLong(matcher.group(2));
+         }
+         assertTrue(shardSteps > 0);
+         steps += shardSteps;
+      }
+      assertEquals(preflight.trainRows + preflight.testRows, steps);
+   }
+
+
+   @Test
+   public void concatenatedPaddedSequences() throws IOException
+   {
+      assertManifestsConcatenate(3);
+   }
+
+
+   @Test
+   public void concatenatedBucketedWindows() throws IOException
+   {
+      DatasetWriter.SEQUENCE_LAYOUT = DatasetWriter.BUCKETED_SEQUENCES;
+      DatasetWriter.SEQUENCE_WINDOW = 6;
+      DatasetWriter.SEQUENCE_STRIDE = 4;
+      assertManifestsConcatenate(4);
+   }
+
+
+   @Test
+   public void concatenatedRaggedSequences() throws IOException
+   {
+      DatasetWriter.SEQUENCE_LAYOUT = DatasetWriter.RAGGED_SEQUENCES;
+      assertManifestsConcatenate(2);
+   }
+
+
+   @Test
+   public void concatenatedDeduplicatedWeights() throws IOException
+   {
+      Mandala.NN_DATASET_DEDUPLICATE = true;
+      DatasetWriter.SHARDS           = 3;
+      File dir = folder.newFolder();
+      DatasetTestSupport.export(dir);
+      DatasetPreflight preflight = new DatasetPreflight(true, false, Mandala.NN_DATASET_TRAIN_FRACTION, Mandala.RANDOM_SEED);
+      String           output    = compare(new File(dir, DatasetTestSupport.NN_DATASET).getPath(), "-weights",
+                                           "y_train_weights", "y_signature_train_weights");
+      assumeTrue(output != null);
+      assertEquals(preflight.trainRows + " " + preflight.trainRows, output);
+   }
+}
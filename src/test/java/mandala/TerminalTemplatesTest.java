@@ -0,0 +1,74 @@
+// For conditions of distribution and use, see copyright notice in LICENSE.txt.
+
+// Terminal template tests: templates are the one-hot terminal encodings, and
+// terminals outside the templates are rejected.
+
+package mandala;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TerminalTemplatesTest
+{
+   @Before
+   public void setUp()
+   {
+      DatasetTestSupport.configure();
+      DatasetTestSupport.generate();
+   }
+
+
+   @After
+   public void tearDown()
+   {
+      DatasetTestSupport.configure();
+   }
+
+
+   @Test
+   public void encodedTerminals()
+   {
+      TerminalTemplates templates = new TerminalTemplates();
+
+      for (int i = 0; i <= Mandala.NUM_CAUSATION_HIERARCHIES; i++)
+      {
+         for (int j = 0, k = Mandala.NUM_TERMINALS + Mandala.NUM_INTERSTITIAL_TERMINALS; j < k; j++)
+         {
+            float[] expected = new float[Mandala.NUM_DIMENSIONS];
+            DatasetRows.oneHot(expected, 0, Mandala.NUM_DIMENSIONS, Mandala.Causation.encodeFeatures(i, j));
+            float[] row = new float[Mandala.NUM_DIMENSIONS + 2];
+            templates.copy(row, 1, i, j);
+            assertArrayEquals(expected, templates.get(i, j), 0.0f);
+            assertArrayEquals(expected, Arrays.copyOfRange(row, 1, Mandala.NUM_DIMENSIONS + 1), 0.0f);
+         }
+      }
+   }
+
+
+   @Test
+   public void missingTerminals()
+   {
+      TerminalTemplates templates = new TerminalTemplates();
+      int[][]           terminals = new int[][]
+      {
+         { -1, 0 }, { Mandala.NUM_CAUSATION_HIERARCHIES + 1, 0 },
+         { 0, -1 }, { 0, Mandala.NUM_TERMINALS + Mandala.NUM_INTERSTITIAL_TERMINALS }
+      };
+
+      for (int[] terminal : terminals)
+      {
+         try
+         {
+            templates.get(terminal[0], terminal[1]);
+            fail("template of terminal " + terminal[0] + ", " + terminal[1]);
+         }
+         catch (IllegalArgumentException e) {}
+      }
+   }
+}